@@ -0,0 +1,336 @@
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import cryptify.core.JobScheduler;
+
+/**
+ * Window that reports on a batch of file operations while it runs.
+ * 
+ * Worker threads only bump counters and queue failure messages. The window
+ * is redrawn at most FRAMES_PER_SECOND times a second, through a single
+ * Platform.runLater that is skipped while the previous one is still pending,
+ * so the JavaFX thread does the same work for ten files as for a million.
+ * Instead of a dialog per file there are live counters (done, failed, MB/s,
+ * ETA), one summary line when the batch ends, and a filterable failure list.
+ * A small batch started while another runs does not wait for it: it is
+ * submitted as interactive work and reported on its own.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Counters and refresh scheduling are internal
+ * - Thread Safety: Completions may be recorded from any thread
+ */
+public class BatchResultsPanel {
+
+    private static final int FRAMES_PER_SECOND = 10;
+    private static final int INTERACTIVE_FILES = 16;
+    private static final long INTERACTIVE_BYTES = 1L << 30;
+
+    /**
+     * Starts the operation on one file, e.g. CryptifyEngine::decryptFileAsync.
+     */
+    public interface FileOperation {
+
+        CompletableFuture<Void> start(File file);
+    }
+
+    private final Stage owner;
+    private final Runnable onFinished;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cryptify-batch-ui");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Stage stage;
+    private Label titleLabel;
+    private Label countersLabel;
+    private Label rateLabel;
+    private Label summaryLabel;
+    private ProgressBar progressBar;
+    private final ObservableList<String> failures = FXCollections.observableArrayList();
+
+    // Updated by worker threads, read by refresh()
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ConcurrentLinkedQueue<String> newFailures = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private volatile boolean submitted;
+
+    // JavaFX thread only
+    private boolean running;
+    private int total;
+    private long startNanos;
+    private String title;
+    private ScheduledFuture<?> frames;
+
+    /**
+     * Creates the panel; its window is built on first use.
+     * 
+     * @param owner      Window to place the panel next to
+     * @param onFinished Run on the JavaFX thread after each batch
+     */
+    public BatchResultsPanel(Stage owner, Runnable onFinished) {
+        this.owner = owner;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Picks the scheduling class for a batch. A few files of moderate size
+     * are interactive and overtake bulk work already running; anything
+     * bigger runs as bulk, largest file first.
+     * 
+     * @param files The files of the batch
+     * @return The priority to submit them with
+     */
+    public static JobScheduler.Priority priorityFor(List<File> files) {
+        if (files.size() > INTERACTIVE_FILES) {
+            return JobScheduler.Priority.BULK;
+        }
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        return bytes <= INTERACTIVE_BYTES ? JobScheduler.Priority.INTERACTIVE : JobScheduler.Priority.BULK;
+    }
+
+    /**
+     * Checks if a batch is still running.
+     * 
+     * @return true until the last file of the current batch has finished
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Runs an operation on every file and shows its progress.
+     * Must be called on the JavaFX thread; returns immediately.
+     * 
+     * @param title     What the batch does, e.g. "Decrypting 20 files"
+     * @param files     The files
+     * @param operation The operation to start on each file
+     */
+    public void run(String title, List<File> files, FileOperation operation) {
+        if (running) {
+            if (priorityFor(files) == JobScheduler.Priority.BULK) {
+                DialogHelper.showError("Batch Running", "Please wait until the current batch has finished.");
+            } else {
+                runAlongside(title, files, operation);
+            }
+            return;
+        }
+        running = true;
+        this.title = title;
+        total = files.size();
+        done.set(0);
+        failed.set(0);
+        doneBytes.set(0);
+        totalBytes.set(0);
+        newFailures.clear();
+        submitted = false;
+        startNanos = System.nanoTime();
+
+        show();
+        failures.clear();
+        titleLabel.setText(title);
+        summaryLabel.setText("");
+        refresh();
+
+        // File sizes are looked up off the JavaFX thread, while work already runs
+        Thread submitter = new Thread(() -> {
+            for (File file : files) {
+                long size = file.length();
+                totalBytes.addAndGet(size);
+                CompletableFuture<Void> future;
+                try {
+                    future = operation.start(file);
+                } catch (RuntimeException e) {
+                    future = new CompletableFuture<>();
+                    future.completeExceptionally(e);
+                }
+                future.whenComplete((ignored, error) -> record(file, size, error));
+            }
+            submitted = true;
+            requestRefresh();
+        }, "cryptify-batch-submit");
+        submitter.setDaemon(true);
+        submitter.start();
+
+        frames = ticker.scheduleAtFixedRate(this::requestRefresh, 0, 1000 / FRAMES_PER_SECOND,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a small batch while a bigger one is shown. Its files overtake the
+     * running batch in the engine, and failures are reported in one dialog.
+     */
+    private void runAlongside(String title, List<File> files, FileOperation operation) {
+        List<String> errors = new ArrayList<>();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[files.size()];
+        for (int i = 0; i < futures.length; i++) {
+            File file = files.get(i);
+            futures[i] = operation.start(file).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    synchronized (errors) {
+                        errors.add(file.getPath() + ": " + cause.getMessage());
+                    }
+                }
+            });
+        }
+        CompletableFuture.allOf(futures).whenComplete((ignored, error) -> Platform.runLater(() -> {
+            if (!errors.isEmpty()) {
+                DialogHelper.showError(title + " Failed", String.join("\n", errors));
+            }
+            onFinished.run();
+        }));
+    }
+
+    /**
+     * Counts one finished file. Called on the thread that finished it.
+     */
+    private void record(File file, long size, Throwable error) {
+        if (error == null) {
+            done.incrementAndGet();
+            doneBytes.addAndGet(size);
+        } else {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            newFailures.add(file.getPath() + ": " + error.getMessage());
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Schedules a redraw unless one is already waiting to run.
+     */
+    private void requestRefresh() {
+        if (refreshPending.compareAndSet(false, true)) {
+            Platform.runLater(this::refresh);
+        }
+    }
+
+    /**
+     * Redraws the counters from the current totals. JavaFX thread only.
+     */
+    private void refresh() {
+        refreshPending.set(false);
+        if (!running) {
+            return;
+        }
+
+        int ok = done.get();
+        int bad = failed.get();
+        // Failures are queued before they are counted, so all counted ones are here
+        List<String> drained = new ArrayList<>();
+        String failure;
+        while ((failure = newFailures.poll()) != null) {
+            drained.add(failure);
+        }
+        failures.addAll(drained);
+        int finished = ok + bad;
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        double bytesPerSecond = doneBytes.get() / seconds;
+
+        countersLabel.setText(String.format("Done: %d    Failed: %d    Remaining: %d", ok, bad, total - finished));
+        progressBar.setProgress(total == 0 ? 1 : finished / (double) total);
+
+        if (submitted && finished == total) {
+            frames.cancel(false);
+            running = false;
+            rateLabel.setText(String.format(Locale.ROOT, "%.1f MB/s", bytesPerSecond / 1e6));
+            summaryLabel.setText(String.format(Locale.ROOT, "%s finished in %.1f s: %d succeeded, %d failed",
+                    title, seconds, ok, bad));
+            onFinished.run();
+            return;
+        }
+
+        String eta = "--";
+        if (submitted && bytesPerSecond > 0) {
+            eta = formatDuration((totalBytes.get() - doneBytes.get()) / bytesPerSecond);
+        } else if (finished > 0) {
+            eta = formatDuration((total - finished) * seconds / finished);
+        }
+        rateLabel.setText(String.format(Locale.ROOT, "%.1f MB/s    ETA %s", bytesPerSecond / 1e6, eta));
+    }
+
+    private static String formatDuration(double seconds) {
+        long s = Math.round(seconds);
+        return s >= 3600 ? String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60)
+                : String.format("%d:%02d", s / 60, s % 60);
+    }
+
+    /**
+     * Builds the window on first use and brings it to the front.
+     */
+    private void show() {
+        if (stage == null) {
+            stage = new Stage();
+            stage.setTitle("Batch Results");
+
+            VBox box = new VBox(10);
+            box.setStyle(Styles.DIALOG_PADDING);
+
+            titleLabel = new Label();
+            titleLabel.setStyle(Styles.DIALOG_TITLE);
+            progressBar = new ProgressBar(0);
+            progressBar.setMaxWidth(Double.MAX_VALUE);
+            countersLabel = new Label();
+            countersLabel.setStyle(Styles.BATCH_COUNTERS);
+            rateLabel = new Label();
+            rateLabel.setStyle(Styles.BATCH_COUNTERS);
+            summaryLabel = new Label();
+            summaryLabel.setStyle(Styles.BATCH_SUMMARY);
+
+            Label failuresLabel = new Label("FAILURES");
+            failuresLabel.setStyle(Styles.FILE_LIST_LABEL);
+            TextField filterField = new TextField();
+            filterField.setPromptText("Filter failures");
+
+            FilteredList<String> filtered = new FilteredList<>(failures);
+            filterField.textProperty().addListener((observable, oldText, text) -> {
+                String needle = text.toLowerCase(Locale.ROOT);
+                filtered.setPredicate(needle.isEmpty() ? null
+                        : line -> line.toLowerCase(Locale.ROOT).contains(needle));
+            });
+            ListView<String> failureList = new ListView<>(filtered);
+            failureList.setPrefHeight(220);
+            failureList.setStyle(Styles.FILE_LIST_VIEW);
+
+            box.getChildren().addAll(titleLabel, progressBar, countersLabel, rateLabel, summaryLabel,
+                    failuresLabel, filterField, failureList);
+
+            stage.setScene(new Scene(box, 460, 430));
+            stage.setX(owner.getX() + owner.getWidth() + 10);
+            stage.setY(owner.getY());
+        }
+        stage.show();
+        stage.toFront();
+    }
+}
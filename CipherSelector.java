@@ -1,22 +1,25 @@
-import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
-import javax.crypto.SecretKey;
 import java.io.File;
+import java.util.List;
+import cryptify.core.CryptifyEngine;
+import cryptify.core.JobScheduler;
 
 public class CipherSelector {
 
     /**
-     * Shows the cipher selection window.
+     * Shows the cipher selection window. The chosen operation runs on all
+     * files as one batch, reported by the results panel.
      */
-    public static void show(Stage owner, File file, SecretKey key,
-            ObservableList<String> fileList, boolean isEncrypting) {
+    public static void show(Stage owner, List<File> files, CryptifyEngine engine,
+            BatchResultsPanel results, boolean isEncrypting) {
         Stage cipherStage = new Stage();
         cipherStage.setTitle(isEncrypting ? "Select Encryption Cipher" : "Select Decryption Cipher");
 
@@ -27,37 +30,16 @@ public class CipherSelector {
         Label titleLabel = new Label(isEncrypting ? "Choose encryption method:" : "Choose decryption method:");
         titleLabel.setStyle(Styles.DIALOG_TITLE);
 
+        // Caesar and XOR have no authentication of their own
+        CheckBox integrityBox = new CheckBox("Add integrity check (Caesar/XOR)");
+
         Button caesarBtn = new Button("Caesar Cipher");
         caesarBtn.setPrefWidth(200);
         caesarBtn.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                if (isEncrypting) {
-                    boolean confirmed = DialogHelper.showConfirm("Caesar Cipher Warning",
-                            "⚠️ WARNING: Caesar cipher does not verify keys!\n\n" +
-                                    "If you forget your encryption key, your data will be PERMANENTLY LOST.\n\n" +
-                                    "Consider using AES encryption for important data.\n\n" +
-                                    "Do you want to continue?");
-
-                    if (confirmed) {
-                        try {
-                            CryptoHelper.encryptFile(file, key, (byte) 1);
-                            DialogHelper.showSuccess("Caesar Encryption", "File encrypted successfully!");
-                        } catch (Exception e) {
-                            DialogHelper.showError("Encryption Error", e.getMessage());
-                        }
-                        cipherStage.close();
-                    }
-                    // If canceled, dialog just closes and returns to cipher selection
-                } else {
-                    try {
-                        CryptoHelper.decryptFile(file, key);
-                        DialogHelper.showSuccess("Caesar Decryption", "File decrypted successfully!");
-                    } catch (Exception e) {
-                        DialogHelper.showError("Decryption Error", e.getMessage());
-                    }
-                    cipherStage.close();
-                }
+                start(cipherStage, files, engine, results, isEncrypting, (byte) 1, "Caesar",
+                        integrityBox.isSelected());
             }
         });
 
@@ -66,32 +48,8 @@ public class CipherSelector {
         xorBtn.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                if (isEncrypting) {
-                    boolean confirmed = DialogHelper.showConfirm("XOR Cipher Warning",
-                            "⚠️ WARNING: XOR cipher does not verify keys!\n\n" +
-                                    "If you forget your encryption key, your data will be PERMANENTLY LOST.\n\n" +
-                                    "Consider using AES encryption for important data.\n\n" +
-                                    "Do you want to continue?");
-
-                    if (confirmed) {
-                        try {
-                            CryptoHelper.encryptFile(file, key, (byte) 2);
-                            DialogHelper.showSuccess("XOR Encryption", "File encrypted successfully!");
-                        } catch (Exception e) {
-                            DialogHelper.showError("Encryption Error", e.getMessage());
-                        }
-                        cipherStage.close();
-                    }
-                    // If canceled, dialog just closes and returns to cipher selection
-                } else {
-                    try {
-                        CryptoHelper.decryptFile(file, key);
-                        DialogHelper.showSuccess("XOR Decryption", "File decrypted successfully!");
-                    } catch (Exception e) {
-                        DialogHelper.showError("Decryption Error", e.getMessage());
-                    }
-                    cipherStage.close();
-                }
+                start(cipherStage, files, engine, results, isEncrypting, (byte) 2, "XOR",
+                        integrityBox.isSelected());
             }
         });
 
@@ -100,31 +58,53 @@ public class CipherSelector {
         aesBtn.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                if (isEncrypting) {
-                    try {
-                        CryptoHelper.encryptFile(file, key, (byte) 3);
-                        DialogHelper.showSuccess("AES Encryption", "File encrypted successfully!");
-                    } catch (Exception e) {
-                        DialogHelper.showError("Encryption Error", e.getMessage());
-                    }
-                } else {
-                    try {
-                        CryptoHelper.decryptFile(file, key);
-                        DialogHelper.showSuccess("AES Decryption", "File decrypted successfully!");
-                    } catch (Exception e) {
-                        DialogHelper.showError("Decryption Error", e.getMessage());
-                    }
-                }
-                cipherStage.close();
+                start(cipherStage, files, engine, results, isEncrypting, (byte) 3, "AES",
+                        integrityBox.isSelected());
             }
         });
 
         cipherBox.getChildren().addAll(titleLabel, caesarBtn, xorBtn, aesBtn);
+        if (isEncrypting) {
+            cipherBox.getChildren().add(integrityBox);
+        }
 
-        Scene cipherScene = new Scene(cipherBox, 300, 250);
+        Scene cipherScene = new Scene(cipherBox, 300, isEncrypting ? 280 : 250);
         cipherStage.setScene(cipherScene);
         cipherStage.setX(owner.getX() + owner.getWidth() + 10);
         cipherStage.setY(owner.getY());
         cipherStage.show();
     }
+
+    /**
+     * Starts the batch for the chosen cipher. Weak ciphers are confirmed
+     * once for the whole batch; if canceled, the selection window stays open.
+     * The integrity option only applies to Caesar and XOR.
+     */
+    private static void start(Stage cipherStage, List<File> files, CryptifyEngine engine,
+            BatchResultsPanel results, boolean isEncrypting, byte cipherType, String cipherName,
+            boolean integrity) {
+        String what = files.size() == 1 ? files.get(0).getName() : files.size() + " files";
+        JobScheduler.Priority priority = BatchResultsPanel.priorityFor(files);
+
+        if (!isEncrypting) {
+            // The header says which cipher to use
+            results.run("Decrypting " + what, files, file -> engine.decryptFileAsync(file, priority));
+            cipherStage.close();
+            return;
+        }
+
+        if (cipherType != 3) {
+            boolean confirmed = DialogHelper.showConfirm(cipherName + " Cipher Warning",
+                    "⚠️ WARNING: " + cipherName + " cipher is easy to break!\n\n" +
+                            "If you forget your encryption key, your data will be PERMANENTLY LOST.\n\n" +
+                            "Consider using AES encryption for important data.\n\n" +
+                            "Do you want to continue?");
+            if (!confirmed) {
+                return;
+            }
+        }
+        results.run("Encrypting " + what + " with " + cipherName, files,
+                file -> engine.encryptFileAsync(file, cipherType, integrity && cipherType != 3, priority));
+        cipherStage.close();
+    }
 }
@@ -0,0 +1,217 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Generates reproducible benchmark corpora for MacroBenchmark.
+ * 
+ * A corpus is a directory of files spread over subdirectories of at most
+ * 1000 entries, plus a "corpus.manifest" listing each file's relative path,
+ * size and CRC32 so a benchmark can verify round trips without keeping
+ * copies. The same profile, scale and seed always produce the same bytes.
+ * 
+ * File contents rotate through three kinds with different compressibility:
+ * - text:   words from a small vocabulary (compresses roughly 3-4x)
+ * - binary: uniformly random bytes (incompressible)
+ * - sparse: mostly zero blocks with random blocks mixed in (compresses well)
+ * 
+ * Usage: CorpusGenerator dir profile [scale] [seed]
+ * Profiles: tiny (1,000,000 x 1 KB), medium (10,000 x 1 MB),
+ * huge (10 x 10 GB), mixed (all three at 1/100 of the file count or size).
+ * scale multiplies the file count, or the file size for profiles with fewer
+ * than 100 files.
+ */
+public class CorpusGenerator {
+
+    public static final String MANIFEST = "corpus.manifest";
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int FILES_PER_DIR = 1000;
+    private static final String[] WORDS = {
+            "the", "of", "and", "to", "in", "is", "that", "file", "key", "data", "cipher", "block",
+            "stream", "header", "random", "encrypt", "decrypt", "secret", "message", "student",
+            "record", "value", "system", "network", "buffer", "channel", "result", "report" };
+
+    /**
+     * One group of equally sized files in a corpus.
+     */
+    public static class Group {
+
+        public final String name;
+        public final long count;
+        public final long size;
+
+        public Group(String name, long count, long size) {
+            this.name = name;
+            this.count = count;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Gets the file groups of a profile.
+     * 
+     * @param profile tiny, medium, huge or mixed
+     * @param scale   Multiplier for the file count (or size, for few files)
+     * @return The groups to generate
+     * @throws IllegalArgumentException if the profile is unknown
+     */
+    public static List<Group> profile(String profile, double scale) {
+        List<Group> groups = new ArrayList<>();
+        switch (profile) {
+            case "tiny":
+                groups.add(scaled("tiny", 1_000_000, 1024, scale));
+                break;
+            case "medium":
+                groups.add(scaled("medium", 10_000, 1024 * 1024, scale));
+                break;
+            case "huge":
+                groups.add(scaled("huge", 10, 10L * 1024 * 1024 * 1024, scale));
+                break;
+            case "mixed":
+                groups.add(scaled("tiny", 10_000, 1024, scale));
+                groups.add(scaled("medium", 100, 1024 * 1024, scale));
+                groups.add(scaled("huge", 10, 100L * 1024 * 1024, scale));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown corpus profile: " + profile);
+        }
+        return groups;
+    }
+
+    private static Group scaled(String name, long count, long size, double scale) {
+        if (count >= 100) {
+            return new Group(name, Math.max(1, Math.round(count * scale)), size);
+        }
+        return new Group(name, count, Math.max(1, Math.round(size * scale)));
+    }
+
+    /**
+     * Writes a corpus and its manifest.
+     * 
+     * @param dir    Target directory (created if missing)
+     * @param groups The file groups
+     * @param seed   Random seed; equal seeds give identical corpora
+     * @return Total number of bytes written
+     * @throws IOException if a file cannot be written
+     */
+    public static long generate(Path dir, List<Group> groups, long seed) throws IOException {
+        Files.createDirectories(dir);
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        byte[] text = textPool(new SplittableRandom(seed), 4 * BLOCK_SIZE);
+        long total = 0;
+        long fileNumber = 0;
+
+        try (BufferedWriter manifest = Files.newBufferedWriter(dir.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+            for (Group group : groups) {
+                for (long i = 0; i < group.count; i++, fileNumber++) {
+                    int kind = (int) (fileNumber % 3);
+                    String relative = String.format("%s/d%04d/f%07d.%s", group.name, i / FILES_PER_DIR, i,
+                            kind == 0 ? "txt" : "bin");
+                    Path file = dir.resolve(relative);
+                    Files.createDirectories(file.getParent());
+
+                    SplittableRandom random = new SplittableRandom(seed ^ (fileNumber * 0x9E3779B97F4A7C15L));
+                    long crc = writeFile(file, group.size, kind, random, text, block);
+                    manifest.write(relative + " " + group.size + " " + Long.toHexString(crc));
+                    manifest.newLine();
+                    total += group.size;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Reads a corpus manifest.
+     * 
+     * @param dir The corpus directory
+     * @return One entry per file: { relative path, size, CRC32 hex }
+     * @throws IOException if the manifest cannot be read
+     */
+    public static List<String[]> readManifest(Path dir) throws IOException {
+        List<String[]> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(dir.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                entries.add(line.split(" "));
+            }
+        }
+        return entries;
+    }
+
+    private static long writeFile(Path file, long size, int kind, SplittableRandom random, byte[] text,
+            ByteBuffer block) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int n = (int) Math.min(BLOCK_SIZE, remaining);
+                block.clear();
+                fillBlock(block, n, kind, random, text);
+                block.flip();
+                crc.update(block.duplicate());
+                while (block.hasRemaining()) {
+                    out.write(block);
+                }
+                remaining -= n;
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void fillBlock(ByteBuffer block, int n, int kind, SplittableRandom random, byte[] text) {
+        if (kind == 0) {
+            // A random window of the text pool
+            int offset = random.nextInt(text.length - BLOCK_SIZE);
+            block.put(text, offset, n);
+        } else if (kind == 1 || random.nextInt(4) == 0) {
+            // Random bytes: every binary block, and a quarter of sparse blocks
+            int i = 0;
+            for (; i + 8 <= n; i += 8) {
+                block.putLong(random.nextLong());
+            }
+            for (; i < n; i++) {
+                block.put((byte) random.nextInt());
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                block.put((byte) 0);
+            }
+        }
+    }
+
+    private static byte[] textPool(SplittableRandom random, int size) {
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CorpusGenerator dir tiny|medium|huge|mixed [scale] [seed]");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[0]);
+        double scale = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+
+        long start = System.nanoTime();
+        long bytes = generate(dir, profile(args[1], scale), seed);
+        System.err.printf("Generated %.1f MB in %.1f s at %s%n", bytes / 1e6, (System.nanoTime() - start) / 1e9,
+                dir.toAbsolutePath());
+    }
+}
@@ -0,0 +1,646 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKey;
+import cryptify.core.BatchJob;
+import cryptify.core.BatchJournal;
+import cryptify.core.Cipher;
+import cryptify.core.CipherFactory;
+import cryptify.core.CryptoHelper;
+import cryptify.core.DeltaSync;
+import cryptify.core.FileHeaderUtil;
+import cryptify.core.FormatMigration;
+import cryptify.core.HostProfile;
+import cryptify.core.IntegrityTree;
+import cryptify.core.IoThrottle;
+import cryptify.core.KeyRing;
+import cryptify.core.MemoryBudget;
+import cryptify.core.SearchIndex;
+import cryptify.core.StripedVolumes;
+
+/**
+ * Command-line entry point for use in shell pipelines, e.g.
+ * tar c dir | cryptify encrypt --cipher aes | ssh host 'cat > dir.tar.enc'
+ * 
+ * encrypt reads plaintext from stdin and writes the normal ENCR-headered
+ * format to stdout; decrypt does the reverse. The stream format never needs
+ * the total length (AES frames carry their own length and a final-frame
+ * flag), so both directions run in constant memory over pipes and sockets.
+ * A truncated or tampered AES stream makes decrypt fail with exit code 1
+ * after emitting only authenticated data.
+ * 
+ * With --in-place FILE, a Caesar or XOR file is encrypted where it is, with
+ * the header in a trailer, so even huge files need no extra disk space.
+ * With --integrity FILE, it is encrypted with a keyed Merkle tree appended,
+ * and verify FILE checks it in parallel and lists any damaged byte ranges.
+ * 
+ * The password comes from --password-file or the CRYPTIFY_PASSWORD
+ * environment variable, since stdin carries the data.
+ * 
+ * --max-rate MB and --max-iops N limit file reads and writes of a long run
+ * (e.g. --in-place on a busy server) to MB per second and operations per
+ * second. While it runs, the limits can be changed over JMX
+ * (cryptify:type=IoThrottle), e.g. with jconsole. --memory-budget MB caps
+ * the buffers held at once; work waits for memory instead of failing.
+ * 
+ * index DIR adds the .txt files of a tree that are new or changed to the
+ * encrypted search index (~/.cryptify/search.idx unless --index says
+ * otherwise); search WORDS lists the files that contain all the words,
+ * decrypting only the index and matches that changed since.
+ * 
+ * batch encrypt|decrypt PATH... processes files and directory trees as one
+ * resumable job, recorded in a journal (~/.cryptify/batch.journal unless
+ * --journal says otherwise). If the run is killed or files fail, the
+ * journal stays and resume continues where it stopped: finished files are
+ * skipped and a partly written file goes on from its last checkpoint.
+ * abandon drops such a job instead, deleting its journal and its part
+ * files (which hold plaintext while decrypting).
+ * 
+ * stripe FILE DIR... encrypts a copy of a file into volumes spread
+ * round-robin over the directories, written in parallel (one directory per
+ * disk makes the disks' bandwidth add up); unstripe MANIFEST OUTPUT reads
+ * them back in parallel.
+ * 
+ * Design Pattern: Command - each sub-command is one method
+ */
+public class CryptifyCli {
+
+    private static final String USAGE = "Usage:\n"
+            + "  cryptify encrypt [--cipher aes|xor|caesar] [--password-file FILE] < plain > encrypted\n"
+            + "  cryptify decrypt [--password-file FILE] < encrypted > plain\n"
+            + "  cryptify encrypt --cipher xor|caesar --in-place FILE\n"
+            + "  cryptify encrypt --cipher xor|caesar --integrity FILE\n"
+            + "  cryptify decrypt --in-place FILE\n"
+            + "  cryptify verify [--password-file FILE] FILE\n"
+            + "  cryptify sync SOURCE_DIR TARGET_DIR [--threads N] [--delete] [--checksum]\n"
+            + "  cryptify migrate DIR [--threads N] [--trust-key] [--password-file FILE]\n"
+            + "  cryptify batch encrypt|decrypt FILE_OR_DIR... [--cipher aes|xor|caesar] [--journal FILE]\n"
+            + "  cryptify resume|abandon [--journal FILE]\n"
+            + "  cryptify index DIR [--index FILE] [--password-file FILE]\n"
+            + "  cryptify search WORD... [--index FILE] [--password-file FILE]\n"
+            + "  cryptify stripe FILE DIR... [--volumes N | --volume-size MB] [--cipher aes|xor|caesar]"
+            + " [--threads N]\n"
+            + "  cryptify unstripe MANIFEST OUTPUT [--threads N]\n"
+            + "  cryptify serve [port] [threads]\n"
+            + "File commands also take --max-rate MB_PER_SECOND, --max-iops OPERATIONS_PER_SECOND\n"
+            + "and --memory-budget MB.\n"
+            + "The password is read from --password-file or CRYPTIFY_PASSWORD.";
+    private static final List<String> VALUE_OPTIONS = Arrays.asList("--cipher", "--password-file", "--in-place",
+            "--integrity", "--threads", "--index", "--volumes", "--volume-size", "--max-rate", "--max-iops",
+            "--memory-budget", "--journal");
+    private static final int PROGRESS_SECONDS = 10;
+    // Commands whose worker count comes from the host profile
+    private static final List<String> PARALLEL_COMMANDS = Arrays.asList("sync", "migrate", "verify", "stripe",
+            "unstripe");
+
+    /**
+     * Checks if the arguments ask for a command-line mode rather than the GUI.
+     * 
+     * @param args Program arguments
+     * @return true if the first argument is a known command
+     */
+    public static boolean isCommand(String[] args) {
+        if (args.length == 0) {
+            return false;
+        }
+        switch (args[0]) {
+            case "encrypt":
+            case "decrypt":
+            case "verify":
+            case "migrate":
+            case "batch":
+            case "resume":
+            case "abandon":
+            case "index":
+            case "search":
+            case "stripe":
+            case "unstripe":
+            case "sync":
+            case "serve":
+            case "help":
+            case "--help":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("serve")) {
+            // The server keeps running on its own threads
+            String[] serverArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, serverArgs, 0, serverArgs.length);
+            CryptifyServer.main(serverArgs);
+            return;
+        }
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs a pipe command (everything except serve).
+     * 
+     * @param args Command and options
+     * @return Process exit code: 0 on success, 1 on failure, 2 on bad usage
+     */
+    public static int run(String[] args) {
+        if (args.length == 0 || args[0].equals("help") || args[0].equals("--help")) {
+            System.err.println(USAGE);
+            return args.length == 0 ? 2 : 0;
+        }
+
+        try {
+            // Before the limits, so that --memory-budget overrides the profile's
+            installHostProfile(PARALLEL_COMMANDS.contains(args[0]));
+            applyLimits(args);
+            switch (args[0]) {
+                case "encrypt":
+                    return encrypt(args);
+                case "decrypt":
+                    return decrypt(args);
+                case "verify":
+                    return verify(args);
+                case "sync":
+                    return sync(args);
+                case "migrate":
+                    return migrate(args);
+                case "batch":
+                    return batch(args);
+                case "resume":
+                    return resume(args);
+                case "abandon":
+                    return abandon(args);
+                case "index":
+                    return index(args);
+                case "search":
+                    return search(args);
+                case "stripe":
+                    return stripe(args);
+                case "unstripe":
+                    return unstripe(args);
+                default:
+                    System.err.println("Unknown command: " + args[0] + "\n" + USAGE);
+                    return 2;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("cryptify: " + e.getMessage() + "\n" + USAGE);
+            return 2;
+        } catch (Exception e) {
+            System.err.println("cryptify: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static int encrypt(String[] args) throws Exception {
+        String cipher = option(args, "--cipher");
+        byte cipherType = CipherFactory.parseCipherType(cipher == null ? "aes" : cipher);
+        SecretKey key = readKey(args);
+
+        String file = option(args, "--in-place");
+        if (file != null) {
+            CryptoHelper.encryptFileInPlace(new File(file), key, cipherType);
+            return 0;
+        }
+        file = option(args, "--integrity");
+        if (file != null) {
+            CryptoHelper.encryptFile(new File(file), key, cipherType, true);
+            return 0;
+        }
+
+        InputStream in = new FileInputStream(FileDescriptor.in);
+        OutputStream out = standardOutput();
+        CryptoHelper.encryptStream(in, out, key, cipherType);
+        out.close();
+        return 0;
+    }
+
+    private static int decrypt(String[] args) throws Exception {
+        SecretKey key = readKey(args);
+
+        String file = option(args, "--in-place");
+        if (file != null) {
+            CryptoHelper.decryptFile(new File(file), key);
+            return 0;
+        }
+
+        InputStream in = new FileInputStream(FileDescriptor.in);
+        OutputStream out = standardOutput();
+        try {
+            CryptoHelper.decryptStream(in, out, key);
+        } finally {
+            // Hand over whatever was authenticated, even on failure
+            out.close();
+        }
+        return 0;
+    }
+
+    /**
+     * Checks a file with an integrity tree and lists its damaged ranges.
+     */
+    private static int verify(String[] args) throws Exception {
+        String file = args[args.length - 1];
+        if (args.length < 2 || file.startsWith("--") || file.equals(option(args, "--password-file"))) {
+            throw new IllegalArgumentException("verify needs a file");
+        }
+        List<long[]> damaged = IntegrityTree.verify(new File(file), readKey(args),
+                HostProfile.current().getWorkerCount());
+        if (!damaged.isEmpty()) {
+            System.err.println("cryptify: " + IntegrityTree.describe(damaged));
+            return 1;
+        }
+        System.err.println(file + ": OK");
+        return 0;
+    }
+
+    /**
+     * Mirrors one directory tree into another, writing only changed chunks.
+     * Works on the encrypted files as they are, so no password is needed.
+     */
+    private static int sync(String[] args) throws Exception {
+        if (args.length < 3 || args[1].startsWith("--") || args[2].startsWith("--")) {
+            throw new IllegalArgumentException("sync needs a source and a target directory");
+        }
+        String threads = option(args, "--threads");
+        DeltaSync sync = new DeltaSync(Paths.get(args[1]), Paths.get(args[2]),
+                threads != null ? Integer.parseInt(threads) : HostProfile.current().getWorkerCount());
+        sync.setDeleteExtraneous(flag(args, "--delete"));
+        sync.setAlwaysCompare(flag(args, "--checksum"));
+
+        DeltaSync.Report report = sync.run();
+        for (String failure : report.failures) {
+            System.err.println("cryptify: " + failure);
+        }
+        System.err.println(report);
+        return report.failures.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Installs the saved host profile. Commands that run many workers
+     * calibrate one if there is none yet, which takes a few seconds once.
+     * 
+     * @param calibrate Whether to calibrate when no profile is saved
+     */
+    private static void installHostProfile(boolean calibrate) {
+        try {
+            HostProfile profile = calibrate ? HostProfile.loadOrCalibrate(HostProfile.defaultLocation())
+                    : HostProfile.loadSaved(HostProfile.defaultLocation());
+            if (profile != null) {
+                HostProfile.install(profile);
+            }
+        } catch (Exception e) {
+            System.err.println("cryptify: calibration failed, using defaults: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the shared I/O throttle from --max-rate and --max-iops, and the
+     * memory budget from --memory-budget.
+     */
+    private static void applyLimits(String[] args) {
+        String rate = option(args, "--max-rate");
+        String operations = option(args, "--max-iops");
+        String memory = option(args, "--memory-budget");
+        try {
+            if (rate != null) {
+                IoThrottle.shared().setBytesPerSecond((long) (Double.parseDouble(rate) * 1024 * 1024));
+            }
+            if (operations != null) {
+                IoThrottle.shared().setOperationsPerSecond(Long.parseLong(operations));
+            }
+            if (memory != null) {
+                MemoryBudget.shared().setLimit(Long.parseLong(memory) * 1024 * 1024);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--max-rate, --max-iops and --memory-budget need a number");
+        }
+    }
+
+    /**
+     * Upgrades all legacy-format files of a tree, printing the progress and
+     * conversion rate every PROGRESS_SECONDS.
+     */
+    private static int migrate(String[] args) throws Exception {
+        if (args.length < 2 || args[1].startsWith("--")) {
+            throw new IllegalArgumentException("migrate needs a directory");
+        }
+        String threads = option(args, "--threads");
+        FormatMigration migration = new FormatMigration(Paths.get(args[1]), new KeyRing(readKey(args)),
+                threads != null ? Integer.parseInt(threads) : HostProfile.current().getWorkerCount());
+        // Only with a known-good password: Caesar and XOR cannot detect a wrong one
+        migration.setTrustKey(flag(args, "--trust-key"));
+
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cryptify-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> System.err.println(migration.getReport()), PROGRESS_SECONDS,
+                PROGRESS_SECONDS, TimeUnit.SECONDS);
+        FormatMigration.Report report;
+        try {
+            report = migration.run();
+        } finally {
+            progress.shutdownNow();
+        }
+
+        for (String failure : report.failures) {
+            System.err.println("cryptify: " + failure);
+        }
+        System.err.println(report);
+        return report.failures.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Starts a resumable job over the files given and the files of the
+     * directories given.
+     */
+    private static int batch(String[] args) throws Exception {
+        List<String> operands = operands(args);
+        if (operands.size() < 2 || !(operands.get(0).equals("encrypt") || operands.get(0).equals("decrypt"))) {
+            throw new IllegalArgumentException("batch needs encrypt or decrypt and at least one file or directory");
+        }
+        Path journal = journalLocation(args);
+        if (Files.exists(journal)) {
+            throw new IOException("An unfinished batch is recorded in " + journal
+                    + "; finish it with resume or drop it with abandon");
+        }
+        SecretKey key = readKey(args);
+        List<File> files = new ArrayList<>();
+        for (String operand : operands.subList(1, operands.size())) {
+            try (Stream<Path> walk = Files.walk(Paths.get(operand))) {
+                walk.filter(path -> Files.isRegularFile(path) && !BatchJob.isPartFile(path))
+                        .forEach(path -> files.add(path.toFile()));
+            }
+        }
+        String cipher = option(args, "--cipher");
+        boolean encrypting = operands.get(0).equals("encrypt");
+        BatchJob job = BatchJob.create(journal, files,
+                encrypting ? BatchJournal.MODE_ENCRYPT : BatchJournal.MODE_DECRYPT,
+                CipherFactory.parseCipherType(cipher == null ? "aes" : cipher));
+        return runBatch(job, key);
+    }
+
+    /**
+     * Continues the job recorded in a journal, e.g. after a crash.
+     */
+    private static int resume(String[] args) throws Exception {
+        SecretKey key = readKey(args);
+        return runBatch(BatchJob.resume(journalLocation(args)), key);
+    }
+
+    /**
+     * Drops the job recorded in a journal, deleting the part files it left.
+     */
+    private static int abandon(String[] args) throws Exception {
+        Path journal = journalLocation(args);
+        if (!Files.exists(journal)) {
+            throw new IOException("No unfinished batch is recorded in " + journal);
+        }
+        int deleted = BatchJob.abandon(journal);
+        System.err.println("Batch dropped; " + deleted + " part files deleted");
+        return 0;
+    }
+
+    /**
+     * Runs a batch job, printing failures as they happen and the progress
+     * every PROGRESS_SECONDS.
+     */
+    private static int runBatch(BatchJob job, SecretKey key) throws Exception {
+        int total = job.getFiles().size();
+        AtomicInteger finished = new AtomicInteger();
+        job.setListener((file, status, bytes, error) -> {
+            finished.incrementAndGet();
+            if (error != null) {
+                System.err.println("cryptify: " + file + ": " + error.getMessage());
+            }
+        });
+
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cryptify-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> System.err.println(finished.get() + " files processed, "
+                + total + " in the batch"), PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+        BatchJob.Result result;
+        try {
+            result = job.run(key);
+        } finally {
+            progress.shutdownNow();
+        }
+
+        System.err.println(result);
+        if (result.failed > 0) {
+            System.err.println("The journal was kept; run resume to retry the failed files, or abandon to drop "
+                    + "the job");
+            return 1;
+        }
+        return 0;
+    }
+
+    private static Path journalLocation(String[] args) {
+        String location = option(args, "--journal");
+        return location != null ? Paths.get(location) : BatchJob.defaultJournal();
+    }
+
+    /**
+     * Indexes the .txt files of a tree that are not indexed as they are now.
+     */
+    private static int index(String[] args) throws Exception {
+        if (args.length < 2 || args[1].startsWith("--")) {
+            throw new IllegalArgumentException("index needs a directory");
+        }
+        KeyRing keys = new KeyRing(readKey(args));
+        SearchIndex index = openSearchIndex(args, keys);
+        int added = 0;
+        int current = 0;
+        int failed = 0;
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(Paths.get(args[1]))) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        try {
+            for (Path path : files) {
+                File file = path.toFile();
+                if (!SearchIndex.isIndexable(file)) {
+                    continue;
+                }
+                if (index.isCurrent(file)) {
+                    current++;
+                    continue;
+                }
+                try {
+                    index.index(file, FileHeaderUtil.isEncryptedFile(file) ? keys.keyFor(file) : null);
+                    added++;
+                } catch (Exception e) {
+                    System.err.println("cryptify: " + file + ": " + e.getMessage());
+                    failed++;
+                }
+            }
+        } finally {
+            index.close();
+        }
+        System.err.println(added + " files indexed, " + current + " already current, " + failed + " failed");
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Prints the files that contain every word given, one per line.
+     */
+    private static int search(String[] args) throws Exception {
+        List<String> words = operands(args);
+        if (words.isEmpty()) {
+            throw new IllegalArgumentException("search needs at least one word");
+        }
+        KeyRing keys = new KeyRing(readKey(args));
+        SearchIndex index = openSearchIndex(args, keys);
+        List<File> found;
+        try {
+            found = index.search(String.join(" ", words), keys);
+        } finally {
+            index.close();
+        }
+        for (File file : found) {
+            System.out.println(file);
+        }
+        return 0;
+    }
+
+    /**
+     * Encrypts a copy of a file into volumes over one or more directories.
+     */
+    private static int stripe(String[] args) throws Exception {
+        List<String> operands = operands(args);
+        if (operands.size() < 2) {
+            throw new IllegalArgumentException("stripe needs a file and at least one directory");
+        }
+        File file = new File(operands.get(0));
+        List<Path> targets = new ArrayList<>();
+        for (String dir : operands.subList(1, operands.size())) {
+            targets.add(Paths.get(dir));
+        }
+        String cipher = option(args, "--cipher");
+        String volumes = option(args, "--volumes");
+        String volumeSize = option(args, "--volume-size");
+        String threads = option(args, "--threads");
+        long size;
+        if (volumeSize != null) {
+            // Rounded up to whole chunks, as every volume but the last must be
+            size = StripedVolumes.volumeSizeFor(Long.parseLong(volumeSize) * 1024 * 1024, 1);
+        } else {
+            size = StripedVolumes.volumeSizeFor(file.length(),
+                    volumes != null ? Integer.parseInt(volumes) : targets.size());
+        }
+
+        StripedVolumes set = StripedVolumes.encrypt(file, readKey(args),
+                CipherFactory.parseCipherType(cipher == null ? "aes" : cipher), size, targets,
+                threads != null ? Integer.parseInt(threads) : StripedVolumes.defaultThreads(targets));
+        System.err.println(set.getVolumes().size() + " volumes of " + (size >> 20) + " MB");
+        System.out.println(set.getManifest());
+        return 0;
+    }
+
+    /**
+     * Decrypts a volume set into one file.
+     */
+    private static int unstripe(String[] args) throws Exception {
+        List<String> operands = operands(args);
+        if (operands.size() != 2) {
+            throw new IllegalArgumentException("unstripe needs a manifest and an output file");
+        }
+        StripedVolumes set = StripedVolumes.open(Paths.get(operands.get(0)));
+        String threads = option(args, "--threads");
+        set.decrypt(new File(operands.get(1)), readKey(args),
+                threads != null ? Integer.parseInt(threads) : StripedVolumes.defaultThreads(set.getDirectories()));
+        return 0;
+    }
+
+    private static SearchIndex openSearchIndex(String[] args, KeyRing keys) throws Exception {
+        String location = option(args, "--index");
+        return new SearchIndex(location != null ? Paths.get(location) : SearchIndex.defaultLocation(),
+                keys.getActiveKey());
+    }
+
+    /**
+     * Gets stdout without PrintStream, which would swallow write errors
+     * such as a closed pipe.
+     */
+    private static OutputStream standardOutput() {
+        return new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), Cipher.STREAM_CHUNK_SIZE);
+    }
+
+    private static SecretKey readKey(String[] args) throws Exception {
+        String password;
+        String passwordFile = option(args, "--password-file");
+        if (passwordFile != null) {
+            password = new String(Files.readAllBytes(Paths.get(passwordFile)), StandardCharsets.UTF_8).trim();
+        } else {
+            password = System.getenv("CRYPTIFY_PASSWORD");
+        }
+
+        if (password == null || password.isEmpty()) {
+            throw new IllegalArgumentException("No password: use --password-file or set CRYPTIFY_PASSWORD");
+        }
+        return CryptoHelper.deriveKey(password);
+    }
+
+    /**
+     * Gets the arguments after the command that are neither options nor
+     * option values.
+     */
+    private static List<String> operands(String[] args) {
+        List<String> operands = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (VALUE_OPTIONS.contains(args[i])) {
+                i++;
+            } else if (!args[i].startsWith("--")) {
+                operands.add(args[i]);
+            }
+        }
+        return operands;
+    }
+
+    /**
+     * Checks if a flag without a value is present.
+     */
+    private static boolean flag(String[] args, String name) {
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the value following an option, or null if it is absent.
+     */
+    private static String option(String[] args, String name) {
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals(name)) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(name + " needs a value");
+                }
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+}
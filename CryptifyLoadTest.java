@@ -0,0 +1,160 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import cryptify.core.CryptoHelper;
+
+/**
+ * Load-test harness for CryptifyServer.
+ * 
+ * Runs a fixed number of round trips (POST /encrypt, then POST /decrypt of
+ * the result) from several concurrent clients, checks that every round trip
+ * returns the original payload, and reports requests per second, throughput
+ * and latency percentiles.
+ * 
+ * Usage: CryptifyLoadTest [url] [clients] [roundTrips] [payloadBytes] [cipher]
+ * If url is "local", an in-process server is started on a free port with a
+ * throwaway password; otherwise the token is read from the file the server
+ * wrote. Latencies are of successful round trips only; failures are counted
+ * separately.
+ */
+public class CryptifyLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        String url = args.length > 0 ? args[0] : "local";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 400;
+        int payloadSize = args.length > 3 ? Integer.parseInt(args[3]) : 256 * 1024;
+        String cipher = args.length > 4 ? args[4] : "aes";
+
+        CryptifyServer server = null;
+        String token;
+        if (url.equals("local")) {
+            server = new CryptifyServer(0, CryptoHelper.deriveKey("load-test"), clients);
+            server.start();
+            url = "http://127.0.0.1:" + server.getPort();
+            token = server.getToken();
+        } else {
+            token = new String(Files.readAllBytes(CryptifyServer.defaultTokenLocation()), StandardCharsets.US_ASCII)
+                    .trim();
+        }
+
+        byte[] payload = new byte[payloadSize];
+        new SecureRandom().nextBytes(payload);
+
+        // Warm up the JIT and the connection pool before measuring
+        for (int i = 0; i < Math.min(20, roundTrips); i++) {
+            roundTrip(url, token, cipher, payload);
+        }
+
+        long[] latencies = new long[roundTrips * 2];
+        AtomicInteger recorded = new AtomicInteger();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<?>> workers = new ArrayList<>();
+
+        final String target = url;
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            workers.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < roundTrips) {
+                        try {
+                            long[] sample = roundTrip(target, token, cipher, payload);
+                            int slot = recorded.getAndAdd(2);
+                            latencies[slot] = sample[0];
+                            latencies[slot + 1] = sample[1];
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        if (server != null) {
+            server.stop(0);
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, recorded.get());
+        Arrays.sort(sorted);
+        int requests = roundTrips * 2;
+        System.out.printf("%d requests (%d clients, %d KiB %s payloads) in %.2f s%n",
+                requests, clients, payloadSize / 1024, cipher, seconds);
+        System.out.printf("  %.0f req/s, %.1f MB/s of plaintext each way%n",
+                requests / seconds, (double) roundTrips * payloadSize / 1e6 / seconds);
+        if (sorted.length > 0) {
+            System.out.printf("  latency ms: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f (%d successful round trips)%n",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    sorted[sorted.length - 1] / 1e6, sorted.length / 2);
+        }
+        System.out.println("  failed round trips: " + failures.get());
+        if (failures.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Encrypts and decrypts the payload.
+     * 
+     * @return The latencies of both requests, in nanoseconds
+     * @throws IOException if a request fails or the data comes back different
+     */
+    private static long[] roundTrip(String url, String token, String cipher, byte[] payload) throws IOException {
+        long start = System.nanoTime();
+        byte[] encrypted = post(url + "/encrypt?cipher=" + cipher, token, payload);
+        long middle = System.nanoTime();
+        byte[] decrypted = post(url + "/decrypt", token, encrypted);
+        long end = System.nanoTime();
+
+        if (!Arrays.equals(payload, decrypted)) {
+            throw new IOException("Round trip returned different data");
+        }
+        return new long[] { middle - start, end - middle };
+    }
+
+    private static byte[] post(String url, String token, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Authorization", "Bearer " + token);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("HTTP " + connection.getResponseCode());
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream(body.length + 1024);
+        try (InputStream in = connection.getInputStream()) {
+            in.transferTo(response);
+        }
+        return response.toByteArray();
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,447 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import cryptify.core.CipherFactory;
+import cryptify.core.CryptoHelper;
+import cryptify.core.FileHeaderUtil;
+import cryptify.core.HostProfile;
+
+/**
+ * Local encryption service over HTTP, for programs that cannot embed the
+ * JavaFX application.
+ * 
+ * Endpoints (bound to the loopback interface only):
+ * - POST /encrypt?cipher=aes|xor|caesar - body is plaintext, response is
+ *   the same headered format encryptFile writes (default cipher: AES)
+ * - POST /decrypt - body is headered ciphertext, response is plaintext
+ * 
+ * Every request must carry "Authorization: Bearer TOKEN", with a token made
+ * up for each run and written to ~/.cryptify/server.token, readable by the
+ * owner only; other users' processes cannot use the key. Requests whose
+ * Host header is not a loopback name, or that carry an Origin header, are
+ * refused, so a web page cannot reach the service through the browser,
+ * not even by pointing its own host name at 127.0.0.1 (DNS rebinding).
+ * 
+ * Request bodies are limited to maxBodyBytes, and bodies in the legacy
+ * format, whose AES blobs are decrypted in memory, to MAX_LEGACY_BODY_BYTES.
+ * 
+ * Bodies are streamed through the Cipher channels in both directions, so
+ * memory use per request is constant. Responses use chunked encoding; if
+ * decryption fails after the response has started (e.g. a tampered AES
+ * frame), the connection is dropped before the final chunk, so clients
+ * never mistake a partial body for a complete one.
+ * 
+ * The key is fixed for the lifetime of the server. Requests run on a
+ * bounded pool. When its queue is full, a request is handed to a single
+ * overflow thread that answers 503 with Retry-After without reading the
+ * body, and when that is behind too, the connection is closed. The
+ * accepting thread never runs a request itself, so one long upload cannot
+ * stop the service from accepting and dispatching others.
+ * 
+ * OOP Principles:
+ * - Composition: Delegates all crypto to CryptoHelper and Cipher
+ * - Encapsulation: HTTP details stay out of the cipher classes
+ */
+public class CryptifyServer {
+
+    public static final int DEFAULT_PORT = 8750;
+    public static final long DEFAULT_MAX_BODY_BYTES = 4L << 30;
+    public static final long MAX_LEGACY_BODY_BYTES = 64L << 20;
+    private static final int QUEUE_PER_THREAD = 16;
+    private static final int OVERFLOW_QUEUE = 256;
+    private static final int RETRY_AFTER_SECONDS = 1;
+    // Set on the overflow thread while it answers a request the pool had no room for
+    private static final ThreadLocal<Boolean> OVERFLOW = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private static final int TOKEN_BYTES = 32;
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor overflow;
+    private final SecretKey key;
+    private final String token;
+    private volatile long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+    /**
+     * Input that fails once more than a limit has been read from it.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            // One byte past the limit tells a body at the limit from a larger one
+            int n = super.read(bytes, offset, (int) Math.min(length, remaining + 1));
+            if (n > 0) {
+                remaining -= n;
+                if (remaining < 0) {
+                    throw new IOException("Request body is too large");
+                }
+            }
+            return n;
+        }
+
+        void limit(long limit) {
+            remaining = Math.min(remaining, limit);
+        }
+    }
+
+    /**
+     * Creates a server; call start() to accept requests.
+     * 
+     * @param port    Port on the loopback interface (0 picks a free port)
+     * @param key     The key used for every request
+     * @param threads Maximum number of requests processed at once
+     * @throws IOException if the port cannot be bound
+     */
+    public CryptifyServer(int port, SecretKey key, int threads) throws IOException {
+        this.key = key;
+        byte[] secret = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(secret);
+        this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD));
+        this.overflow = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(OVERFLOW_QUEUE));
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(exchange -> {
+            try {
+                executor.execute(exchange);
+            } catch (RejectedExecutionException e) {
+                // If the overflow queue is full too, this throws and the server closes the connection
+                overflow.execute(() -> {
+                    OVERFLOW.set(Boolean.TRUE);
+                    try {
+                        exchange.run();
+                    } finally {
+                        OVERFLOW.set(Boolean.FALSE);
+                    }
+                });
+            }
+        });
+
+        server.createContext("/encrypt", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleEncrypt(exchange);
+            }
+        });
+        server.createContext("/decrypt", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleDecrypt(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, lets running ones finish (up to the delay)
+     * and shuts the pool down.
+     * 
+     * @param delaySeconds Longest time to wait for running requests
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        overflow.shutdown();
+    }
+
+    /**
+     * Gets the port the server is bound to.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the token clients must send, made up when the server was created.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Limits the size of request bodies.
+     * 
+     * @param maxBodyBytes Largest body accepted, in bytes
+     */
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Gets where main() writes the token for clients to read.
+     * 
+     * @return ~/.cryptify/server.token
+     */
+    public static Path defaultTokenLocation() {
+        return Paths.get(System.getProperty("user.home"), ".cryptify", "server.token");
+    }
+
+    /**
+     * Writes the token to a file only the owner can read, replacing any
+     * token of an earlier run.
+     * 
+     * @param file Where to write it
+     * @throws IOException if it cannot be written
+     */
+    public void writeToken(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.deleteIfExists(file);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            // Created without access for others, so it is never readable by them
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file);
+        }
+        Files.write(file, token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void handleEncrypt(HttpExchange exchange) throws IOException {
+        if (OVERFLOW.get()) {
+            sendBusy(exchange);
+            return;
+        }
+        try (LimitedInputStream in = new LimitedInputStream(exchange.getRequestBody(), maxBodyBytes)) {
+            if (!checkMethod(exchange) || !checkAccess(exchange)) {
+                return;
+            }
+
+            byte cipherType;
+            try {
+                String cipher = queryParameter(exchange, "cipher");
+                cipherType = CipherFactory.parseCipherType(cipher == null ? "aes" : cipher);
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                CryptoHelper.encryptStream(in, out, key, cipherType);
+            } catch (Exception e) {
+                throw abort(e);
+            }
+            out.close();
+        }
+    }
+
+    private void handleDecrypt(HttpExchange exchange) throws IOException {
+        if (OVERFLOW.get()) {
+            sendBusy(exchange);
+            return;
+        }
+        try (LimitedInputStream in = new LimitedInputStream(exchange.getRequestBody(), maxBodyBytes)) {
+            if (!checkMethod(exchange) || !checkAccess(exchange)) {
+                return;
+            }
+
+            // Validate the header and key before committing to a 200 response
+            byte[] header;
+            try {
+                header = CryptoHelper.readStreamHeader(in);
+                CipherFactory.getCipherName(header[4]);
+            } catch (IOException | IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            try {
+                FileHeaderUtil.checkKey(header, key);
+            } catch (IOException e) {
+                sendError(exchange, 403, e.getMessage());
+                return;
+            }
+            if (header[5] == FileHeaderUtil.FORMAT_LEGACY) {
+                // Old AES blobs are held in memory whole
+                if (contentLength(exchange) > header.length + MAX_LEGACY_BODY_BYTES) {
+                    sendError(exchange, 413, "Bodies in the old format are limited to "
+                            + MAX_LEGACY_BODY_BYTES + " bytes");
+                    return;
+                }
+                in.limit(MAX_LEGACY_BODY_BYTES);
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                CryptoHelper.decryptStream(in, header, out, key);
+            } catch (Exception e) {
+                throw abort(e);
+            }
+            out.close();
+        }
+    }
+
+    private static boolean checkMethod(HttpExchange exchange) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", "POST");
+        sendError(exchange, 405, "Only POST is supported");
+        return false;
+    }
+
+    /**
+     * Checks the Host, Origin and Authorization headers, and answers the
+     * request with an error if they do not allow it.
+     * 
+     * @return Whether the request may go ahead
+     */
+    private boolean checkAccess(HttpExchange exchange) throws IOException {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null || !isLoopbackHost(host)) {
+            sendError(exchange, 403, "Host not allowed");
+            return false;
+        }
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            sendError(exchange, 403, "Requests from web pages are not allowed");
+            return false;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] expected = ("Bearer " + token).getBytes(StandardCharsets.US_ASCII);
+        if (authorization == null
+                || !MessageDigest.isEqual(expected, authorization.getBytes(StandardCharsets.US_ASCII))) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            sendError(exchange, 401, "Missing or wrong token (see " + defaultTokenLocation() + ")");
+            return false;
+        }
+        long length = contentLength(exchange);
+        if (length > maxBodyBytes) {
+            sendError(exchange, 413, "Request body is larger than " + maxBodyBytes + " bytes");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that a Host header names this machine's loopback interface
+     * and this server's port.
+     */
+    private boolean isLoopbackHost(String host) {
+        String name = host.toLowerCase(Locale.ROOT);
+        String port = ":" + getPort();
+        if (name.endsWith(port)) {
+            name = name.substring(0, name.length() - port.length());
+        }
+        return name.equals("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+    }
+
+    /**
+     * Answers a request the pool had no room for, without reading its body.
+     */
+    private static void sendBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        // The unread body is not worth draining to keep the connection
+        exchange.getResponseHeaders().set("Connection", "close");
+        sendError(exchange, 503, "Too many requests at once; retry later");
+    }
+
+    private static long contentLength(HttpExchange exchange) {
+        try {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            return length != null ? Long.parseLong(length.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Turns a failure after the response started into an exception that
+     * makes the server drop the connection without the final chunk.
+     */
+    private static IOException abort(Exception e) {
+        return e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return pair.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs the server until the process is stopped.
+     * Usage: CryptifyServer [port] [threads]
+     * The password is read from the CRYPTIFY_PASSWORD environment variable,
+     * so it never shows up in the process list.
+     */
+    public static void main(String[] args) throws Exception {
+        String password = System.getenv("CRYPTIFY_PASSWORD");
+        if (password == null || password.isEmpty()) {
+            System.err.println("Set CRYPTIFY_PASSWORD to the encryption password");
+            System.exit(2);
+        }
+
+        try {
+            HostProfile.install(HostProfile.loadOrCalibrate(HostProfile.defaultLocation()));
+        } catch (Exception e) {
+            System.err.println("Calibration failed, using defaults: " + e.getMessage());
+        }
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Math.max(4, HostProfile.current().getWorkerCount() * 2);
+
+        CryptifyServer server = new CryptifyServer(port, CryptoHelper.deriveKey(password), threads);
+        server.writeToken(defaultTokenLocation());
+        server.start();
+        System.err.println("Cryptify service listening on http://127.0.0.1:" + server.getPort()
+                + " with " + threads + " threads; token in " + defaultTokenLocation());
+    }
+}
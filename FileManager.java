@@ -3,6 +3,13 @@ import javafx.scene.control.ListView;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import java.io.File;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * File manager implementation.
@@ -10,24 +17,49 @@ import java.io.File;
  * OOP Principle: Interface Implementation
  * Benefit: Can be replaced with different implementation without changing
  * client code
+ * 
+ * The ObservableList drives the ListView, while a hashed, insertion-ordered
+ * index of normalized paths answers membership checks in O(1), so adding
+ * tens of thousands of files stays linear.
  */
 public class FileManager implements IFileManager {
 
     private ObservableList<String> fileList;
+    private final Set<String> index = new LinkedHashSet<>();
 
     /**
      * Constructor
      */
     public FileManager(ObservableList<String> fileList) {
         this.fileList = fileList;
+        for (String path : fileList) {
+            index.add(normalize(path));
+        }
     }
 
     /**
      * Adds a file to the list.
      */
     public void addFile(String filePath) {
-        if (!fileList.contains(filePath)) {
-            fileList.add(filePath);
+        String path = normalize(filePath);
+        if (index.add(path)) {
+            fileList.add(path);
+        }
+    }
+
+    /**
+     * Adds many files at once, firing a single list change event.
+     */
+    public void addAll(Collection<String> filePaths) {
+        List<String> added = new ArrayList<>();
+        for (String filePath : filePaths) {
+            String path = normalize(filePath);
+            if (index.add(path)) {
+                added.add(path);
+            }
+        }
+        if (!added.isEmpty()) {
+            fileList.addAll(added);
         }
     }
 
@@ -37,6 +69,7 @@ public class FileManager implements IFileManager {
     public void deleteSelected(ListView<String> listView) {
         String selectedItem = listView.getSelectionModel().getSelectedItem();
         if (selectedItem != null) {
+            index.remove(selectedItem);
             fileList.remove(selectedItem);
         } else {
             DialogHelper.showError("Selection Error", "Nothing selected to delete.");
@@ -47,6 +80,7 @@ public class FileManager implements IFileManager {
      * Clears all files from the list.
      */
     public void clearAll() {
+        index.clear();
         fileList.clear();
     }
 
@@ -68,6 +102,18 @@ public class FileManager implements IFileManager {
      * Checks if a file path is in the list.
      */
     public boolean isFileInList(String path) {
-        return fileList.contains(path);
+        return index.contains(normalize(path));
+    }
+
+    /**
+     * Normalizes a path so that different spellings of the same file share
+     * one index entry.
+     */
+    private static String normalize(String filePath) {
+        try {
+            return Paths.get(filePath).toAbsolutePath().normalize().toString();
+        } catch (InvalidPathException e) {
+            return filePath;
+        }
     }
 }
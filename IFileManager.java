@@ -1,5 +1,6 @@
 import javafx.scene.control.ListView;
 import javafx.stage.Stage;
+import java.util.Collection;
 
 /**
  * Interface for file management operations.
@@ -20,6 +21,13 @@ public interface IFileManager {
      */
     void addFile(String filePath);
 
+    /**
+     * Adds several files to the managed list in one update.
+     * 
+     * @param filePaths The absolute paths of the files
+     */
+    void addAll(Collection<String> filePaths);
+
     /**
      * Deletes the selected file from the list.
      * 
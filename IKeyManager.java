@@ -1,5 +1,6 @@
 import javafx.stage.Stage;
 import javax.crypto.SecretKey;
+import cryptify.core.KeyRing;
 
 /**
  * Interface for encryption key management.
@@ -19,6 +20,14 @@ public interface IKeyManager {
      */
     SecretKey getKey();
 
+    /**
+     * Gets all keys entered in this session. The current key is the
+     * ring's active key.
+     * 
+     * @return The session keyring
+     */
+    KeyRing getKeyRing();
+
     /**
      * Checks if an encryption key has been set.
      * 
@@ -38,6 +47,7 @@ public interface IKeyManager {
      * 
      * @param password The password to derive from
      * @return The derived SecretKey
+     * @throws Exception if the key cannot be derived
      */
-    SecretKey deriveKey(String password);
+    SecretKey deriveKey(String password) throws Exception;
 }
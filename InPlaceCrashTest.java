@@ -0,0 +1,261 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.crypto.SecretKey;
+import cryptify.core.CipherFactory;
+import cryptify.core.CryptoHelper;
+import cryptify.core.InPlaceTransform;
+
+/**
+ * Fault-injection harness for in-place encryption (InPlaceTransform).
+ * 
+ * Interrupts in-place encryption and decryption with Caesar and XOR after
+ * each durable step of a window (journal written, window written, trailer
+ * updated), in the first and the last window, then runs decryptFile() and
+ * checks that it restores the original bytes and removes the journal.
+ * 
+ * Torn window writes are simulated too: when interrupted right after the
+ * journal, the window is first left partly written, sector by sector
+ * (a prefix, and every other sector). A write torn inside a sector breaks
+ * the atomic sector write recovery relies on; recovery must then refuse
+ * the file and leave it untouched rather than transform it again.
+ * 
+ * Usage: InPlaceCrashTest [workDir]
+ * Exit code 1 if any case fails.
+ */
+public class InPlaceCrashTest {
+
+    private static final int SECTOR_SIZE = 512;
+    private static final byte[] CIPHERS = { 1, 2 };
+    private static final String[] STEPS = { InPlaceTransform.STEP_JOURNALED, InPlaceTransform.STEP_WRITTEN,
+            InPlaceTransform.STEP_COMMITTED };
+    // Over two windows, ending in a partial sector
+    private static final int FILE_SIZE = 40 * 1024 * 1024 + 123;
+
+    private static final int TEAR_NONE = 0;
+    private static final int TEAR_PREFIX = 1;
+    private static final int TEAR_ALTERNATE = 2;
+    private static final int TEAR_INSIDE_SECTOR = 3;
+
+    private final Path dir;
+    private final SecretKey key;
+    private final byte[] original;
+    private int passed;
+    private int failed;
+
+    /**
+     * The simulated crash.
+     */
+    private static class Interrupted extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        Interrupted(String step) {
+            super("Interrupted after " + step);
+        }
+    }
+
+    public InPlaceCrashTest(Path dir) throws Exception {
+        this.dir = dir;
+        this.key = CryptoHelper.deriveKey("crash-test");
+        this.original = new byte[FILE_SIZE];
+        new Random(42).nextBytes(original);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = args.length > 0 ? Paths.get(args[0]) : Files.createTempDirectory("cryptify-crash");
+        Files.createDirectories(dir);
+        InPlaceCrashTest test = new InPlaceCrashTest(dir);
+        try {
+            test.run();
+        } finally {
+            InPlaceTransform.setStepListener(null);
+        }
+        System.out.println(test.passed + " passed, " + test.failed + " failed");
+        System.exit(test.failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Runs every case for both ciphers and both directions.
+     */
+    public void run() throws Exception {
+        for (byte cipherType : CIPHERS) {
+            Path reference = dir.resolve("reference");
+            List<Long> windows = new ArrayList<>();
+            byte[] encrypted = encryptedBody(reference, cipherType, windows);
+            long[] targets = { windows.get(0), windows.get(windows.size() - 1) };
+
+            for (boolean encrypting : new boolean[] { true, false }) {
+                // What the interrupted pass writes into its windows
+                byte[] target = encrypting ? encrypted : original;
+                for (long window : targets) {
+                    for (String step : STEPS) {
+                        check(cipherType, encrypting, step, window, TEAR_NONE, target);
+                    }
+                    for (int tear : new int[] { TEAR_PREFIX, TEAR_ALTERNATE, TEAR_INSIDE_SECTOR }) {
+                        check(cipherType, encrypting, InPlaceTransform.STEP_JOURNALED, window, tear, target);
+                    }
+                }
+            }
+            Files.deleteIfExists(reference);
+        }
+    }
+
+    /**
+     * Encrypts a copy of the original in place without interruption.
+     * 
+     * @param windows Receives the body offset of every window
+     * @return The encrypted body (without the trailer)
+     */
+    private byte[] encryptedBody(Path reference, byte cipherType, List<Long> windows) throws Exception {
+        Files.write(reference, original);
+        InPlaceTransform.setStepListener((file, step, position, length) -> {
+            if (step.equals(InPlaceTransform.STEP_COMMITTED)) {
+                windows.add(position);
+            }
+        });
+        try {
+            CryptoHelper.encryptFileInPlace(reference.toFile(), key, cipherType);
+        } finally {
+            InPlaceTransform.setStepListener(null);
+        }
+        return Arrays.copyOf(Files.readAllBytes(reference), FILE_SIZE);
+    }
+
+    /**
+     * Runs one case and records whether it passed.
+     */
+    private void check(byte cipherType, boolean encrypting, String step, long window, int tear, byte[] target) {
+        String name = CipherFactory.getCipherName(cipherType) + " " + (encrypting ? "encrypt" : "decrypt")
+                + ", window at " + window + ", after " + step + tearName(tear);
+        Path path = dir.resolve("case");
+        try {
+            String problem = runCase(path.toFile(), cipherType, encrypting, step, window, tear, target);
+            if (problem == null) {
+                passed++;
+                System.out.println("PASS " + name);
+            } else {
+                failed++;
+                System.out.println("FAIL " + name + ": " + problem);
+            }
+        } catch (Exception e) {
+            failed++;
+            System.out.println("FAIL " + name + ": " + e);
+        } finally {
+            InPlaceTransform.setStepListener(null);
+            try {
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(journalOf(path));
+            } catch (IOException e) {
+                System.out.println("Could not clean up " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Interrupts a pass over the file and recovers it.
+     * 
+     * @return What went wrong, or null if the case passed
+     */
+    private String runCase(File file, byte cipherType, boolean encrypting, String step, long window, int tear,
+            byte[] target) throws Exception {
+        Files.write(file.toPath(), original);
+        if (!encrypting) {
+            CryptoHelper.encryptFileInPlace(file, key, cipherType);
+        }
+
+        InPlaceTransform.setStepListener((changed, reached, position, length) -> {
+            if (changed.equals(file) && reached.equals(step) && position == window) {
+                tearWindow(changed, position, length, tear, target);
+                throw new Interrupted(step);
+            }
+        });
+        try {
+            if (encrypting) {
+                CryptoHelper.encryptFileInPlace(file, key, cipherType);
+            } else {
+                CryptoHelper.decryptFile(file, key);
+            }
+            return "the pass was not interrupted";
+        } catch (Interrupted e) {
+            // The simulated crash
+        } finally {
+            InPlaceTransform.setStepListener(null);
+        }
+
+        byte[] crashed = Files.readAllBytes(file.toPath());
+        try {
+            CryptoHelper.decryptFile(file, key);
+        } catch (IOException e) {
+            if (tear != TEAR_INSIDE_SECTOR) {
+                throw e;
+            }
+            return Arrays.equals(crashed, Files.readAllBytes(file.toPath())) ? null
+                    : "a refused file was changed";
+        }
+        if (tear == TEAR_INSIDE_SECTOR) {
+            return "a write torn inside a sector was not refused";
+        }
+        if (!Arrays.equals(original, Files.readAllBytes(file.toPath()))) {
+            return "the original bytes were not restored";
+        }
+        if (Files.exists(journalOf(file.toPath()))) {
+            return "the journal was left behind";
+        }
+        return null;
+    }
+
+    /**
+     * Leaves part of a window written, as a crash in the middle of the
+     * window write would.
+     */
+    private static void tearWindow(File file, long position, int length, int tear, byte[] target)
+            throws IOException {
+        if (tear == TEAR_NONE) {
+            return;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            int sectors = (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            for (int sector = 0; sector < sectors; sector++) {
+                boolean written = tear == TEAR_PREFIX ? sector < sectors / 2
+                        : tear == TEAR_ALTERNATE ? sector % 2 == 0 : sector == sectors / 2;
+                if (written) {
+                    long offset = position + (long) sector * SECTOR_SIZE;
+                    int size = Math.min(SECTOR_SIZE, length - sector * SECTOR_SIZE);
+                    if (tear == TEAR_INSIDE_SECTOR) {
+                        // Only the first half of the sector reached the disk
+                        size = Math.max(1, size / 2);
+                    }
+                    out.seek(offset);
+                    out.write(target, (int) offset, size);
+                }
+            }
+            out.getFD().sync();
+        }
+    }
+
+    private static String tearName(int tear) {
+        switch (tear) {
+            case TEAR_PREFIX:
+                return ", window written halfway";
+            case TEAR_ALTERNATE:
+                return ", every other sector written";
+            case TEAR_INSIDE_SECTOR:
+                return ", one sector torn";
+            default:
+                return "";
+        }
+    }
+
+    private static Path journalOf(Path file) {
+        Path path = file.toAbsolutePath();
+        return path.resolveSibling("." + path.getFileName() + ".inplace");
+    }
+}
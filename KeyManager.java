@@ -8,9 +8,8 @@ import javafx.scene.control.PasswordField;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import cryptify.core.CryptoHelper;
+import cryptify.core.KeyRing;
 
 /**
  * Key manager implementation.
@@ -20,14 +19,22 @@ import java.security.MessageDigest;
  */
 public class KeyManager implements IKeyManager {
 
-    private SecretKey secretKey;
+    private final KeyRing keyRing = new KeyRing();
 
     /**
-     * Gets the current encryption key.
+     * Gets the current encryption key (the last one entered).
      */
     @Override
     public SecretKey getKey() {
-        return secretKey;
+        return keyRing.getActiveKey();
+    }
+
+    /**
+     * Gets every key entered in this session.
+     */
+    @Override
+    public KeyRing getKeyRing() {
+        return keyRing;
     }
 
     /**
@@ -35,22 +42,15 @@ public class KeyManager implements IKeyManager {
      */
     @Override
     public boolean hasKey() {
-        return secretKey != null;
+        return !keyRing.isEmpty();
     }
 
     /**
      * Derives an AES key from a password using SHA-256.
      */
     @Override
-    public SecretKey deriveKey(String password) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
-            return new SecretKeySpec(hash, "AES");
-        } catch (Exception e) {
-            DialogHelper.showError("Key Error", "Could not derive key: " + e.getMessage());
-            return null;
-        }
+    public SecretKey deriveKey(String password) throws Exception {
+        return CryptoHelper.deriveKey(password);
     }
 
     /**
@@ -63,7 +63,9 @@ public class KeyManager implements IKeyManager {
         VBox keyBox = new VBox(10);
         keyBox.setAlignment(Pos.CENTER);
 
-        Label keyLabel = new Label("Enter Encryption Key:");
+        // Earlier keys stay available for decrypting files encrypted with them
+        Label keyLabel = new Label(keyRing.isEmpty() ? "Enter Encryption Key:"
+                : "Enter Encryption Key (" + keyRing.size() + " already in this session):");
         PasswordField keyField = new PasswordField();
         keyField.setMaxWidth(200);
 
@@ -75,9 +77,11 @@ public class KeyManager implements IKeyManager {
                 if (rawKey.isEmpty()) {
                     DialogHelper.showError("Invalid Key", "Encryption key cannot be empty!");
                 } else {
-                    secretKey = deriveKey(rawKey);
-                    if (secretKey != null) {
+                    try {
+                        keyRing.add(deriveKey(rawKey));
                         keyStage.close();
+                    } catch (Exception e) {
+                        DialogHelper.showError("Key Error", "Could not derive key: " + e.getMessage());
                     }
                 }
             }
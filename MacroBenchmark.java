@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKey;
+import cryptify.core.BufferPool;
+import cryptify.core.CipherFactory;
+import cryptify.core.CryptoHelper;
+import cryptify.core.HostProfile;
+
+/**
+ * End-to-end benchmark over a corpus made by CorpusGenerator.
+ * 
+ * Runs three phases through the public entry points, each over every file
+ * of the corpus: encrypt (CryptoHelper.encryptFile), decrypt
+ * (CryptoHelper.decryptFile) and verify (CRC32 against the manifest). The
+ * corpus is back in its original state afterwards.
+ * 
+ * For each phase it records files/s, MB/s, GC time and count, and peak RSS
+ * (Linux only; reset between phases through /proc/self/clear_refs). Results
+ * are written as a properties file, which can later be passed back as the
+ * baseline: any throughput that drops, or peak RSS that grows, by more than
+ * the threshold is reported as a regression and the exit code is 3.
+ * 
+ * Usage: MacroBenchmark corpusDir [--cipher aes] [--threads N]
+ * [--out results.properties] [--baseline old.properties] [--threshold 0.10]
+ */
+public class MacroBenchmark {
+
+    private static final String[] PHASES = { "encrypt", "decrypt", "verify" };
+
+    private final List<String[]> manifest;
+    private final Path corpus;
+    private final SecretKey key;
+    private final byte cipherType;
+    private final int threads;
+
+    public MacroBenchmark(Path corpus, SecretKey key, byte cipherType, int threads) throws IOException {
+        this.corpus = corpus;
+        this.manifest = CorpusGenerator.readManifest(corpus);
+        this.key = key;
+        this.cipherType = cipherType;
+        this.threads = threads;
+    }
+
+    /**
+     * Runs all phases.
+     * 
+     * @return The results, ready to store
+     * @throws Exception if a phase fails on any file
+     */
+    public Properties run() throws Exception {
+        long bytes = 0;
+        for (String[] entry : manifest) {
+            bytes += Long.parseLong(entry[1]);
+        }
+
+        Properties results = new Properties();
+        results.setProperty("corpus.files", Integer.toString(manifest.size()));
+        results.setProperty("corpus.bytes", Long.toString(bytes));
+        results.setProperty("cipher", CipherFactory.getCipherName(cipherType));
+        results.setProperty("threads", Integer.toString(threads));
+        results.setProperty("java.version", System.getProperty("java.version"));
+
+        for (String phase : PHASES) {
+            long gcMillis = gcMillis();
+            long gcCount = gcCount();
+            resetPeakRss();
+            long start = System.nanoTime();
+
+            runPhase(phase);
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            results.setProperty(phase + ".seconds", format(seconds));
+            results.setProperty(phase + ".filesPerSec", format(manifest.size() / seconds));
+            results.setProperty(phase + ".mbPerSec", format(bytes / 1e6 / seconds));
+            results.setProperty(phase + ".gcMillis", Long.toString(gcMillis() - gcMillis));
+            results.setProperty(phase + ".gcCount", Long.toString(gcCount() - gcCount));
+            results.setProperty(phase + ".peakRssMB", format(peakRssKB() / 1024.0));
+        }
+        return results;
+    }
+
+    /**
+     * Processes every file of the corpus on the worker threads.
+     */
+    private void runPhase(String phase) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        List<Exception> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < manifest.size()) {
+                    String[] entry = manifest.get(i);
+                    try {
+                        processFile(phase, corpus.resolve(entry[0]), entry);
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(new IOException(entry[0] + ": " + e.getMessage(), e));
+                        }
+                    }
+                }
+            }, "benchmark-" + phase + "-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw new Exception(phase + " failed on " + errors.size() + " files, first: "
+                    + errors.get(0).getMessage(), errors.get(0));
+        }
+    }
+
+    private void processFile(String phase, Path file, String[] entry) throws Exception {
+        switch (phase) {
+            case "encrypt":
+                CryptoHelper.encryptFile(file.toFile(), key, cipherType);
+                break;
+            case "decrypt":
+                CryptoHelper.decryptFile(file.toFile(), key);
+                break;
+            default:
+                if (Long.parseLong(entry[2], 16) != crc32(file) || Files.size(file) != Long.parseLong(entry[1])) {
+                    throw new IOException("Contents differ from the original");
+                }
+        }
+    }
+
+    private static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = BufferPool.shared().acquire(HostProfile.current().getChunkSize());
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Compares results with a baseline.
+     * 
+     * @param results   This run
+     * @param baseline  An earlier run
+     * @param threshold Allowed relative change, e.g. 0.10
+     * @return Descriptions of the regressions found (empty if none)
+     */
+    public static List<String> compare(Properties results, Properties baseline, double threshold) {
+        List<String> regressions = new ArrayList<>();
+        for (String name : new TreeSet<>(results.stringPropertyNames())) {
+            String old = baseline.getProperty(name);
+            boolean higherIsBetter = name.endsWith(".filesPerSec") || name.endsWith(".mbPerSec");
+            boolean lowerIsBetter = name.endsWith(".peakRssMB");
+            if (old == null || !(higherIsBetter || lowerIsBetter)) {
+                continue;
+            }
+
+            double before = Double.parseDouble(old);
+            double now = Double.parseDouble(results.getProperty(name));
+            double change = before == 0 ? 0 : (now - before) / before;
+            if ((higherIsBetter && change < -threshold) || (lowerIsBetter && change > threshold)) {
+                regressions.add(String.format("%s: %s -> %s (%+.1f%%)", name, old, format(now), change * 100));
+            }
+        }
+        return regressions;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * Resets the kernel's peak RSS counter, where supported.
+     */
+    private static void resetPeakRss() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException | UnsupportedOperationException e) {
+            // Not Linux, or not permitted: the peak covers the whole run
+        }
+    }
+
+    /**
+     * Gets the peak resident set size in KB, or -1 if unknown.
+     */
+    private static long peakRssKB() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available on this platform
+        }
+        return -1;
+    }
+
+    private static String format(double value) {
+        return String.format(java.util.Locale.ROOT, "%.2f", value);
+    }
+
+    private static String option(String[] args, String name, String fallback) {
+        for (int i = 1; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return fallback;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MacroBenchmark corpusDir [--cipher aes] [--threads N] "
+                    + "[--out results.properties] [--baseline old.properties] [--threshold 0.10]");
+            System.exit(2);
+        }
+
+        HostProfile.install(HostProfile.loadOrCalibrate(HostProfile.defaultLocation()));
+        byte cipherType = CipherFactory.parseCipherType(option(args, "--cipher", "aes"));
+        int threads = Integer.parseInt(option(args, "--threads",
+                Integer.toString(HostProfile.current().getWorkerCount())));
+        MacroBenchmark benchmark = new MacroBenchmark(Paths.get(args[0]),
+                CryptoHelper.deriveKey("macro-benchmark"), cipherType, threads);
+
+        Properties results = benchmark.run();
+        for (String name : new TreeSet<>(results.stringPropertyNames())) {
+            System.out.println(name + "=" + results.getProperty(name));
+        }
+
+        String out = option(args, "--out", null);
+        if (out != null) {
+            try (OutputStream stream = Files.newOutputStream(Paths.get(out))) {
+                results.store(stream, "Cryptify macro benchmark");
+            }
+        }
+
+        String baselineFile = option(args, "--baseline", null);
+        if (baselineFile != null) {
+            Properties baseline = new Properties();
+            try (InputStream stream = Files.newInputStream(Paths.get(baselineFile))) {
+                baseline.load(stream);
+            }
+            List<String> regressions = compare(results, baseline,
+                    Double.parseDouble(option(args, "--threshold", "0.10")));
+            for (String regression : regressions) {
+                System.out.println("REGRESSION " + regression);
+            }
+            if (!regressions.isEmpty()) {
+                System.exit(3);
+            }
+            System.out.println("No regressions against " + baselineFile);
+        }
+    }
+}
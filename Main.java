@@ -1,6 +1,7 @@
 
 // --- CryptoDrop Main Application File (Full Refresh) ---
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
@@ -9,7 +10,10 @@ import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TextArea;
 
 import javafx.scene.input.DragEvent;
 import javafx.scene.input.Dragboard;
@@ -17,20 +21,61 @@ import javafx.scene.input.TransferMode;
 import javafx.scene.layout.VBox;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
+import javafx.util.Callback;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import cryptify.core.CryptifyEngine;
+import cryptify.core.EncryptionStateIndex;
+import cryptify.core.HostProfile;
+import cryptify.core.JobScheduler;
+import cryptify.core.PlaintextCache;
+import cryptify.core.SearchIndex;
 
 public class Main extends Application {
 
       private ObservableList<String> uiFileList = FXCollections.observableArrayList();
       private FileManager fileManager;
       private KeyManager keyManager;
+      private CryptifyEngine engine;
+      private EncryptionStateIndex stateIndex;
+      private BatchResultsPanel batchResults;
+
+      // Preview of the selected file, decrypted on an engine thread
+      private static final int PREVIEW_BYTES = 16 * 1024;
+      // Files clicked again are previewed without decrypting them again
+      private static final long PREVIEW_CACHE_BYTES = 32L << 20;
+      private TextArea previewArea;
+      private Label previewStatus;
+      private int previewGeneration;
+      // List labels by path, touched on the JavaFX thread only
+      private Map<String, String> fileLabels = new HashMap<>();
+      private Map<String, String> previousLabels = new HashMap<>();
+      private final Set<String> labelsLoading = new HashSet<>();
+      private int labelGeneration;
+      private boolean labelRedrawPending;
 
       @Override
       public void start(Stage primaryStage) {
             // Initialize managers
             fileManager = new FileManager(uiFileList);
             keyManager = new KeyManager();
+            // Before the engine, which takes its worker count from the profile
+            boolean profiled = installSavedProfile();
+            engine = new CryptifyEngine(keyManager.getKeyRing());
+            engine.setReadCache(new PlaintextCache(PREVIEW_CACHE_BYTES, false));
+            stateIndex = openStateIndex();
+            engine.setStateIndex(stateIndex);
+            if (!profiled) {
+                  calibrateHostProfile();
+            }
 
             // Main horizontal container
             HBox mainContainer = new HBox(15);
@@ -47,6 +92,34 @@ public class Main extends Application {
             ListView<String> fileListView = new ListView<>(uiFileList);
             fileListView.setPrefHeight(430);
             fileListView.setStyle(Styles.FILE_LIST_VIEW);
+            fileListView.setCellFactory(new Callback<ListView<String>, ListCell<String>>() {
+                  @Override
+                  public ListCell<String> call(ListView<String> listView) {
+                        return new ListCell<String>() {
+                              @Override
+                              protected void updateItem(String path, boolean empty) {
+                                    super.updateItem(path, empty);
+                                    setText(empty || path == null ? null : describeFile(path, listView));
+                              }
+                        };
+                  }
+            });
+            fileListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+            fileListView.getSelectionModel().selectedItemProperty().addListener(
+                        (observable, oldPath, newPath) -> showPreview(newPath));
+            // Files may have been encrypted or decrypted (or a key set) from another window
+            primaryStage.focusedProperty().addListener((observable, wasFocused, focused) -> {
+                  if (focused) {
+                        refreshLabels(fileListView);
+                        showPreview(fileListView.getSelectionModel().getSelectedItem());
+                  }
+            });
+
+            // Encrypted/decrypted files change their list label and preview
+            batchResults = new BatchResultsPanel(primaryStage, () -> {
+                  refreshLabels(fileListView);
+                  showPreview(fileListView.getSelectionModel().getSelectedItem());
+            });
 
             Button clearListBtn = new Button("Clear All");
             applyButtonStyle(clearListBtn);
@@ -112,13 +185,14 @@ public class Main extends Application {
                         boolean success = false;
                         if (db.hasFiles()) {
                               success = true;
+                              List<String> dropped = new ArrayList<>();
                               for (File file : db.getFiles()) {
                                     String name = file.getName().toLowerCase();
                                     if (name.endsWith(".txt") || name.endsWith(".enc")) {
-                                          uiFileList.add(file.getAbsolutePath());
-                                          fileManager.addFile(file.getAbsolutePath());
+                                          dropped.add(file.getAbsolutePath());
                                     }
                               }
+                              fileManager.addAll(dropped);
                         }
                         event.setDropCompleted(success);
                         event.consume();
@@ -152,8 +226,8 @@ public class Main extends Application {
             encryptBtn.setOnAction(new EventHandler<ActionEvent>() {
                   @Override
                   public void handle(ActionEvent event) {
-                        String selectedFile = fileListView.getSelectionModel().getSelectedItem();
-                        if (selectedFile == null) {
+                        List<File> selectedFiles = selectedFiles(fileListView);
+                        if (selectedFiles.isEmpty()) {
                               DialogHelper.showError("No File Selected",
                                           "Please select a file from the list to encrypt.");
                               return;
@@ -162,8 +236,8 @@ public class Main extends Application {
                               DialogHelper.showError("No Key Set", "Please set an encryption key first!");
                               return;
                         }
-                        CipherSelector.show(primaryStage, new File(selectedFile), keyManager.getKey(), uiFileList,
-                                    true);
+                        attachSearchIndex();
+                        CipherSelector.show(primaryStage, selectedFiles, engine, batchResults, true);
                   }
             });
 
@@ -172,8 +246,8 @@ public class Main extends Application {
             decryptBtn.setOnAction(new EventHandler<ActionEvent>() {
                   @Override
                   public void handle(ActionEvent event) {
-                        String selectedFile = fileListView.getSelectionModel().getSelectedItem();
-                        if (selectedFile == null) {
+                        List<File> selectedFiles = selectedFiles(fileListView);
+                        if (selectedFiles.isEmpty()) {
                               DialogHelper.showError("No File Selected",
                                           "Please select a file from the list to decrypt.");
                               return;
@@ -182,22 +256,68 @@ public class Main extends Application {
                               DialogHelper.showError("No Key Set", "Please set a decryption key first!");
                               return;
                         }
-                        try {
-                              CryptoHelper.decryptFile(new File(selectedFile), keyManager.getKey());
-                              DialogHelper.showSuccess("Decryption Complete", "File decrypted successfully!");
-                        } catch (Exception e) {
-                              DialogHelper.showError("Decryption Error", e.getMessage());
+                        String what = selectedFiles.size() == 1 ? selectedFiles.get(0).getName()
+                                    : selectedFiles.size() + " files";
+                        JobScheduler.Priority priority = BatchResultsPanel.priorityFor(selectedFiles);
+                        batchResults.run("Decrypting " + what, selectedFiles,
+                                    file -> engine.decryptFileAsync(file, priority));
+                  }
+            });
+
+            Button throttleBtn = new Button("Limit Disk Usage");
+            applyButtonStyle(throttleBtn);
+            throttleBtn.setOnAction(new EventHandler<ActionEvent>() {
+                  @Override
+                  public void handle(ActionEvent event) {
+                        ThrottleWindow.show(primaryStage);
+                  }
+            });
+
+            Button searchBtn = new Button("Search Files");
+            applyButtonStyle(searchBtn);
+            searchBtn.setOnAction(new EventHandler<ActionEvent>() {
+                  @Override
+                  public void handle(ActionEvent event) {
+                        if (!keyManager.hasKey()) {
+                              DialogHelper.showError("No Key Set", "Please set the key of your files first!");
+                              return;
+                        }
+                        String problem = attachSearchIndex();
+                        if (problem != null) {
+                              DialogHelper.showError("Search Unavailable", problem);
+                              return;
                         }
+                        SearchWindow.show(primaryStage, engine, fileManager);
                   }
             });
 
-            buttonsContainer.getChildren().addAll(fileAdderBtn, keyAdderBtn, encryptBtn, decryptBtn);
+            buttonsContainer.getChildren().addAll(fileAdderBtn, keyAdderBtn, encryptBtn, decryptBtn, throttleBtn,
+                        searchBtn);
             rightPanel.getChildren().addAll(dropZone, buttonsContainer);
 
-            // Add both panels to main container
-            mainContainer.getChildren().addAll(leftPanel, rightPanel);
+            // ===== PREVIEW PANEL =====
+            VBox previewPanel = new VBox(10);
+            previewPanel.setPrefWidth(350);
+            previewPanel.setStyle(Styles.LEFT_PANEL);
 
-            Scene scene = new Scene(mainContainer, 750, 550);
+            Label previewLabel = new Label("PREVIEW");
+            previewLabel.setStyle(Styles.FILE_LIST_LABEL);
+
+            previewArea = new TextArea();
+            previewArea.setEditable(false);
+            previewArea.setWrapText(true);
+            previewArea.setPrefHeight(460);
+            previewArea.setStyle(Styles.PREVIEW_AREA);
+
+            previewStatus = new Label("Select a file to preview it");
+            previewStatus.setStyle(Styles.PREVIEW_STATUS);
+
+            previewPanel.getChildren().addAll(previewLabel, previewArea, previewStatus);
+
+            // Add all panels to main container
+            mainContainer.getChildren().addAll(leftPanel, rightPanel, previewPanel);
+
+            Scene scene = new Scene(mainContainer, 1115, 550);
             primaryStage.setTitle("CryptoDrop - File Encryptor");
             primaryStage.setScene(scene);
             primaryStage.setResizable(false);
@@ -218,12 +338,209 @@ public class Main extends Application {
             });
       }
 
+      /**
+       * Gets the files selected in the list.
+       */
+      private List<File> selectedFiles(ListView<String> listView) {
+            List<File> files = new ArrayList<>();
+            for (String path : listView.getSelectionModel().getSelectedItems()) {
+                  files.add(new File(path));
+            }
+            return files;
+      }
+
+      /**
+       * Builds the list label for a file: its path plus the cipher it is
+       * encrypted with. The cipher is looked up on an engine thread; until
+       * it is known, the label from before the last refresh is shown.
+       */
+      private String describeFile(String path, ListView<String> listView) {
+            String label = fileLabels.get(path);
+            if (label == null) {
+                  loadLabel(path, listView);
+                  label = previousLabels.get(path);
+            }
+            return label == null || label.isEmpty() ? path : path + "  [" + label + "]";
+      }
+
+      /**
+       * Looks up the cipher of a file on an engine thread, then redraws the
+       * list once for all lookups finished by then.
+       */
+      private void loadLabel(String path, ListView<String> listView) {
+            if (!labelsLoading.add(path)) {
+                  return;
+            }
+            int generation = labelGeneration;
+            engine.describeAsync(new File(path)).whenComplete((label, error) -> Platform.runLater(() -> {
+                  if (generation != labelGeneration) {
+                        return;
+                  }
+                  labelsLoading.remove(path);
+                  fileLabels.put(path, error != null ? "missing" : label);
+                  if (!labelRedrawPending) {
+                        labelRedrawPending = true;
+                        Platform.runLater(() -> {
+                              labelRedrawPending = false;
+                              listView.refresh();
+                        });
+                  }
+            }));
+      }
+
+      /**
+       * Looks up every visible label again, e.g. after files were encrypted.
+       */
+      private void refreshLabels(ListView<String> listView) {
+            labelGeneration++;
+            previousLabels = fileLabels;
+            fileLabels = new HashMap<>();
+            labelsLoading.clear();
+            listView.refresh();
+      }
+
+      /**
+       * Shows the first PREVIEW_BYTES of a file's plaintext. Decryption runs
+       * on an engine thread and reads only the start of the file; results
+       * for a selection that has since changed are dropped.
+       */
+      private void showPreview(String path) {
+            int generation = ++previewGeneration;
+            previewArea.clear();
+            if (path == null) {
+                  previewStatus.setText("Select a file to preview it");
+                  return;
+            }
+
+            File file = new File(path);
+            previewStatus.setText("Loading preview...");
+            // Reading the header is disk I/O, so it is done on an engine thread too
+            engine.isEncryptedAsync(file).whenComplete((encrypted, error) -> Platform.runLater(() -> {
+                  if (generation != previewGeneration) {
+                        return;
+                  }
+                  if (error == null && encrypted && !keyManager.hasKey()) {
+                        previewStatus.setText("Set a key to preview encrypted files");
+                        return;
+                  }
+                  loadPreview(file, error == null && encrypted, generation);
+            }));
+      }
+
+      /**
+       * Decrypts the preview of a file on an engine thread and shows it,
+       * unless the selection has changed since.
+       */
+      private void loadPreview(File file, boolean encrypted, int generation) {
+            engine.previewAsync(file, PREVIEW_BYTES).whenComplete((bytes, error) -> Platform.runLater(() -> {
+                  if (generation != previewGeneration) {
+                        return;
+                  }
+                  if (error != null) {
+                        previewStatus.setText("No preview: " + error.getMessage());
+                        return;
+                  }
+                  previewArea.setText(new String(bytes, StandardCharsets.UTF_8));
+                  String extent = bytes.length < PREVIEW_BYTES ? "whole file" : "first " + PREVIEW_BYTES / 1024 + " KB";
+                  previewStatus.setText((encrypted ? "Decrypted preview, " : "Plain file, ") + extent);
+            }));
+      }
+
+      /**
+       * Opens the persistent state index, falling back to memory only.
+       */
+      private EncryptionStateIndex openStateIndex() {
+            try {
+                  return new EncryptionStateIndex(EncryptionStateIndex.defaultLocation());
+            } catch (IOException e) {
+                  try {
+                        return new EncryptionStateIndex(null);
+                  } catch (IOException impossible) {
+                        return null;
+                  }
+            }
+      }
+
+      /**
+       * Opens the search index with the current key and attaches it to the
+       * engine, so that .txt files are indexed as they are encrypted. Once
+       * attached, it stays with the key it was opened with.
+       * 
+       * @return null if the index is attached, else why it cannot be
+       */
+      private String attachSearchIndex() {
+            if (engine.getSearchIndex() != null) {
+                  return null;
+            }
+            try {
+                  engine.setSearchIndex(new SearchIndex(SearchIndex.defaultLocation(), keyManager.getKey()));
+                  return null;
+            } catch (IOException e) {
+                  return e.getMessage();
+            }
+      }
+
+      /**
+       * Installs the host profile saved by an earlier start, if it was made
+       * on this hardware.
+       * 
+       * @return Whether a profile was installed
+       */
+      private boolean installSavedProfile() {
+            HostProfile saved = HostProfile.loadSaved(HostProfile.defaultLocation());
+            if (saved != null) {
+                  HostProfile.install(saved);
+            }
+            return saved != null;
+      }
+
+      /**
+       * Calibrates the host profile on a background thread the first time
+       * (or after a hardware change), then resizes the engine to it.
+       * Defaults apply until it is done.
+       */
+      private void calibrateHostProfile() {
+            Thread calibration = new Thread(new Runnable() {
+                  @Override
+                  public void run() {
+                        try {
+                              HostProfile.install(HostProfile.loadOrCalibrate(HostProfile.defaultLocation()));
+                              engine.setWorkerCount(HostProfile.current().getWorkerCount());
+                        } catch (Exception e) {
+                              // Keep the defaults; the next start calibrates again
+                        }
+                  }
+            }, "cryptify-calibration");
+            calibration.setDaemon(true);
+            calibration.start();
+      }
+
       @Override
       public void stop() {
             // JavaFX cleanup on exit
+            engine.close();
+            if (engine.getSearchIndex() != null) {
+                  try {
+                        engine.getSearchIndex().close();
+                  } catch (IOException e) {
+                        // Lost entries can be rebuilt with "cryptify index"
+                  }
+            }
+            if (stateIndex != null) {
+                  try {
+                        stateIndex.close();
+                  } catch (IOException e) {
+                        // Index is only a cache; nothing to recover
+                  }
+            }
       }
 
-      public static void main(String[] args) {
+      public static void main(String[] args) throws Exception {
+            // Command-line modes never start the GUI
+            if (CryptifyCli.isCommand(args)) {
+                  CryptifyCli.main(args);
+                  return;
+            }
             launch(args);
       }
 }
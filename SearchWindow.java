@@ -0,0 +1,82 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import javafx.application.Platform;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import cryptify.core.CryptifyEngine;
+
+/**
+ * Window for finding encrypted .txt files by the words they contain. The
+ * search runs on an engine thread against the encrypted search index, and
+ * the files found are added to the file list.
+ */
+public class SearchWindow {
+
+    /**
+     * Shows the search window.
+     * 
+     * @param owner       Window to place this one next to
+     * @param engine      Engine with a search index attached
+     * @param fileManager Where the files found are added
+     */
+    public static void show(Stage owner, CryptifyEngine engine, FileManager fileManager) {
+        Stage searchStage = new Stage();
+        searchStage.setTitle("Search Files");
+        VBox searchBox = new VBox(10);
+        searchBox.setAlignment(Pos.CENTER);
+        searchBox.setStyle(Styles.DIALOG_PADDING);
+
+        Label titleLabel = new Label("Find .txt files containing all of these words:");
+        titleLabel.setStyle(Styles.DIALOG_TITLE);
+
+        TextField wordsField = new TextField();
+        wordsField.setMaxWidth(260);
+
+        Label resultLabel = new Label("");
+
+        Button searchBtn = new Button("Search");
+        searchBtn.setDefaultButton(true);
+        searchBtn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                String words = wordsField.getText().trim();
+                if (words.isEmpty()) {
+                    DialogHelper.showError("No Words", "Please enter at least one word to search for.");
+                    return;
+                }
+                searchBtn.setDisable(true);
+                resultLabel.setText("Searching...");
+                engine.searchAsync(words).whenComplete((files, error) -> Platform.runLater(() -> {
+                    searchBtn.setDisable(false);
+                    if (error != null) {
+                        resultLabel.setText("");
+                        DialogHelper.showError("Search Failed", error.getMessage());
+                        return;
+                    }
+                    List<String> paths = new ArrayList<>();
+                    for (File file : files) {
+                        paths.add(file.getAbsolutePath());
+                    }
+                    fileManager.addAll(paths);
+                    resultLabel.setText(files.isEmpty() ? "No indexed file contains these words"
+                            : files.size() + " file(s) found and added to the list");
+                }));
+            }
+        });
+
+        searchBox.getChildren().addAll(titleLabel, wordsField, searchBtn, resultLabel);
+        Scene searchScene = new Scene(searchBox, 340, 200);
+        searchStage.setScene(searchScene);
+        searchStage.setX(owner.getX() + owner.getWidth() + 10);
+        searchStage.setY(owner.getY());
+        searchStage.show();
+    }
+}
@@ -51,6 +51,25 @@ public class Styles {
             "-fx-border-width: 1; " +
             "-fx-font-size: 11px;";
 
+    // ========== PREVIEW ==========
+
+    public static final String PREVIEW_AREA = "-fx-font-family: monospace; " +
+            "-fx-font-size: 11px; " +
+            "-fx-border-color: " + COLOR_BORDER_LIGHT + "; " +
+            "-fx-border-width: 1;";
+
+    public static final String PREVIEW_STATUS = "-fx-font-size: 10px; " +
+            "-fx-text-fill: " + COLOR_TEXT_LIGHT + ";";
+
+    // ========== BATCH RESULTS ==========
+
+    public static final String BATCH_COUNTERS = "-fx-font-size: 12px; " +
+            "-fx-text-fill: " + COLOR_TEXT_DARK + ";";
+
+    public static final String BATCH_SUMMARY = "-fx-font-size: 12px; " +
+            "-fx-font-weight: bold; " +
+            "-fx-text-fill: " + COLOR_TEXT_GTK + ";";
+
     // ========== DROP ZONE ==========
 
     public static final String DROP_ZONE_NORMAL = "-fx-background-color: " + COLOR_BG_WHITE + "; " +
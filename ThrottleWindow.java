@@ -0,0 +1,72 @@
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import cryptify.core.IoThrottle;
+
+/**
+ * Window for limiting how much disk bandwidth and how many I/O operations
+ * per second encryption may use. Changes apply to files already being
+ * processed, from their next read or write on.
+ */
+public class ThrottleWindow {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /**
+     * Shows the limits of the shared IoThrottle and lets the user change them.
+     * 
+     * @param owner Window to place this one next to
+     */
+    public static void show(Stage owner) {
+        IoThrottle throttle = IoThrottle.shared();
+        Stage throttleStage = new Stage();
+        throttleStage.setTitle("Limit Disk Usage");
+        VBox throttleBox = new VBox(10);
+        throttleBox.setAlignment(Pos.CENTER);
+        throttleBox.setStyle(Styles.DIALOG_PADDING);
+
+        Label titleLabel = new Label("Limits for background work (0 = unlimited):");
+        titleLabel.setStyle(Styles.DIALOG_TITLE);
+
+        Label rateLabel = new Label("MB per second:");
+        TextField rateField = new TextField(Long.toString(throttle.getBytesPerSecond() / MEGABYTE));
+        rateField.setMaxWidth(200);
+
+        Label operationsLabel = new Label("Operations per second:");
+        TextField operationsField = new TextField(Long.toString(throttle.getOperationsPerSecond()));
+        operationsField.setMaxWidth(200);
+
+        Button applyBtn = new Button("Apply");
+        applyBtn.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                try {
+                    long megabytes = Long.parseLong(rateField.getText().trim());
+                    long operations = Long.parseLong(operationsField.getText().trim());
+                    if (megabytes < 0 || operations < 0) {
+                        throw new NumberFormatException();
+                    }
+                    throttle.setBytesPerSecond(megabytes * MEGABYTE);
+                    throttle.setOperationsPerSecond(operations);
+                    throttleStage.close();
+                } catch (NumberFormatException e) {
+                    DialogHelper.showError("Invalid Limit", "Please enter whole numbers of 0 or more.");
+                }
+            }
+        });
+
+        throttleBox.getChildren().addAll(titleLabel, rateLabel, rateField, operationsLabel, operationsField,
+                applyBtn);
+        Scene throttleScene = new Scene(throttleBox, 340, 260);
+        throttleStage.setScene(throttleScene);
+        throttleStage.setX(owner.getX() + owner.getWidth() + 10);
+        throttleStage.setY(owner.getY());
+        throttleStage.show();
+    }
+}
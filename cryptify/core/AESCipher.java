@@ -0,0 +1,399 @@
+package cryptify.core;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * AES-GCM cipher implementation using industry-standard encryption.
+ * 
+ * OOP Principles Demonstrated:
+ * - Inheritance: Extends abstract Cipher class
+ * - Encapsulation: IV generation and GCM details hidden
+ * - Security: Uses secure random for IV generation
+ * 
+ * Streaming layout (channel and stream APIs):
+ * [12-byte base IV] followed by frames of
+ * [4-byte length | final flag][GCM ciphertext + 16-byte tag].
+ * Each frame holds at most STREAM_CHUNK_SIZE plaintext bytes, uses the base
+ * IV with the frame index mixed into its last 4 bytes, and authenticates its
+ * own length word, so frames cannot be reordered, truncated or extended.
+ */
+public class AESCipher extends Cipher {
+
+    private static final byte CIPHER_TYPE = 3;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final int TAG_SIZE = TAG_LENGTH / 8;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int FRAME_HEADER_SIZE = 4;
+    private static final int FINAL_FRAME = 0x80000000;
+    private static final long MAX_FRAMES = 0xFFFFFFFFL;
+
+    public AESCipher(SecretKey key) {
+        super(key);
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws Exception {
+        javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance(ALGORITHM);
+
+        // Generate random IV
+        byte[] iv = new byte[IV_SIZE];
+        new SecureRandom().nextBytes(iv);
+        GCMParameterSpec spec = new GCMParameterSpec(TAG_LENGTH, iv);
+
+        cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, key, spec);
+        StageEvent event = StageEvent.begin(StageEvent.CIPHER, getCipherName());
+        byte[] encrypted = cipher.doFinal(data);
+        StageEvent.end(event, data.length);
+
+        // Prepend IV to encrypted data
+        return prependIV(iv, encrypted);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] data) throws Exception {
+        // Extract IV and encrypted data
+        byte[] iv = extractIV(data);
+        byte[] encryptedData = extractEncryptedData(data);
+
+        javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance(ALGORITHM);
+        GCMParameterSpec spec = new GCMParameterSpec(TAG_LENGTH, iv);
+        cipher.init(javax.crypto.Cipher.DECRYPT_MODE, key, spec);
+
+        StageEvent event = StageEvent.begin(StageEvent.CIPHER, getCipherName());
+        byte[] decrypted = cipher.doFinal(encryptedData);
+        StageEvent.end(event, decrypted.length);
+        return decrypted;
+    }
+
+    @Override
+    public WritableByteChannel newEncryptingChannel(WritableByteChannel out) throws IOException {
+        byte[] baseIV = new byte[IV_SIZE];
+        new SecureRandom().nextBytes(baseIV);
+        writeFully(out, ByteBuffer.wrap(baseIV));
+        return new ChunkedEncryptingChannel(out, baseIV, 0);
+    }
+
+    @Override
+    public ReadableByteChannel newDecryptingChannel(ReadableByteChannel in) throws IOException {
+        byte[] baseIV = new byte[IV_SIZE];
+        if (!readFully(in, ByteBuffer.wrap(baseIV))) {
+            throw new IOException("Encrypted stream is too short");
+        }
+        return new ChunkedDecryptingChannel(in, baseIV, 0);
+    }
+
+    @Override
+    public WritableByteChannel resumeEncryptingChannel(WritableByteChannel out, byte[] streamPrefix,
+            long plainOffset, boolean last) throws IOException {
+        ChunkedEncryptingChannel channel = new ChunkedEncryptingChannel(out, checkPrefix(streamPrefix),
+                frameIndexOf(plainOffset));
+        channel.finalOnClose = last;
+        return channel;
+    }
+
+    @Override
+    public ReadableByteChannel resumeDecryptingChannel(ReadableByteChannel in, byte[] streamPrefix,
+            long plainOffset) throws IOException {
+        return new ChunkedDecryptingChannel(in, checkPrefix(streamPrefix), frameIndexOf(plainOffset));
+    }
+
+    @Override
+    public int getStreamPrefixSize() {
+        return IV_SIZE;
+    }
+
+    @Override
+    public long getEncryptedOffset(long plainOffset) {
+        return IV_SIZE + (plainOffset / STREAM_CHUNK_SIZE) * (FRAME_HEADER_SIZE + STREAM_CHUNK_SIZE + TAG_SIZE);
+    }
+
+    @Override
+    public byte getCipherType() {
+        return CIPHER_TYPE;
+    }
+
+    @Override
+    public String getCipherName() {
+        return "AES-GCM Encryption";
+    }
+
+    /**
+     * Prepends IV to encrypted data.
+     * Encapsulated helper method
+     */
+    private byte[] prependIV(byte[] iv, byte[] encrypted) {
+        byte[] combined = new byte[iv.length + encrypted.length];
+        System.arraycopy(iv, 0, combined, 0, iv.length);
+        System.arraycopy(encrypted, 0, combined, iv.length, encrypted.length);
+        return combined;
+    }
+
+    /**
+     * Extracts IV from data (first IV_SIZE bytes).
+     * Encapsulated helper method
+     */
+    private byte[] extractIV(byte[] data) {
+        byte[] iv = new byte[IV_SIZE];
+        System.arraycopy(data, 0, iv, 0, IV_SIZE);
+        return iv;
+    }
+
+    /**
+     * Extracts encrypted data (everything after IV).
+     * Encapsulated helper method
+     */
+    private byte[] extractEncryptedData(byte[] data) {
+        byte[] encrypted = new byte[data.length - IV_SIZE];
+        System.arraycopy(data, IV_SIZE, encrypted, 0, encrypted.length);
+        return encrypted;
+    }
+
+    /**
+     * Derives the IV of a stream frame from the base IV and frame index.
+     * Encapsulated helper method
+     */
+    private static byte[] frameIV(byte[] baseIV, long frameIndex) throws IOException {
+        if (frameIndex > MAX_FRAMES) {
+            throw new IOException("Stream is too long for a single AES-GCM key/IV pair");
+        }
+        byte[] iv = baseIV.clone();
+        for (int i = 0; i < 4; i++) {
+            iv[IV_SIZE - 1 - i] ^= (byte) (frameIndex >>> (8 * i));
+        }
+        return iv;
+    }
+
+    /**
+     * Validates a resumed stream's prefix (its base IV).
+     */
+    private static byte[] checkPrefix(byte[] streamPrefix) throws IOException {
+        if (streamPrefix == null || streamPrefix.length != IV_SIZE) {
+            throw new IOException("Invalid stream prefix for AES-GCM");
+        }
+        return streamPrefix.clone();
+    }
+
+    /**
+     * Converts a chunk-aligned plaintext offset to a frame index.
+     */
+    private static long frameIndexOf(long plainOffset) throws IOException {
+        if (plainOffset < 0 || plainOffset % STREAM_CHUNK_SIZE != 0) {
+            throw new IOException("Streams can only be resumed on a chunk boundary");
+        }
+        return plainOffset / STREAM_CHUNK_SIZE;
+    }
+
+    /**
+     * Creates a JCE AES-GCM instance, reporting failures as IOException.
+     */
+    private static javax.crypto.Cipher newGcmInstance() throws IOException {
+        try {
+            return javax.crypto.Cipher.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM is not available: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Buffers plaintext and seals it into frames of STREAM_CHUNK_SIZE bytes.
+     */
+    private class ChunkedEncryptingChannel implements WritableByteChannel {
+
+        private final WritableByteChannel out;
+        private final javax.crypto.Cipher cipher = newGcmInstance();
+        private final byte[] baseIV;
+        private final ByteBuffer plain = BufferPool.shared().acquire(STREAM_CHUNK_SIZE);
+        private final ByteBuffer frame = BufferPool.shared().acquire(FRAME_HEADER_SIZE + STREAM_CHUNK_SIZE + TAG_SIZE);
+        private final byte[] frameHeader = new byte[FRAME_HEADER_SIZE];
+        private long frameIndex;
+        private boolean finalOnClose = true;
+        private boolean open = true;
+
+        ChunkedEncryptingChannel(WritableByteChannel out, byte[] baseIV, long frameIndex) throws IOException {
+            this.out = out;
+            this.baseIV = baseIV;
+            this.frameIndex = frameIndex;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new IOException("Channel is closed");
+            }
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                // A full buffer is only sealed once more data arrives, so that
+                // close() can always mark the last frame as final.
+                if (!plain.hasRemaining()) {
+                    sealFrame(false);
+                }
+                int n = Math.min(plain.remaining(), src.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + n);
+                plain.put(slice);
+                src.position(src.position() + n);
+            }
+            return written;
+        }
+
+        private void sealFrame(boolean last) throws IOException {
+            plain.flip();
+            int word = plain.remaining() | (last ? FINAL_FRAME : 0);
+            for (int i = 0; i < FRAME_HEADER_SIZE; i++) {
+                frameHeader[i] = (byte) (word >>> (8 * (FRAME_HEADER_SIZE - 1 - i)));
+            }
+            frame.clear();
+            frame.put(frameHeader);
+            try {
+                cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, key,
+                        new GCMParameterSpec(TAG_LENGTH, frameIV(baseIV, frameIndex++)));
+                cipher.updateAAD(frameHeader);
+                StageEvent event = StageEvent.begin(StageEvent.CIPHER, getCipherName());
+                int n = plain.remaining();
+                cipher.doFinal(plain, frame);
+                StageEvent.end(event, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed: " + e.getMessage(), e);
+            }
+            frame.flip();
+            writeFully(out, frame);
+            plain.clear();
+            plain.limit(STREAM_CHUNK_SIZE);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                try {
+                    if (!finalOnClose && plain.hasRemaining()) {
+                        throw new IOException("A section of a stream must end on a chunk boundary");
+                    }
+                    sealFrame(finalOnClose);
+                } finally {
+                    BufferPool.shared().release(plain);
+                    BufferPool.shared().release(frame);
+                    // Closed even if the last frame could not be sealed
+                    out.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads, authenticates and decrypts one frame at a time.
+     */
+    private class ChunkedDecryptingChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel in;
+        private final javax.crypto.Cipher cipher = newGcmInstance();
+        private final byte[] baseIV;
+        private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        private ByteBuffer sealed = BufferPool.shared().acquire(STREAM_CHUNK_SIZE + TAG_SIZE);
+        private ByteBuffer plain = BufferPool.shared().acquire(STREAM_CHUNK_SIZE);
+        private long frameIndex;
+        private boolean finished;
+
+        ChunkedDecryptingChannel(ReadableByteChannel in, byte[] baseIV, long frameIndex) throws IOException {
+            this.in = in;
+            this.baseIV = baseIV;
+            this.frameIndex = frameIndex;
+            plain.limit(0);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (plain == null) {
+                return -1;
+            }
+            while (!plain.hasRemaining()) {
+                if (finished) {
+                    releaseBuffers();
+                    return -1;
+                }
+                openFrame();
+            }
+            int n = Math.min(dst.remaining(), plain.remaining());
+            ByteBuffer slice = plain.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            plain.position(plain.position() + n);
+            return n;
+        }
+
+        private void openFrame() throws IOException {
+            header.clear();
+            if (!readFully(in, header)) {
+                throw new IOException("Encrypted stream is truncated");
+            }
+            int word = header.getInt(0);
+            boolean last = (word & FINAL_FRAME) != 0;
+            int length = word & ~FINAL_FRAME;
+            if (length > STREAM_CHUNK_SIZE) {
+                throw new IOException("Encrypted stream is corrupted (invalid frame length)");
+            }
+
+            sealed.clear();
+            sealed.limit(length + TAG_SIZE);
+            if (!readFully(in, sealed)) {
+                throw new IOException("Encrypted stream is truncated");
+            }
+            sealed.flip();
+            plain.clear();
+            try {
+                cipher.init(javax.crypto.Cipher.DECRYPT_MODE, key,
+                        new GCMParameterSpec(TAG_LENGTH, frameIV(baseIV, frameIndex++)));
+                cipher.updateAAD(header.array());
+                StageEvent event = StageEvent.begin(StageEvent.CIPHER, getCipherName());
+                int n = cipher.doFinal(sealed, plain);
+                StageEvent.end(event, n);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Decryption failed: wrong key or corrupted data", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Decryption failed: " + e.getMessage(), e);
+            }
+            plain.flip();
+
+            if (last) {
+                finished = true;
+                if (in.read(ByteBuffer.allocate(1)) > 0) {
+                    throw new IOException("Encrypted stream has unexpected data after the final frame");
+                }
+            }
+        }
+
+        private void releaseBuffers() {
+            BufferPool.shared().release(sealed);
+            BufferPool.shared().release(plain);
+            sealed = null;
+            plain = null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (plain != null) {
+                releaseBuffers();
+            }
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package cryptify.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts or decrypts a list of files as one resumable job.
+ * 
+ * Progress is kept in a BatchJournal. Each file is written to a
+ * ".<name>.cryptify-part" sibling, which is forced to disk every
+ * CHECKPOINT_INTERVAL bytes before the journal records the checkpoint, and
+ * renamed over the original when complete. A job restarted after a crash
+ * skips finished files without touching them and continues a partly written
+ * file from its last checkpoint instead of from the beginning.
+ * 
+ * A part file of a decryption holds plaintext, so a job that will not be
+ * resumed is dropped with abandon(), which deletes its part files along
+ * with the journal.
+ * 
+ * OOP Principles:
+ * - Composition: Uses Cipher channels, BatchJournal and EncryptionStateIndex
+ * - Encapsulation: Resume rules are internal to the job
+ */
+public class BatchJob {
+
+    private static final long CHECKPOINT_INTERVAL = 64L * 1024 * 1024;
+    private static final String PART_SUFFIX = ".cryptify-part";
+
+    private final BatchJournal journal;
+    private EncryptionStateIndex stateIndex;
+    private Listener listener;
+
+    /**
+     * Receives a notification for every file the job finishes.
+     */
+    public interface Listener {
+
+        /**
+         * Called after a file has been processed, skipped or has failed.
+         * 
+         * @param file   The file
+         * @param status BatchJournal.DONE, SKIPPED or FAILED
+         * @param bytes  Size of the file before processing
+         * @param error  The failure, or null
+         */
+        void fileFinished(File file, byte status, long bytes, Exception error);
+    }
+
+    /**
+     * Counts of what a run did.
+     */
+    public static class Result {
+
+        public int done;
+        public int skipped;
+        public int failed;
+        public int alreadyComplete;
+
+        @Override
+        public String toString() {
+            return done + " done, " + skipped + " skipped, " + failed + " failed, "
+                    + alreadyComplete + " completed earlier";
+        }
+    }
+
+    private BatchJob(BatchJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Creates a new job.
+     * 
+     * @param journalFile Where to keep the job's journal
+     * @param files       The files to process
+     * @param mode        BatchJournal.MODE_ENCRYPT or MODE_DECRYPT
+     * @param cipherType  Cipher for encryption (1=Caesar, 2=XOR, 3=AES)
+     * @return The job, ready to run
+     * @throws IOException if the journal cannot be created
+     */
+    public static BatchJob create(Path journalFile, List<File> files, byte mode, byte cipherType)
+            throws IOException {
+        return new BatchJob(BatchJournal.create(journalFile, files, mode, cipherType));
+    }
+
+    /**
+     * Reopens a job from its journal, e.g. after a crash.
+     * 
+     * @param journalFile The job's journal
+     * @return The job, ready to continue
+     * @throws IOException if the journal cannot be read
+     */
+    public static BatchJob resume(Path journalFile) throws IOException {
+        return new BatchJob(BatchJournal.open(journalFile));
+    }
+
+    /**
+     * Drops an unfinished job: deletes the part files of its files, which
+     * may hold decrypted plaintext, and then its journal. The originals are
+     * left as they are.
+     * 
+     * @param journalFile The job's journal
+     * @return How many part files were deleted
+     * @throws IOException if the journal cannot be read or a part file
+     *                     cannot be deleted (the journal is then kept)
+     */
+    public static int abandon(Path journalFile) throws IOException {
+        BatchJournal journal = BatchJournal.open(journalFile);
+        int deleted = 0;
+        try {
+            for (File file : journal.getFiles()) {
+                if (Files.deleteIfExists(partFile(file.toPath()))) {
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        journal.discard();
+        return deleted;
+    }
+
+    /**
+     * Gets where the command line keeps the journal of its batch job.
+     * 
+     * @return ~/.cryptify/batch.journal
+     */
+    public static Path defaultJournal() {
+        return Paths.get(System.getProperty("user.home"), ".cryptify", "batch.journal");
+    }
+
+    /**
+     * Checks if a file is the part file of an unfinished job, which must not
+     * be added to another job.
+     */
+    public static boolean isPartFile(Path file) {
+        return file.getFileName().toString().endsWith(PART_SUFFIX);
+    }
+
+    /**
+     * Uses a state index to decide quickly which files need no work.
+     */
+    public void setStateIndex(EncryptionStateIndex stateIndex) {
+        this.stateIndex = stateIndex;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the files of this job, in processing order.
+     */
+    public List<File> getFiles() {
+        return journal.getFiles();
+    }
+
+    /**
+     * Processes every file that is not complete yet.
+     * The journal is deleted when no file failed, and kept otherwise so the
+     * job can be resumed.
+     * 
+     * @param key The key (never stored in the journal)
+     * @return What this run did
+     * @throws IOException if the journal cannot be written
+     */
+    public Result run(SecretKey key) throws IOException {
+        return run(new KeyRing(key));
+    }
+
+    /**
+     * Processes every file that is not complete yet, decrypting each file
+     * with whichever key of the ring it was encrypted with. Encryption uses
+     * the ring's active key.
+     * 
+     * @param keys The keys (never stored in the journal)
+     * @return What this run did
+     * @throws IOException if the journal cannot be written
+     */
+    public Result run(KeyRing keys) throws IOException {
+        Result result = new Result();
+        List<File> files = journal.getFiles();
+
+        for (int i = 0; i < files.size(); i++) {
+            byte status = journal.getStatus(i);
+            if (status == BatchJournal.DONE || status == BatchJournal.SKIPPED) {
+                result.alreadyComplete++;
+                continue;
+            }
+            runFile(i, keys, result);
+        }
+
+        if (result.failed == 0) {
+            journal.discard();
+        } else {
+            journal.close();
+        }
+        return result;
+    }
+
+    /**
+     * Processes one file and records the outcome.
+     */
+    private void runFile(int index, KeyRing keys, Result result) throws IOException {
+        File file = journal.getFiles().get(index);
+        long size = 0;
+        try {
+            size = file.length();
+            byte status = processFile(index, file, keys);
+            if (status == BatchJournal.DONE) {
+                journal.done(index);
+                result.done++;
+            } else {
+                journal.skipped(index);
+                result.skipped++;
+            }
+            notifyListener(file, status, size, null);
+        } catch (Exception e) {
+            journal.failed(index, e.getMessage());
+            result.failed++;
+            notifyListener(file, BatchJournal.FAILED, size, e);
+        }
+    }
+
+    /**
+     * Works out where to start a file and processes it.
+     * 
+     * @return BatchJournal.DONE or SKIPPED
+     */
+    private byte processFile(int index, File file, KeyRing keys) throws Exception {
+        Path source = file.toPath();
+        Path part = partFile(source);
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        boolean encrypting = journal.getMode() == BatchJournal.MODE_ENCRYPT;
+
+        long resumeFrom = -1;
+        if (journal.getStatus(index) == BatchJournal.STARTED && Files.exists(part)
+                && journal.sourceUnchanged(index, attrs.size(), lastModified)) {
+            resumeFrom = journal.getCheckpoint(index);
+        }
+
+        // Fresh start (or the part file was already renamed): check the header
+        byte[] header = FileHeaderUtil.readMetadata(file);
+        if (resumeFrom < 0) {
+            boolean encrypted = stateIndex != null ? stateIndex.lookup(file).isEncrypted() : header != null;
+            if (encrypting == encrypted) {
+                // Already in the target state; if this run started it, the
+                // rename happened right before the crash
+                Files.deleteIfExists(part);
+                return journal.getStatus(index) == BatchJournal.STARTED ? BatchJournal.DONE : BatchJournal.SKIPPED;
+            }
+            Files.deleteIfExists(part);
+            journal.started(index, attrs.size(), lastModified);
+            resumeFrom = 0;
+        }
+
+        if (encrypting) {
+            SecretKey key = keys.getActiveKey();
+            Cipher cipher = CipherFactory.createCipherByType(journal.getCipherType(), key);
+            encryptToPart(index, source, part, cipher, key, resumeFrom);
+        } else {
+            if (header == null) {
+                // The state index may be out of date, or the header damaged
+                throw new IOException("File has no valid encryption header");
+            }
+            if (header[5] > FileHeaderUtil.CURRENT_FORMAT) {
+                throw new IOException("File was written by a newer version of this application");
+            }
+            // One lookup by key ID; no key fits means failing before any body is read
+            SecretKey key = keys.find(header);
+            if (key == null) {
+                throw new IOException("None of the keys entered matches this file");
+            }
+            if (FileHeaderUtil.readTrailer(file) != null) {
+                // Encrypted in place: decrypted in place, with its own recovery
+                CryptoHelper.decryptFile(file, key);
+                return BatchJournal.DONE;
+            }
+            Cipher cipher = CipherFactory.createCipherByType(header[4], key);
+            if (header[5] == FileHeaderUtil.FORMAT_LEGACY && !(cipher instanceof LengthPreservingCipher)) {
+                // Legacy AES blobs are authenticated as a whole and cannot be resumed
+                CryptoHelper.decryptFile(file, key);
+                return BatchJournal.DONE;
+            }
+            if (header[5] == FileHeaderUtil.FORMAT_INTEGRITY) {
+                // The whole tree is verified before anything is written
+                CryptoHelper.decryptFile(file, key);
+                return BatchJournal.DONE;
+            }
+            decryptToPart(index, source, part, cipher, header.length, resumeFrom);
+        }
+
+        CryptoHelper.replace(part, source);
+        return BatchJournal.DONE;
+    }
+
+    private static Path partFile(Path source) {
+        return source.resolveSibling("." + source.getFileName() + PART_SUFFIX);
+    }
+
+    /**
+     * Writes header and encrypted body to the part file, from resumeFrom on.
+     * A resumed part file keeps the header it was started with, but only if
+     * its key check value matches this run's key; otherwise it starts over.
+     */
+    private void encryptToPart(int index, Path source, Path part, Cipher cipher, SecretKey key, long resumeFrom)
+            throws IOException {
+        int headerSize = FileHeaderUtil.getHeaderSize(FileHeaderUtil.FORMAT_KEY_CHECK);
+        if (resumeFrom > 0) {
+            byte[] partHeader = FileHeaderUtil.readHeader(part.toFile());
+            if (partHeader != null && FileHeaderUtil.matchesKey(partHeader, key)) {
+                headerSize = partHeader.length;
+            } else {
+                resumeFrom = 0;
+            }
+        }
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.READ)) {
+            long target = headerSize + cipher.getEncryptedOffset(resumeFrom);
+            WritableByteChannel encrypting;
+
+            if (resumeFrom > 0 && out.size() >= target) {
+                byte[] prefix = readPrefix(out, headerSize, cipher.getStreamPrefixSize());
+                out.truncate(target);
+                out.position(target);
+                in.position(resumeFrom);
+                encrypting = cipher.resumeEncryptingChannel(StageEvent.timedWrites(
+                        IoThrottle.shared().writes(unclosable(out)), cipher.getCipherName()), prefix, resumeFrom);
+            } else {
+                resumeFrom = 0;
+                out.truncate(0);
+                Cipher.writeFully(out, ByteBuffer.wrap(FileHeaderUtil.createHeader(cipher.getCipherType(), key)));
+                encrypting = cipher.newEncryptingChannel(StageEvent.timedWrites(
+                        IoThrottle.shared().writes(unclosable(out)), cipher.getCipherName()));
+            }
+
+            copyWithCheckpoints(index, StageEvent.timedReads(IoThrottle.shared().reads(in), cipher.getCipherName()),
+                    encrypting, out, cipher.getCipherName(), resumeFrom);
+            encrypting.close();
+            StageEvent.force(out, true, cipher.getCipherName());
+        }
+    }
+
+    /**
+     * Writes the decrypted body of the source to the part file, from
+     * resumeFrom on.
+     */
+    private void decryptToPart(int index, Path source, Path part, Cipher cipher, int headerSize, long resumeFrom)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ReadableByteChannel reads = StageEvent.timedReads(IoThrottle.shared().reads(in), cipher.getCipherName());
+            ReadableByteChannel decrypting;
+
+            if (resumeFrom > 0 && out.size() >= resumeFrom) {
+                byte[] prefix = readPrefix(in, headerSize, cipher.getStreamPrefixSize());
+                out.truncate(resumeFrom);
+                out.position(resumeFrom);
+                in.position(headerSize + cipher.getEncryptedOffset(resumeFrom));
+                decrypting = cipher.resumeDecryptingChannel(reads, prefix, resumeFrom);
+            } else {
+                resumeFrom = 0;
+                out.truncate(0);
+                in.position(headerSize);
+                decrypting = cipher.newDecryptingChannel(reads);
+            }
+
+            copyWithCheckpoints(index, decrypting,
+                    StageEvent.timedWrites(IoThrottle.shared().writes(out), cipher.getCipherName()), out,
+                    cipher.getCipherName(), resumeFrom);
+            StageEvent.force(out, true, cipher.getCipherName());
+        }
+    }
+
+    /**
+     * Copies plaintext through the cipher channel, checkpointing as it goes.
+     * A checkpoint is only recorded for offsets whose output is already on
+     * disk: at least one chunk behind the data handed to the cipher, because
+     * a streaming cipher may still hold the latest chunk in its buffer.
+     */
+    private void copyWithCheckpoints(int index, ReadableByteChannel source, WritableByteChannel sink,
+            FileChannel output, String cipherName, long plainOffset) throws IOException {
+        ByteBuffer buffer = BufferPool.shared().acquire(HostProfile.current().getChunkSize());
+        try {
+            long processed = plainOffset;
+            long nextCheckpoint = plainOffset + CHECKPOINT_INTERVAL;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                processed += Cipher.writeFully(sink, buffer);
+                buffer.clear();
+
+                if (processed >= nextCheckpoint) {
+                    long safe = (processed - Cipher.STREAM_CHUNK_SIZE) / Cipher.STREAM_CHUNK_SIZE
+                            * Cipher.STREAM_CHUNK_SIZE;
+                    StageEvent.force(output, false, cipherName);
+                    journal.checkpoint(index, safe);
+                    nextCheckpoint = processed + CHECKPOINT_INTERVAL;
+                }
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    /**
+     * Reads the cipher stream prefix (e.g. the AES base IV) after the header.
+     */
+    private static byte[] readPrefix(FileChannel channel, int offset, int size) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(size);
+        while (prefix.hasRemaining()) {
+            if (channel.read(prefix, offset + prefix.position()) == -1) {
+                throw new IOException("Stream prefix is missing");
+            }
+        }
+        return prefix.array();
+    }
+
+    /**
+     * Wraps a file channel so that closing the cipher stream leaves it open
+     * for the final force().
+     */
+    static WritableByteChannel unclosable(FileChannel channel) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                // The owner closes the file channel
+            }
+        };
+    }
+
+    private void notifyListener(File file, byte status, long bytes, Exception error) {
+        if (listener != null) {
+            listener.fileFinished(file, status, bytes, error);
+        }
+    }
+}
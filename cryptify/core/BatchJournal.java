@@ -0,0 +1,303 @@
+package cryptify.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Write-ahead journal of a batch job's progress.
+ * 
+ * The journal starts with the job description (mode, cipher and the full
+ * file list) followed by per-file START, CHECKPOINT and DONE/SKIPPED/FAILED
+ * records. Records are group-committed: they are forced to disk every
+ * GROUP_COMMIT_RECORDS records or GROUP_COMMIT_MILLIS milliseconds, not one
+ * fsync each. Losing the last uncommitted group is harmless, because every
+ * record only claims progress whose data was already made durable.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Record encoding and replay are internal
+ * - Single Responsibility: Only records and replays progress
+ */
+public class BatchJournal {
+
+    public static final byte MODE_ENCRYPT = 1;
+    public static final byte MODE_DECRYPT = 2;
+
+    /** File has not been touched yet */
+    public static final byte PENDING = 0;
+    /** File was started; see getCheckpoint() */
+    public static final byte STARTED = 1;
+    /** File was processed successfully */
+    public static final byte DONE = 2;
+    /** File needed no work (already in the target state) */
+    public static final byte SKIPPED = 3;
+    /** File failed on the last attempt */
+    public static final byte FAILED = 4;
+
+    private static final int JOURNAL_MAGIC = 0x434A4E31; // "CJN1"
+    private static final byte REC_JOB = 1;
+    private static final byte REC_FILE = 2;
+    private static final byte REC_START = 3;
+    private static final byte REC_CHECKPOINT = 4;
+    private static final byte REC_DONE = 5;
+    private static final byte REC_SKIPPED = 6;
+    private static final byte REC_FAILED = 7;
+
+    private static final int GROUP_COMMIT_RECORDS = 256;
+    private static final long GROUP_COMMIT_MILLIS = 100;
+
+    private final RecordLog log;
+    private byte mode;
+    private byte cipherType;
+    private final List<File> files = new ArrayList<>();
+    private byte[] status;
+    private long[] checkpoints;
+    private long[] sourceSizes;
+    private long[] sourceModified;
+
+    private int pendingRecords;
+    private long lastCommit = System.currentTimeMillis();
+
+    private BatchJournal(Path journalFile) throws IOException {
+        this.log = new RecordLog(journalFile, JOURNAL_MAGIC);
+    }
+
+    /**
+     * Creates a journal for a new job, replacing any previous journal file.
+     * 
+     * @param journalFile Where to keep the journal
+     * @param files       The files to process, in order
+     * @param mode        MODE_ENCRYPT or MODE_DECRYPT
+     * @param cipherType  Cipher for encryption (ignored for decryption)
+     * @return The new journal
+     * @throws IOException if the journal cannot be written
+     */
+    public static BatchJournal create(Path journalFile, List<File> files, byte mode, byte cipherType)
+            throws IOException {
+        Files.deleteIfExists(journalFile);
+        BatchJournal journal = new BatchJournal(journalFile);
+        journal.mode = mode;
+        journal.cipherType = cipherType;
+        journal.files.addAll(files);
+        journal.allocate();
+
+        Record job = new Record(REC_JOB, -1);
+        job.writeByte(mode);
+        job.writeByte(cipherType);
+        job.writeInt(files.size());
+        journal.log.append(job.toByteArray());
+        for (File file : files) {
+            Record entry = new Record(REC_FILE, -1);
+            entry.writeUTF(file.getAbsolutePath());
+            journal.log.append(entry.toByteArray());
+        }
+        // The job description must be durable before any work starts
+        journal.commit();
+        return journal;
+    }
+
+    /**
+     * Opens an existing journal and replays it.
+     * 
+     * @param journalFile The journal written by an earlier run
+     * @return The journal with all recorded progress applied
+     * @throws IOException if the journal is missing or has no job description
+     */
+    public static BatchJournal open(Path journalFile) throws IOException {
+        if (!Files.exists(journalFile)) {
+            throw new IOException("No batch journal at " + journalFile);
+        }
+        BatchJournal journal = new BatchJournal(journalFile);
+        int expectedFiles = -1;
+
+        for (byte[] payload : journal.log.takeReplayed()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte type = in.readByte();
+            if (type == REC_JOB) {
+                journal.mode = in.readByte();
+                journal.cipherType = in.readByte();
+                expectedFiles = in.readInt();
+            } else if (type == REC_FILE) {
+                journal.files.add(new File(in.readUTF()));
+                if (journal.files.size() == expectedFiles) {
+                    journal.allocate();
+                }
+            } else if (journal.status != null) {
+                journal.apply(type, in);
+            }
+        }
+
+        if (journal.status == null) {
+            journal.log.close();
+            throw new IOException("Batch journal is incomplete: " + journalFile);
+        }
+        return journal;
+    }
+
+    public byte getMode() {
+        return mode;
+    }
+
+    public byte getCipherType() {
+        return cipherType;
+    }
+
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public byte getStatus(int index) {
+        return status[index];
+    }
+
+    /**
+     * Gets the last durable plaintext offset recorded for a started file.
+     */
+    public long getCheckpoint(int index) {
+        return checkpoints[index];
+    }
+
+    /**
+     * Checks if a started file's source still has the size and modification
+     * time recorded when it was started.
+     */
+    public boolean sourceUnchanged(int index, long size, long lastModified) {
+        return sourceSizes[index] == size && sourceModified[index] == lastModified;
+    }
+
+    /**
+     * Records that a file is being started from the beginning.
+     */
+    public synchronized void started(int index, long sourceSize, long sourceLastModified) throws IOException {
+        Record out = new Record(REC_START, index);
+        out.writeLong(sourceSize);
+        out.writeLong(sourceLastModified);
+        append(out);
+        status[index] = STARTED;
+        sourceSizes[index] = sourceSize;
+        sourceModified[index] = sourceLastModified;
+        checkpoints[index] = 0;
+    }
+
+    /**
+     * Records that the first plainOffset bytes of a file are safely on disk.
+     */
+    public synchronized void checkpoint(int index, long plainOffset) throws IOException {
+        Record out = new Record(REC_CHECKPOINT, index);
+        out.writeLong(plainOffset);
+        append(out);
+        checkpoints[index] = plainOffset;
+    }
+
+    public synchronized void done(int index) throws IOException {
+        append(new Record(REC_DONE, index));
+        status[index] = DONE;
+    }
+
+    public synchronized void skipped(int index) throws IOException {
+        append(new Record(REC_SKIPPED, index));
+        status[index] = SKIPPED;
+    }
+
+    public synchronized void failed(int index, String message) throws IOException {
+        Record out = new Record(REC_FAILED, index);
+        out.writeUTF(message == null ? "" : message);
+        append(out);
+        status[index] = FAILED;
+    }
+
+    /**
+     * Forces all records written so far to disk.
+     */
+    public synchronized void commit() throws IOException {
+        log.sync();
+        pendingRecords = 0;
+        lastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * Commits and closes the journal.
+     */
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Closes and deletes the journal once a job has fully completed.
+     */
+    public synchronized void discard() throws IOException {
+        log.close();
+        log.delete();
+    }
+
+    private void allocate() {
+        status = new byte[files.size()];
+        checkpoints = new long[files.size()];
+        sourceSizes = new long[files.size()];
+        sourceModified = new long[files.size()];
+    }
+
+    private void apply(byte type, DataInputStream in) throws IOException {
+        int index = in.readInt();
+        switch (type) {
+            case REC_START:
+                status[index] = STARTED;
+                sourceSizes[index] = in.readLong();
+                sourceModified[index] = in.readLong();
+                checkpoints[index] = 0;
+                break;
+            case REC_CHECKPOINT:
+                checkpoints[index] = in.readLong();
+                break;
+            case REC_DONE:
+                status[index] = DONE;
+                break;
+            case REC_SKIPPED:
+                status[index] = SKIPPED;
+                break;
+            case REC_FAILED:
+                status[index] = FAILED;
+                break;
+            default:
+                throw new IOException("Unknown journal record type: " + type);
+        }
+    }
+
+    /**
+     * Appends a record, committing the group when it is due.
+     */
+    private void append(Record record) throws IOException {
+        log.append(record.toByteArray());
+        pendingRecords++;
+        if (pendingRecords >= GROUP_COMMIT_RECORDS
+                || System.currentTimeMillis() - lastCommit >= GROUP_COMMIT_MILLIS) {
+            commit();
+        }
+    }
+
+    /**
+     * A journal record being encoded: type, optional file index, then fields.
+     */
+    private static class Record extends DataOutputStream {
+
+        Record(byte type, int index) throws IOException {
+            super(new ByteArrayOutputStream(32));
+            writeByte(type);
+            if (index >= 0) {
+                writeInt(index);
+            }
+        }
+
+        byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+}
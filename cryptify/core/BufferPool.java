@@ -0,0 +1,212 @@
+package cryptify.core;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers shared by the encryption pipeline.
+ * Buffers are grouped in power-of-two size classes, leased per chunk and
+ * handed back when the chunk is done, so steady-state processing allocates
+ * nothing on the heap. The shared pool reserves every lease in the shared
+ * MemoryBudget, so acquire() may wait while the budget is used up.
+ * 
+ * Design Pattern: Object Pool (with a shared default instance)
+ * OOP Principles:
+ * - Encapsulation: Size classes and free lists are internal
+ * - Thread Safety: Free lists and counters are lock-free; a buffer may be
+ *   released on another thread than the one that leased it
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12; // 4 KiB
+    private static final int MAX_SHIFT = 24; // 16 MiB
+    // Largest buffer that is kept for reuse
+    static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+    private static final byte[] ZEROS = new byte[8192];
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_POOLED_BYTES, true, MemoryBudget.shared());
+
+    private final ConcurrentLinkedDeque<ByteBuffer>[] freeLists;
+    private final long maxPooledBytes;
+    private final MemoryBudget budget;
+    // The budget reservation of each leased buffer, by identity
+    private final Map<ByteBuffer, MemoryBudget.Reservation> reservations =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+    private volatile boolean zeroOnRelease;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesOutstanding = new AtomicLong();
+    private final AtomicLong bytesPooled = new AtomicLong();
+
+    /**
+     * Creates a pool.
+     * 
+     * @param maxPooledBytes Upper bound on the bytes kept in free lists
+     * @param zeroOnRelease  Whether buffers are wiped when returned
+     */
+    public BufferPool(long maxPooledBytes, boolean zeroOnRelease) {
+        this(maxPooledBytes, zeroOnRelease, null);
+    }
+
+    /**
+     * Creates a pool whose leases are reserved in a memory budget.
+     * 
+     * @param maxPooledBytes Upper bound on the bytes kept in free lists
+     * @param zeroOnRelease  Whether buffers are wiped when returned
+     * @param budget         Budget to reserve leased bytes in, or null
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxPooledBytes, boolean zeroOnRelease, MemoryBudget budget) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.budget = budget;
+        this.zeroOnRelease = zeroOnRelease;
+        this.freeLists = new ConcurrentLinkedDeque[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * Gets the process-wide pool used by the cipher and file classes.
+     * 
+     * @return The shared pool
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Leases a direct buffer with room for at least the given number of bytes.
+     * The buffer's position is 0 and its limit is the requested size;
+     * clear() exposes the full size-class capacity.
+     * 
+     * @param size Minimum capacity in bytes
+     * @return A buffer that must be handed back with release()
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClassOf(size);
+        MemoryBudget.Reservation reservation = null;
+        if (budget != null) {
+            reservation = budget.reserve(sizeClass >= 0 ? 1 << (sizeClass + MIN_SHIFT) : size);
+        }
+        ByteBuffer buffer = null;
+
+        if (sizeClass >= 0) {
+            buffer = freeLists[sizeClass].pollFirst();
+        }
+        if (buffer != null) {
+            hits.incrementAndGet();
+            bytesPooled.addAndGet(-buffer.capacity());
+        } else {
+            misses.incrementAndGet();
+            int capacity = sizeClass >= 0 ? 1 << (sizeClass + MIN_SHIFT) : size;
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        if (reservation != null) {
+            reservations.put(buffer, reservation);
+        }
+        bytesOutstanding.addAndGet(buffer.capacity());
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a leased buffer to the pool, from any thread.
+     * Buffers larger than the biggest size class, or arriving while the pool
+     * is full, are simply dropped.
+     * 
+     * @param buffer The buffer to return (null is ignored)
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        bytesOutstanding.addAndGet(-buffer.capacity());
+        MemoryBudget.Reservation reservation = reservations.remove(buffer);
+        if (reservation != null) {
+            reservation.close();
+        }
+
+        int sizeClass = sizeClassOf(buffer.capacity());
+        if (sizeClass < 0 || !buffer.isDirect() || 1 << (sizeClass + MIN_SHIFT) != buffer.capacity()) {
+            return;
+        }
+        if (bytesPooled.addAndGet(buffer.capacity()) > maxPooledBytes) {
+            bytesPooled.addAndGet(-buffer.capacity());
+            return;
+        }
+        if (zeroOnRelease) {
+            wipe(buffer);
+        }
+        buffer.clear();
+        freeLists[sizeClass].offerFirst(buffer);
+    }
+
+    /**
+     * Sets whether returned buffers are overwritten with zeros.
+     * 
+     * @param zeroOnRelease true to wipe buffers on release
+     */
+    public void setZeroOnRelease(boolean zeroOnRelease) {
+        this.zeroOnRelease = zeroOnRelease;
+    }
+
+    /**
+     * Takes a snapshot of the pool counters.
+     * 
+     * @return Current statistics
+     */
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), bytesOutstanding.get(), bytesPooled.get());
+    }
+
+    /**
+     * Maps a size to its size-class index, or -1 if it is too large to pool.
+     */
+    private static int sizeClassOf(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+
+    /**
+     * Overwrites the whole buffer with zeros.
+     */
+    private static void wipe(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        }
+    }
+
+    /**
+     * Immutable snapshot of pool usage.
+     */
+    public static class Stats {
+
+        public final long hits;
+        public final long misses;
+        public final long bytesOutstanding;
+        public final long bytesPooled;
+
+        Stats(long hits, long misses, long bytesOutstanding, long bytesPooled) {
+            this.hits = hits;
+            this.misses = misses;
+            this.bytesOutstanding = bytesOutstanding;
+            this.bytesPooled = bytesPooled;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses
+                    + ", outstanding=" + bytesOutstanding + " B, pooled=" + bytesPooled + " B";
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cryptify.core;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+
+/**
+ * Caesar cipher implementation using character shifting.
+ * Only ASCII letters are shifted; every other byte (including UTF-8
+ * multi-byte sequences) passes through unchanged, so output length always
+ * equals input length.
+ * 
+ * OOP Principles Demonstrated:
+ * - Inheritance: Extends LengthPreservingCipher (and so Cipher)
+ * - Encapsulation: Shift value derived from key internally
+ * - Polymorphism: Can be used wherever Cipher is expected
+ */
+public class CaesarCipher extends LengthPreservingCipher {
+
+    private static final byte CIPHER_TYPE = 1;
+    private int shift;
+
+    public CaesarCipher(SecretKey key) {
+        super(key);
+        this.shift = deriveShiftFromKey();
+    }
+
+    @Override
+    public byte getCipherType() {
+        return CIPHER_TYPE;
+    }
+
+    @Override
+    public String getCipherName() {
+        return "Caesar Cipher";
+    }
+
+    /**
+     * Applies the Caesar shift to every byte in the buffer.
+     */
+    @Override
+    protected void transform(ByteBuffer buffer, long position, boolean encrypting) {
+        int shiftAmount = encrypting ? shift : -shift;
+        int normalizedShift = ((shiftAmount % 26) + 26) % 26;
+
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            buffer.put(i, applyCaesarShift(buffer.get(i), normalizedShift));
+        }
+    }
+
+    /**
+     * Applies Caesar shift to a single byte.
+     * Private helper method - encapsulation
+     */
+    private byte applyCaesarShift(byte b, int normalizedShift) {
+        if (b >= 'A' && b <= 'Z') {
+            return (byte) ((b - 'A' + normalizedShift) % 26 + 'A');
+        } else if (b >= 'a' && b <= 'z') {
+            return (byte) ((b - 'a' + normalizedShift) % 26 + 'a');
+        }
+        return b;
+    }
+
+    /**
+     * Derives shift value from encryption key.
+     * Encapsulated - users don't need to know how shift is calculated
+     */
+    private int deriveShiftFromKey() {
+        byte[] keyBytes = key.getEncoded();
+        int sum = 0;
+        for (int i = 0; i < Math.min(4, keyBytes.length); i++) {
+            sum += keyBytes[i] & 0xFF;
+        }
+        return (sum % 25) + 1;
+    }
+}
@@ -0,0 +1,274 @@
+package cryptify.core;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Abstract base class for all cipher implementations.
+ * Provides common interface and template for encryption/decryption operations.
+ * 
+ * Design Pattern: Template Method Pattern
+ * OOP Principle: Inheritance, Polymorphism, Encapsulation
+ */
+public abstract class Cipher {
+
+    /**
+     * Size of the buffers used when streaming data through a cipher.
+     */
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    protected SecretKey key;
+
+    /**
+     * Constructor requiring a secret key for encryption/decryption.
+     * 
+     * @param key The encryption key
+     */
+    public Cipher(SecretKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Encrypts the given data.
+     * 
+     * @param data The plaintext data to encrypt
+     * @return The encrypted data
+     * @throws Exception if encryption fails
+     */
+    public abstract byte[] encrypt(byte[] data) throws Exception;
+
+    /**
+     * Decrypts the given data.
+     * 
+     * @param data The encrypted data to decrypt
+     * @return The decrypted plaintext data
+     * @throws Exception if decryption fails
+     */
+    public abstract byte[] decrypt(byte[] data) throws Exception;
+
+    /**
+     * Creates a channel that encrypts everything written to it into the given
+     * channel. Closing the returned channel finishes the stream and closes the
+     * target.
+     * 
+     * @param out The channel receiving the encrypted stream
+     * @return A channel accepting plaintext
+     * @throws IOException if the stream cannot be started
+     */
+    public abstract WritableByteChannel newEncryptingChannel(WritableByteChannel out) throws IOException;
+
+    /**
+     * Creates a channel that yields the decrypted contents of the given channel.
+     * 
+     * @param in The channel supplying the encrypted stream
+     * @return A channel yielding plaintext
+     * @throws IOException if the stream cannot be opened
+     */
+    public abstract ReadableByteChannel newDecryptingChannel(ReadableByteChannel in) throws IOException;
+
+    /**
+     * Continues an encrypted stream that was interrupted after a whole
+     * number of STREAM_CHUNK_SIZE plaintext chunks.
+     * 
+     * @param out          Channel positioned right after the first
+     *                     getEncryptedOffset(plainOffset) bytes of the stream
+     * @param streamPrefix The first getStreamPrefixSize() bytes of the stream
+     * @param plainOffset  Plaintext bytes already encrypted (a chunk multiple)
+     * @return A channel accepting the remaining plaintext
+     * @throws IOException if the stream cannot be continued
+     */
+    public WritableByteChannel resumeEncryptingChannel(WritableByteChannel out, byte[] streamPrefix,
+            long plainOffset) throws IOException {
+        return resumeEncryptingChannel(out, streamPrefix, plainOffset, true);
+    }
+
+    /**
+     * Encrypts one section of a stream whose sections are encrypted
+     * separately (see StripedVolumes), continuing at a chunk boundary like
+     * the method above. Closing the channel finishes the stream only for
+     * the last section; any other section must end on a chunk boundary,
+     * and the next section continues right after it.
+     * 
+     * @param out          Channel receiving the section's encrypted bytes
+     * @param streamPrefix The first getStreamPrefixSize() bytes of the stream
+     * @param plainOffset  Where the section starts (a chunk multiple)
+     * @param last         Whether the stream ends with this section
+     * @return A channel accepting the section's plaintext
+     * @throws IOException if the section cannot be started
+     */
+    public abstract WritableByteChannel resumeEncryptingChannel(WritableByteChannel out, byte[] streamPrefix,
+            long plainOffset, boolean last) throws IOException;
+
+    /**
+     * Continues decrypting a stream from a chunk boundary.
+     * 
+     * @param in           Channel positioned at getEncryptedOffset(plainOffset)
+     * @param streamPrefix The first getStreamPrefixSize() bytes of the stream
+     * @param plainOffset  Plaintext bytes already decrypted (a chunk multiple)
+     * @return A channel yielding the remaining plaintext
+     * @throws IOException if the stream cannot be continued
+     */
+    public abstract ReadableByteChannel resumeDecryptingChannel(ReadableByteChannel in, byte[] streamPrefix,
+            long plainOffset) throws IOException;
+
+    /**
+     * Gets the number of bytes an encrypted stream starts with before any
+     * chunk data (for example an IV).
+     * 
+     * @return Stream prefix size in bytes
+     */
+    public int getStreamPrefixSize() {
+        return 0;
+    }
+
+    /**
+     * Maps a plaintext offset on a chunk boundary to the matching offset in
+     * the encrypted stream.
+     * 
+     * @param plainOffset A multiple of STREAM_CHUNK_SIZE
+     * @return The offset of the same position in the encrypted stream
+     */
+    public long getEncryptedOffset(long plainOffset) {
+        return plainOffset;
+    }
+
+    /**
+     * Encrypts everything read from the input stream into the output stream.
+     * Memory use is constant regardless of the payload size.
+     * Neither stream is closed.
+     * 
+     * Design Pattern: Template Method - built on newEncryptingChannel()
+     * 
+     * @param in  The plaintext source
+     * @param out The encrypted destination
+     * @throws Exception if encryption fails
+     */
+    public void encrypt(InputStream in, OutputStream out) throws Exception {
+        WritableByteChannel sink = newEncryptingChannel(nonClosingChannel(out));
+        transfer(Channels.newChannel(in), sink);
+        sink.close();
+    }
+
+    /**
+     * Decrypts everything read from the input stream into the output stream.
+     * Memory use is constant regardless of the payload size.
+     * Neither stream is closed.
+     * 
+     * Design Pattern: Template Method - built on newDecryptingChannel()
+     * 
+     * @param in  The encrypted source
+     * @param out The plaintext destination
+     * @throws Exception if decryption fails
+     */
+    public void decrypt(InputStream in, OutputStream out) throws Exception {
+        ReadableByteChannel source = newDecryptingChannel(Channels.newChannel(in));
+        transfer(source, Channels.newChannel(out));
+        out.flush();
+    }
+
+    /**
+     * Gets the cipher type identifier (used in file headers).
+     * 
+     * @return Byte identifier for this cipher type
+     */
+    public abstract byte getCipherType();
+
+    /**
+     * Gets the human-readable name of this cipher.
+     * 
+     * @return The cipher name
+     */
+    public abstract String getCipherName();
+
+    /**
+     * Gets the secret key being used by this cipher.
+     * 
+     * @return The secret key
+     */
+    public SecretKey getKey() {
+        return key;
+    }
+
+    /**
+     * Copies a channel to another until end of stream, using a pooled buffer
+     * of the host profile's chunk size. Between chunks, waiting interactive
+     * jobs may run (see JobScheduler.yieldPoint).
+     * 
+     * @param source The channel to read from
+     * @param sink   The channel to write to
+     * @return Number of bytes copied
+     * @throws IOException if either channel fails
+     */
+    protected static long transfer(ReadableByteChannel source, WritableByteChannel sink) throws IOException {
+        ByteBuffer buffer = BufferPool.shared().acquire(HostProfile.current().getChunkSize());
+        try {
+            long total = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                total += writeFully(sink, buffer);
+                buffer.clear();
+                JobScheduler.yieldPoint();
+            }
+            return total;
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer to the channel.
+     * 
+     * @return Number of bytes written
+     */
+    protected static int writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    /**
+     * Reads from the channel until the buffer is full.
+     * 
+     * @return true if the buffer was filled, false if the stream ended first
+     */
+    protected static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wraps an output stream in a channel whose close() only flushes, so that
+     * finishing a cipher stream leaves the caller's stream open.
+     */
+    private static WritableByteChannel nonClosingChannel(OutputStream out) {
+        WritableByteChannel channel = Channels.newChannel(out);
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.flush();
+            }
+        };
+    }
+}
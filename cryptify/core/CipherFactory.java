@@ -1,3 +1,5 @@
+package cryptify.core;
+
 import javax.crypto.SecretKey;
 import java.io.File;
 import java.io.IOException;
@@ -39,6 +41,49 @@ public class CipherFactory {
         }
     }
 
+    /**
+     * Gets the display name of a cipher type without creating a cipher.
+     * 
+     * @param type The cipher type (1=Caesar, 2=XOR, 3=AES)
+     * @return The cipher name
+     * @throws IllegalArgumentException if type is unknown
+     */
+    public static String getCipherName(byte type) {
+        switch (type) {
+            case 1:
+                return "Caesar Cipher";
+            case 2:
+                return "XOR Cipher";
+            case 3:
+                return "AES-GCM Encryption";
+            default:
+                throw new IllegalArgumentException("Unknown cipher type: " + type);
+        }
+    }
+
+    /**
+     * Parses a cipher name as typed on a command line or in a URL.
+     * 
+     * @param name "caesar", "xor" or "aes" (any case), or the type number
+     * @return The cipher type
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static byte parseCipherType(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "caesar":
+            case "1":
+                return 1;
+            case "xor":
+            case "2":
+                return 2;
+            case "aes":
+            case "3":
+                return 3;
+            default:
+                throw new IllegalArgumentException("Unknown cipher: " + name);
+        }
+    }
+
     /**
      * Detects the cipher type from a file and creates the appropriate cipher.
      * This is the power of the factory pattern - automatic detection!
@@ -0,0 +1,590 @@
+package cryptify.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKey;
+
+/**
+ * Entry point for embedding the encryption engine in other programs.
+ * 
+ * An engine is created with its keys and default cipher and can then be
+ * shared by any number of threads. Every operation exists in a
+ * synchronous form and an asynchronous form that runs on the engine's own
+ * workers and returns a CompletableFuture. Asynchronous jobs are scheduled
+ * by priority class (see JobScheduler): previews and jobs submitted as
+ * INTERACTIVE overtake bulk work, which runs largest file first.
+ * 
+ * Files are decrypted with whichever key of the KeyRing they were encrypted
+ * with; encryption uses the ring's active key. Operations on the same file
+ * are serialized, so two threads can never replace one file at once. Each
+ * file has a lock of its own, so a long job on one file never holds up a
+ * job on another; a lock is dropped once no call or queued job refers to it.
+ * 
+ * With a SearchIndex attached, .txt files are indexed while they are
+ * encrypted, and search() finds files by their words without decrypting
+ * them. With an EncryptionStateIndex attached, isEncrypted() and describe()
+ * mostly only stat the file, and with a PlaintextCache attached, repeated
+ * reads are not decrypted again.
+ * 
+ * Nothing in this package depends on JavaFX, and creating an engine does no
+ * I/O: the scheduler starts its threads on first use.
+ * 
+ * Design Pattern: Facade - hides CryptoHelper, CipherFactory, FileHeaderUtil
+ * OOP Principles:
+ * - Configuration: Keys and the default cipher are fixed at construction;
+ *   the indexes and the cache, which are opened separately (the search
+ *   index needs a key), are attached later, and the worker count can be
+ *   changed once the host profile is known
+ * - Thread Safety: All methods may be called concurrently
+ */
+public class CryptifyEngine implements AutoCloseable {
+
+    private final KeyRing keys;
+    private final byte defaultCipher;
+    private final JobScheduler scheduler;
+    // By normalized path; a lock is only kept while something refers to it
+    private final ConcurrentHashMap<String, FileLock> fileLocks = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ReentrantLock> droppedLocks = new ReferenceQueue<>();
+    private volatile SearchIndex searchIndex;
+    private volatile EncryptionStateIndex stateIndex;
+    private volatile PlaintextCache readCache;
+
+    /**
+     * Creates an engine with AES as the default cipher and one worker per
+     * file the host profile can process concurrently.
+     * 
+     * @param keys The keys to use; keys added to the ring later are seen too
+     */
+    public CryptifyEngine(KeyRing keys) {
+        this(keys, CipherFactory.parseCipherType("aes"), HostProfile.current().getWorkerCount());
+    }
+
+    /**
+     * Creates an engine.
+     * 
+     * @param keys          The keys to use; keys added later are seen too
+     * @param defaultCipher Cipher for encryption (1=Caesar, 2=XOR, 3=AES)
+     * @param threads       Worker threads for the asynchronous methods
+     */
+    public CryptifyEngine(KeyRing keys, byte defaultCipher, int threads) {
+        CipherFactory.getCipherName(defaultCipher);
+        this.keys = keys;
+        this.defaultCipher = defaultCipher;
+        this.scheduler = new JobScheduler("cryptify-engine", threads);
+    }
+
+    /**
+     * Creates an engine with a single key derived from a password.
+     * 
+     * @param password The password
+     * @return A new engine
+     * @throws Exception if the key cannot be derived
+     */
+    public static CryptifyEngine withPassword(String password) throws Exception {
+        return new CryptifyEngine(new KeyRing(CryptoHelper.deriveKey(password)));
+    }
+
+    public KeyRing getKeyRing() {
+        return keys;
+    }
+
+    public byte getDefaultCipher() {
+        return defaultCipher;
+    }
+
+    /**
+     * Changes the number of worker threads, e.g. to that of a host profile
+     * calibrated after the engine was created. Running jobs are not
+     * interrupted.
+     * 
+     * @param threads Worker threads for the asynchronous methods
+     */
+    public void setWorkerCount(int threads) {
+        scheduler.setThreads(threads);
+    }
+
+    public int getWorkerCount() {
+        return scheduler.getThreads();
+    }
+
+    /**
+     * Attaches a state index that isEncrypted() and describe() answer from.
+     * 
+     * @param index The index, or null to read the header every time
+     */
+    public void setStateIndex(EncryptionStateIndex index) {
+        this.stateIndex = index;
+    }
+
+    public EncryptionStateIndex getStateIndex() {
+        return stateIndex;
+    }
+
+    /**
+     * Attaches a search index that .txt files are added to as they are
+     * encrypted, and kept current in as they are decrypted.
+     * 
+     * @param index The index, or null to stop indexing
+     */
+    public void setSearchIndex(SearchIndex index) {
+        this.searchIndex = index;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Attaches a cache that preview() and read() serve repeated reads from.
+     * Files this engine changes are dropped from it right away; files
+     * changed elsewhere are noticed by the cache itself.
+     * 
+     * @param cache The cache, or null to decrypt on every read
+     */
+    public void setReadCache(PlaintextCache cache) {
+        this.readCache = cache;
+    }
+
+    public PlaintextCache getReadCache() {
+        return readCache;
+    }
+
+    /**
+     * Encrypts a file in place with the default cipher.
+     */
+    public void encryptFile(File file) throws Exception {
+        encryptFile(file, defaultCipher);
+    }
+
+    /**
+     * Encrypts a file in place.
+     * 
+     * @param file       The file
+     * @param cipherType The cipher (1=Caesar, 2=XOR, 3=AES)
+     * @throws Exception if encryption fails
+     */
+    public void encryptFile(File file, byte cipherType) throws Exception {
+        encryptFile(file, cipherType, false);
+    }
+
+    /**
+     * Encrypts a file in place, optionally with an integrity tree.
+     * 
+     * @param file       The file
+     * @param cipherType The cipher (1=Caesar, 2=XOR, 3=AES)
+     * @param integrity  Whether to append a Merkle tree (Caesar and XOR only)
+     * @throws Exception if encryption fails
+     */
+    public void encryptFile(File file, byte cipherType, boolean integrity) throws Exception {
+        SecretKey key = activeKey();
+        SearchIndex index = searchIndex;
+        SearchIndex.Tokens tokens = index != null && SearchIndex.isIndexable(file) ? index.newTokens() : null;
+        ReentrantLock lock = lockFor(file);
+        lock.lock();
+        try {
+            // The words are collected from the plaintext as it is encrypted
+            CryptoHelper.encryptFile(file, key, cipherType, integrity, tokens);
+            invalidate(file);
+            if (tokens != null) {
+                index.put(file, tokens);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts a Caesar or XOR file without writing a second copy of it.
+     * The header goes into a trailer; decryptFile() handles such files.
+     * 
+     * @param file       The file
+     * @param cipherType The cipher (1=Caesar or 2=XOR)
+     * @throws Exception if the cipher changes the data length or encryption fails
+     */
+    public void encryptFileInPlace(File file, byte cipherType) throws Exception {
+        SecretKey key = activeKey();
+        ReentrantLock lock = lockFor(file);
+        lock.lock();
+        try {
+            boolean current = isIndexCurrent(file);
+            CryptoHelper.encryptFileInPlace(file, key, cipherType);
+            invalidate(file);
+            updateIndex(file, current, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decrypts a file in place with the key it was encrypted with.
+     * 
+     * @param file The file
+     * @throws Exception if no key matches or decryption fails
+     */
+    public void decryptFile(File file) throws Exception {
+        ReentrantLock lock = lockFor(file);
+        lock.lock();
+        try {
+            boolean current = isIndexCurrent(file);
+            CryptoHelper.decryptFile(file, keys.keyFor(file));
+            invalidate(file);
+            updateIndex(file, current, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encrypts a copy of a file into volumes spread round-robin over
+     * several directories, all written at once (see StripedVolumes). The
+     * file itself is not changed.
+     * 
+     * @param file       The file
+     * @param cipherType The cipher (1=Caesar, 2=XOR, 3=AES)
+     * @param volumeSize Plaintext bytes per volume (see StripedVolumes.volumeSizeFor)
+     * @param targets    Directories for the volumes, e.g. one per disk
+     * @return The volume set, whose manifest is in the first directory
+     * @throws Exception if a volume cannot be written
+     */
+    public StripedVolumes encryptToVolumes(File file, byte cipherType, long volumeSize, List<Path> targets)
+            throws Exception {
+        SecretKey key = activeKey();
+        ReentrantLock lock = lockFor(file);
+        lock.lock();
+        try {
+            return StripedVolumes.encrypt(file, key, cipherType, volumeSize, targets,
+                    StripedVolumes.defaultThreads(targets));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decrypts a volume set into one file, reading all volumes at once, with
+     * the key it was encrypted with.
+     * 
+     * @param manifest The set's manifest
+     * @param target   The plaintext file to write
+     * @throws Exception if no key matches or a volume is missing or damaged
+     */
+    public void decryptVolumes(Path manifest, File target) throws Exception {
+        StripedVolumes volumes = StripedVolumes.open(manifest);
+        SecretKey key = keys.find(volumes.getHeader());
+        if (key == null) {
+            throw new IOException("None of the keys entered matches these volumes");
+        }
+        ReentrantLock lock = lockFor(target);
+        lock.lock();
+        try {
+            volumes.decrypt(target, key, StripedVolumes.defaultThreads(volumes.getDirectories()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks every chunk of a file with an integrity tree, with as many
+     * threads as the host profile has workers, without changing it.
+     * 
+     * @param file The file (format 3)
+     * @return Damaged body ranges as { offset, length }; empty if intact
+     * @throws Exception if no key matches or the tree itself is damaged
+     */
+    public List<long[]> verify(File file) throws Exception {
+        return IntegrityTree.verify(file, keys.keyFor(file), HostProfile.current().getWorkerCount());
+    }
+
+    /**
+     * Finds the files that contain every word of a query, using the
+     * attached search index. Only matches that changed since they were
+     * indexed are decrypted (see SearchIndex.search()).
+     * 
+     * @param query Words separated by spaces or punctuation
+     * @return The matching files
+     * @throws Exception if no index is attached or it cannot be updated
+     */
+    public List<File> search(String query) throws Exception {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            throw new IOException("No search index has been set");
+        }
+        return index.search(query, keys);
+    }
+
+    /**
+     * Encrypts a stream with the default cipher. Neither stream is closed.
+     */
+    public void encrypt(InputStream in, OutputStream out) throws Exception {
+        CryptoHelper.encryptStream(in, out, activeKey(), defaultCipher);
+    }
+
+    /**
+     * Decrypts a headered stream with the key it was encrypted with.
+     * Neither stream is closed.
+     */
+    public void decrypt(InputStream in, OutputStream out) throws Exception {
+        byte[] header = CryptoHelper.readStreamHeader(in);
+        SecretKey key = keys.find(header);
+        if (key == null) {
+            throw new IOException("None of the keys entered matches this input");
+        }
+        CryptoHelper.decryptStream(in, header, out, key);
+    }
+
+    /**
+     * Decrypts the beginning of a file in memory without changing it.
+     * 
+     * @param file     The file (unencrypted files are returned as they are)
+     * @param maxBytes How many plaintext bytes to return at most
+     * @return The first bytes of the plaintext
+     * @throws Exception if no key matches or decryption fails
+     */
+    public byte[] preview(File file, int maxBytes) throws Exception {
+        SecretKey key = FileHeaderUtil.isEncryptedFile(file) ? keys.keyFor(file) : null;
+        PlaintextCache cache = readCache;
+        if (cache == null) {
+            return CryptoHelper.previewFile(file, key, maxBytes);
+        }
+        ByteBuffer preview = ByteBuffer.allocate(maxBytes);
+        int read = cache.read(file, key, 0, preview);
+        return Arrays.copyOf(preview.array(), Math.max(read, 0));
+    }
+
+    /**
+     * Reads plaintext from a file without changing it, through the read
+     * cache if one is attached.
+     * 
+     * @param file     The file (unencrypted files are read as they are)
+     * @param position Plaintext offset to read from
+     * @param dst      Buffer to read into, as far as it has room
+     * @return Bytes read, or -1 if position is at or past the end
+     * @throws Exception if no key matches or decryption fails
+     */
+    public int read(File file, long position, ByteBuffer dst) throws Exception {
+        SecretKey key = FileHeaderUtil.isEncryptedFile(file) ? keys.keyFor(file) : null;
+        PlaintextCache cache = readCache;
+        if (cache != null) {
+            return cache.read(file, key, position, dst);
+        }
+        // Without a cache, the single read() decrypts from the nearest chunk
+        return new PlaintextCache(0, false).read(file, key, position, dst);
+    }
+
+    /**
+     * Checks if a file has a valid encryption header.
+     */
+    public boolean isEncrypted(File file) {
+        EncryptionStateIndex index = stateIndex;
+        if (index == null) {
+            return FileHeaderUtil.isEncryptedFile(file);
+        }
+        try {
+            return index.lookup(file).isEncrypted();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the name of the cipher a file is encrypted with, for display.
+     * 
+     * @param file The file
+     * @return The cipher name, or an empty string if it is not encrypted
+     * @throws IOException if the file cannot be read
+     */
+    public String describe(File file) throws IOException {
+        EncryptionStateIndex index = stateIndex;
+        if (index != null) {
+            return index.lookup(file).getLabel();
+        }
+        if (!file.isFile()) {
+            throw new IOException("File not found: " + file);
+        }
+        byte[] header = FileHeaderUtil.readMetadata(file);
+        return header != null ? CipherFactory.getCipherName(header[4]) : "";
+    }
+
+    public CompletableFuture<Void> encryptFileAsync(File file) {
+        return encryptFileAsync(file, defaultCipher);
+    }
+
+    public CompletableFuture<Void> encryptFileAsync(File file, byte cipherType) {
+        return encryptFileAsync(file, cipherType, false);
+    }
+
+    public CompletableFuture<Void> encryptFileAsync(File file, byte cipherType, boolean integrity) {
+        return encryptFileAsync(file, cipherType, integrity, JobScheduler.Priority.BULK);
+    }
+
+    public CompletableFuture<Void> encryptFileAsync(File file, byte cipherType, boolean integrity,
+            JobScheduler.Priority priority) {
+        return runAsync(file, priority, () -> encryptFile(file, cipherType, integrity));
+    }
+
+    public CompletableFuture<Void> encryptFileInPlaceAsync(File file, byte cipherType) {
+        return runAsync(file, JobScheduler.Priority.BULK, () -> encryptFileInPlace(file, cipherType));
+    }
+
+    public CompletableFuture<Void> decryptFileAsync(File file) {
+        return decryptFileAsync(file, JobScheduler.Priority.BULK);
+    }
+
+    public CompletableFuture<Void> decryptFileAsync(File file, JobScheduler.Priority priority) {
+        return runAsync(file, priority, () -> decryptFile(file));
+    }
+
+    public CompletableFuture<List<File>> searchAsync(String query) {
+        // Reading the index and a few changed matches
+        return readAsync(0, () -> search(query));
+    }
+
+    public CompletableFuture<byte[]> previewAsync(File file, int maxBytes) {
+        return readAsync(maxBytes, () -> preview(file, maxBytes));
+    }
+
+    public CompletableFuture<Boolean> isEncryptedAsync(File file) {
+        return readAsync(0, () -> isEncrypted(file));
+    }
+
+    public CompletableFuture<String> describeAsync(File file) {
+        return readAsync(0, () -> describe(file));
+    }
+
+    /**
+     * Stops the worker threads once queued work has finished.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * A file operation that may throw checked exceptions.
+     */
+    private interface FileTask {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs a job that replaces no file, so it needs no file lock, as
+     * interactive work.
+     * 
+     * @param size Bytes it will process (0 if unknown)
+     * @param task The job
+     */
+    private <T> CompletableFuture<T> readAsync(long size, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        scheduler.submit(JobScheduler.Priority.INTERACTIVE, size, null, () -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<Void> runAsync(File file, JobScheduler.Priority priority, FileTask task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        scheduler.submit(priority, file.length(), lockFor(file), () -> {
+            try {
+                task.run();
+                future.complete(null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private void invalidate(File file) {
+        PlaintextCache cache = readCache;
+        if (cache != null) {
+            cache.invalidate(file);
+        }
+    }
+
+    private boolean isIndexCurrent(File file) {
+        SearchIndex index = searchIndex;
+        return index != null && SearchIndex.isIndexable(file) && index.isCurrent(file);
+    }
+
+    /**
+     * Keeps the search index current after a file was encrypted or
+     * decrypted where it is: its words have not changed, so an up-to-date
+     * entry only needs the new size and time; otherwise the file is read.
+     * 
+     * @param file    The file
+     * @param current Whether its entry was up to date before
+     * @param key     Its key now (null if it is no longer encrypted)
+     */
+    private void updateIndex(File file, boolean current, SecretKey key) throws Exception {
+        SearchIndex index = searchIndex;
+        if (index == null || !SearchIndex.isIndexable(file)) {
+            return;
+        }
+        if (current) {
+            index.touch(file);
+        } else {
+            index.index(file, key);
+        }
+    }
+
+    private SecretKey activeKey() throws IOException {
+        SecretKey key = keys.getActiveKey();
+        if (key == null) {
+            throw new IOException("No encryption key has been set");
+        }
+        return key;
+    }
+
+    /**
+     * Gets the lock of a file. Callers and queued jobs keep it reachable
+     * while they use it, so only the same file ever shares it.
+     */
+    private ReentrantLock lockFor(File file) {
+        Reference<? extends ReentrantLock> dropped;
+        while ((dropped = droppedLocks.poll()) != null) {
+            // Unless a new lock has taken its place
+            fileLocks.remove(((FileLock) dropped).path, dropped);
+        }
+        String path = file.toPath().toAbsolutePath().normalize().toString();
+        ReentrantLock[] lock = new ReentrantLock[1];
+        fileLocks.compute(path, (key, entry) -> {
+            lock[0] = entry != null ? entry.get() : null;
+            if (lock[0] == null) {
+                lock[0] = new ReentrantLock();
+                return new FileLock(key, lock[0], droppedLocks);
+            }
+            return entry;
+        });
+        return lock[0];
+    }
+
+    /**
+     * Entry of the lock table that lets the lock go once it is unused.
+     */
+    private static class FileLock extends WeakReference<ReentrantLock> {
+
+        final String path;
+
+        FileLock(String path, ReentrantLock lock, ReferenceQueue<ReentrantLock> queue) {
+            super(lock, queue);
+            this.path = path;
+        }
+    }
+}
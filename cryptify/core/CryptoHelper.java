@@ -0,0 +1,675 @@
+package cryptify.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Utility class for file encryption/decryption using Cipher objects.
+ * This is the modern replacement for CryptoUtils, using the OOP Cipher
+ * hierarchy.
+ * 
+ * Files are streamed chunk by chunk through pooled buffers into a temporary
+ * file next to the original, which then atomically replaces it. Memory use
+ * does not depend on file size, and a failure never leaves a half-written
+ * original behind. All file reads and writes go through the shared
+ * IoThrottle, so bulk work can be limited to a share of the disk.
+ * 
+ * OOP Principles:
+ * - Uses Cipher abstraction (polymorphism)
+ * - Factory pattern for cipher creation
+ * - Separation of concerns (file I/O separate from cipher logic)
+ */
+public class CryptoHelper {
+
+    /**
+     * Largest legacy AES blob decryptStream() and format migration accept.
+     * Such blobs are decrypted in memory, and a stream, unlike a file,
+     * gives no size up front to reserve.
+     */
+    public static final long MAX_LEGACY_STREAM_BYTES = 256L << 20;
+
+    /**
+     * Encrypts a file using the specified cipher type.
+     * 
+     * @param file       The file to encrypt
+     * @param key        The encryption key
+     * @param cipherType The cipher type (1=Caesar, 2=XOR, 3=AES)
+     * @throws Exception if encryption fails
+     */
+    public static void encryptFile(File file, SecretKey key, byte cipherType) throws Exception {
+        encryptFile(file, key, cipherType, false);
+    }
+
+    /**
+     * Encrypts a file, optionally followed by a keyed Merkle tree over the
+     * body (format 3, see IntegrityTree). AES needs no tree: every frame is
+     * already authenticated.
+     * 
+     * @param file       The file to encrypt
+     * @param key        The encryption key
+     * @param cipherType The cipher type (1=Caesar, 2=XOR, 3=AES)
+     * @param integrity  Whether to append the integrity tree
+     * @throws Exception if the tree is requested for AES or encryption fails
+     */
+    public static void encryptFile(File file, SecretKey key, byte cipherType, boolean integrity) throws Exception {
+        encryptFile(file, key, cipherType, integrity, null);
+    }
+
+    /**
+     * Encrypts a file as above, also handing every plaintext byte read to a
+     * tap, e.g. to index the text (see SearchIndex) in the same pass.
+     * 
+     * @param file       The file to encrypt
+     * @param key        The encryption key
+     * @param cipherType The cipher type (1=Caesar, 2=XOR, 3=AES)
+     * @param integrity  Whether to append the integrity tree
+     * @param plainTap   Receives the plaintext in order, or null
+     * @throws Exception if the tree is requested for AES or encryption fails
+     */
+    public static void encryptFile(File file, SecretKey key, byte cipherType, boolean integrity,
+            WritableByteChannel plainTap) throws Exception {
+        // Create appropriate cipher using Factory pattern
+        Cipher cipher = CipherFactory.createCipherByType(cipherType, key);
+        if (integrity && !(cipher instanceof LengthPreservingCipher)) {
+            throw new IllegalArgumentException(cipher.getCipherName()
+                    + " is already authenticated and needs no integrity tree");
+        }
+
+        // Create header (with the key check value)
+        StageEvent event = StageEvent.begin(StageEvent.HEADER, cipher.getCipherName());
+        byte[] header = FileHeaderUtil.createHeader(cipherType, key,
+                integrity ? FileHeaderUtil.FORMAT_INTEGRITY : FileHeaderUtil.FORMAT_KEY_CHECK);
+        StageEvent.end(event, header.length);
+
+        Path source = file.toPath();
+        Path temp = createTempSibling(source);
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // Header first, then the encrypted stream, then the tree if any
+                Cipher.writeFully(out, ByteBuffer.wrap(header));
+                WritableByteChannel sink = StageEvent.timedWrites(IoThrottle.shared().writes(out),
+                        cipher.getCipherName());
+                IntegrityTree.Builder tree = integrity ? new IntegrityTree.Builder(sink, key) : null;
+                WritableByteChannel encrypting = cipher.newEncryptingChannel(tree != null ? tree : sink);
+                ReadableByteChannel plain = StageEvent.timedReads(IoThrottle.shared().reads(in),
+                        cipher.getCipherName());
+                Cipher.transfer(plainTap != null ? tee(plain, plainTap) : plain, encrypting);
+                encrypting.close();
+                if (tree != null) {
+                    tree.finish(out, header);
+                }
+            }
+
+            // Replace the original
+            replace(temp, source);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Encrypts a Caesar or XOR file where it is, with the header in a
+     * trailer, so no second copy of the file is written (see
+     * InPlaceTransform). decryptFile() recognizes such files.
+     * 
+     * @param file       The file to encrypt
+     * @param key        The encryption key
+     * @param cipherType The cipher type (1=Caesar or 2=XOR)
+     * @throws Exception if the cipher changes the data length or encryption fails
+     */
+    public static void encryptFileInPlace(File file, SecretKey key, byte cipherType) throws Exception {
+        InPlaceTransform.encrypt(file, key, cipherType);
+    }
+
+    /**
+     * Decrypts a file by auto-detecting the cipher type from the header.
+     * Files encrypted in place are decrypted in place.
+     * 
+     * @param file The file to decrypt
+     * @param key  The decryption key
+     * @throws Exception if decryption fails or file is not encrypted
+     */
+    public static void decryptFile(File file, SecretKey key) throws Exception {
+        if (FileHeaderUtil.readTrailer(file) != null) {
+            InPlaceTransform.decrypt(file, key);
+            return;
+        }
+
+        // Detect cipher type from file header
+        StageEvent event = StageEvent.begin(StageEvent.HEADER, null);
+        byte[] header = FileHeaderUtil.readHeader(file);
+
+        if (header == null) {
+            throw new IOException("File is not encrypted or was not encrypted by this application");
+        }
+
+        if (header[5] > FileHeaderUtil.CURRENT_FORMAT) {
+            throw new IOException("File was written by a newer version of this application");
+        }
+
+        // Reject a wrong key before reading any of the body
+        FileHeaderUtil.checkKey(header, key);
+        StageEvent.end(event, header.length);
+
+        // Create appropriate cipher using Factory pattern
+        Cipher cipher = CipherFactory.createCipherByType(header[4], key);
+
+        if (header[5] == FileHeaderUtil.FORMAT_LEGACY && !(cipher instanceof LengthPreservingCipher)) {
+            decryptLegacyFile(file, cipher);
+            return;
+        }
+
+        Path source = file.toPath();
+        long bodyEnd = Long.MAX_VALUE;
+        if (header[5] == FileHeaderUtil.FORMAT_INTEGRITY) {
+            // Verify with the profile's workers before anything is written
+            List<long[]> damaged = IntegrityTree.verify(file, key, HostProfile.current().getWorkerCount());
+            if (!damaged.isEmpty()) {
+                throw new IOException(IntegrityTree.describe(damaged));
+            }
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                bodyEnd = header.length + IntegrityTree.readLayout(in, header).bodyLength;
+            }
+        }
+
+        Path temp = createTempSibling(source);
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // Skip header, then stream the decrypted body
+                in.position(header.length);
+                ReadableByteChannel decrypting = cipher.newDecryptingChannel(StageEvent.timedReads(
+                        IoThrottle.shared().reads(upTo(in, bodyEnd)), cipher.getCipherName()));
+                Cipher.transfer(decrypting,
+                        StageEvent.timedWrites(IoThrottle.shared().writes(out), cipher.getCipherName()));
+                decrypting.close();
+            }
+
+            // Replace the original
+            replace(temp, source);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Encrypts a stream into a headered stream, e.g. for pipes or sockets.
+     * The output is byte-for-byte what encryptFile would write, and neither
+     * the input length nor a seekable output is needed.
+     * Neither stream is closed.
+     * 
+     * @param in         The plaintext source
+     * @param out        The destination for header and encrypted body
+     * @param key        The encryption key
+     * @param cipherType The cipher type (1=Caesar, 2=XOR, 3=AES)
+     * @throws Exception if encryption fails
+     */
+    public static void encryptStream(InputStream in, OutputStream out, SecretKey key, byte cipherType)
+            throws Exception {
+        Cipher cipher = CipherFactory.createCipherByType(cipherType, key);
+        out.write(FileHeaderUtil.createHeader(cipherType, key));
+        cipher.encrypt(in, out);
+        out.flush();
+    }
+
+    /**
+     * Decrypts a headered stream, detecting the cipher from the header.
+     * Neither stream is closed.
+     * 
+     * @param in  The source, starting with the file header
+     * @param key The decryption key
+     * @param out The plaintext destination
+     * @throws Exception if the header is invalid or decryption fails
+     */
+    public static void decryptStream(InputStream in, OutputStream out, SecretKey key) throws Exception {
+        decryptStream(in, readStreamHeader(in), out, key);
+    }
+
+    /**
+     * Decrypts the body of a headered stream whose header was already read
+     * with readStreamHeader().
+     * 
+     * @param in     The source, positioned after the header
+     * @param header The validated header
+     * @param out    The plaintext destination
+     * @param key    The decryption key
+     * @throws Exception if the key is wrong or decryption fails
+     */
+    public static void decryptStream(InputStream in, byte[] header, OutputStream out, SecretKey key)
+            throws Exception {
+        FileHeaderUtil.checkKey(header, key);
+        Cipher cipher = CipherFactory.createCipherByType(header[4], key);
+
+        if (header[5] == FileHeaderUtil.FORMAT_LEGACY && !(cipher instanceof LengthPreservingCipher)) {
+            // The legacy AES blob can only be authenticated as a whole
+            decryptLegacyStream(in, cipher, Channels.newChannel(out));
+        } else {
+            cipher.decrypt(in, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Decrypts the rest of a stream holding a legacy AES blob. The blob, its
+     * copy and the plaintext are reserved in the memory budget as the blob
+     * grows, since the stream's length is not known up front, and stay
+     * reserved until the plaintext is written.
+     * 
+     * @param in     The blob, after the header
+     * @param cipher The AES cipher matching the header
+     * @param out    The plaintext destination
+     * @throws IOException if the blob exceeds MAX_LEGACY_STREAM_BYTES
+     * @throws Exception   if decryption fails
+     */
+    static void decryptLegacyStream(InputStream in, Cipher cipher, WritableByteChannel out) throws Exception {
+        List<MemoryBudget.Reservation> reserved = new ArrayList<>();
+        try {
+            ByteArrayOutputStream blob = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long covered = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (blob.size() + (long) n > MAX_LEGACY_STREAM_BYTES) {
+                    throw new IOException("Data in the legacy format is larger than " + (MAX_LEGACY_STREAM_BYTES >> 20)
+                            + " MB, the most decrypted in memory; decrypt the file itself instead");
+                }
+                if (blob.size() + n > covered) {
+                    // Double what is covered, as the blob's own array does
+                    long grow = Math.max(covered, buffer.length);
+                    reserved.add(MemoryBudget.shared().reserve(3 * grow));
+                    covered += grow;
+                }
+                blob.write(buffer, 0, n);
+            }
+            Cipher.writeFully(out, ByteBuffer.wrap(cipher.decrypt(blob.toByteArray())));
+        } finally {
+            for (MemoryBudget.Reservation reservation : reserved) {
+                reservation.close();
+            }
+        }
+    }
+
+    /**
+     * Reads and validates the complete header at the start of a stream.
+     * 
+     * @param in The source
+     * @return The header
+     * @throws IOException if the stream has no valid header or a newer format
+     */
+    public static byte[] readStreamHeader(InputStream in) throws IOException {
+        byte[] fixed = new byte[FileHeaderUtil.getHeaderSize()];
+        if (!readFully(in, fixed, 0) || FileHeaderUtil.parseHeader(fixed) == null) {
+            throw new IOException("Input is not encrypted or was not encrypted by this application");
+        }
+        if (fixed[5] > FileHeaderUtil.CURRENT_FORMAT) {
+            throw new IOException("Input was written by a newer version of this application");
+        }
+        if (fixed[5] == FileHeaderUtil.FORMAT_INTEGRITY) {
+            throw new IOException("Files with an integrity tree must be decrypted as files, not streams");
+        }
+
+        byte[] header = Arrays.copyOf(fixed, FileHeaderUtil.getHeaderSize(fixed[5]));
+        if (!readFully(in, header, fixed.length)) {
+            throw new IOException("Input header is truncated");
+        }
+        return header;
+    }
+
+    /**
+     * Fills the array from offset on.
+     * 
+     * @return false if the stream ended first
+     */
+    private static boolean readFully(InputStream in, byte[] bytes, int offset) throws IOException {
+        while (offset < bytes.length) {
+            int n = in.read(bytes, offset, bytes.length - offset);
+            if (n == -1) {
+                return false;
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    /**
+     * Decrypts only the beginning of a file, in memory, for previewing.
+     * The file is never written, and only the frames covering the first
+     * maxBytes are read and decrypted, so the cost does not depend on the
+     * file size. Unencrypted files are returned as they are.
+     * 
+     * @param file     The file to preview
+     * @param key      The decryption key (ignored for unencrypted files)
+     * @param maxBytes How many plaintext bytes to return at most
+     * @return Up to maxBytes bytes from the start of the plaintext
+     * @throws Exception if the file cannot be read or decrypted
+     */
+    public static byte[] previewFile(File file, SecretKey key, int maxBytes) throws Exception {
+        FileHeaderUtil.Trailer trailer = FileHeaderUtil.readTrailer(file);
+        ByteBuffer preview = ByteBuffer.allocate(trailer != null ? (int) Math.min(maxBytes, trailer.bodyLength)
+                : maxBytes);
+
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ReadableByteChannel source = openPlaintext(in, file, key, maxBytes);
+            while (preview.hasRemaining() && source.read(preview) != -1) {
+                // Keep reading until the preview is full or the file ends
+            }
+            source.close();
+        }
+        return Arrays.copyOf(preview.array(), preview.position());
+    }
+
+    /**
+     * Opens the plaintext of a file for reading without changing the file:
+     * a decrypting channel over the body, or the file itself if it is not
+     * encrypted. Of an integrity-checked file, only the chunks covering the
+     * first maxBytes are verified before reading.
+     * 
+     * @param in       The file, opened for reading
+     * @param file     The same file, to look for a header or trailer
+     * @param key      The decryption key (ignored for unencrypted files)
+     * @param maxBytes How many plaintext bytes will be read at most
+     * @return A channel over the plaintext
+     * @throws Exception if the file cannot be decrypted this way
+     */
+    static ReadableByteChannel openPlaintext(FileChannel in, File file, SecretKey key, long maxBytes)
+            throws Exception {
+        return openPlaintext(in, file, key, 0, maxBytes);
+    }
+
+    /**
+     * Opens the plaintext of a file from a chunk boundary on, decrypting
+     * only the frames from there (see Cipher.resumeDecryptingChannel).
+     * 
+     * @param in       The file, opened for reading
+     * @param file     The same file, to look for a header or trailer
+     * @param key      The decryption key (ignored for unencrypted files)
+     * @param offset   Plaintext offset to start at (a multiple of Cipher.STREAM_CHUNK_SIZE)
+     * @param maxBytes How many plaintext bytes will be read at most
+     * @return A channel over the plaintext from offset on; at its end if
+     *         the plaintext is shorter
+     * @throws Exception if the file cannot be decrypted this way
+     */
+    static ReadableByteChannel openPlaintext(FileChannel in, File file, SecretKey key, long offset, long maxBytes)
+            throws Exception {
+        FileHeaderUtil.Trailer trailer = FileHeaderUtil.readTrailer(file);
+        byte[] header = trailer != null ? trailer.header : FileHeaderUtil.readHeader(file);
+        if (header == null) {
+            in.position(offset);
+            return in;
+        }
+        if (header[5] > FileHeaderUtil.CURRENT_FORMAT) {
+            throw new IOException("File was written by a newer version of this application");
+        }
+        if (trailer != null && trailer.state != FileHeaderUtil.TRAILER_ENCRYPTED) {
+            throw new IOException("Encrypting or decrypting this file was interrupted; run it again to finish");
+        }
+        FileHeaderUtil.checkKey(header, key);
+        Cipher cipher = CipherFactory.createCipherByType(header[4], key);
+        if (header[5] == FileHeaderUtil.FORMAT_LEGACY && !(cipher instanceof LengthPreservingCipher)) {
+            throw new IOException("Files in the old AES format must be decrypted to be viewed");
+        }
+        // In-place files keep the body at the start
+        long bodyStart = trailer != null ? 0 : header.length;
+        long bodyEnd = trailer != null ? trailer.bodyLength : in.size();
+        IntegrityTree.Layout layout = null;
+        if (header[5] == FileHeaderUtil.FORMAT_INTEGRITY) {
+            layout = IntegrityTree.readLayout(in, header);
+            bodyEnd = header.length + layout.bodyLength;
+        }
+        if (offset == 0) {
+            if (layout != null) {
+                // Only the chunks read and their paths are checked
+                IntegrityTree.verifyRange(in, header, layout, key, 0, maxBytes);
+            }
+            in.position(bodyStart);
+            return cipher.newDecryptingChannel(upTo(in, bodyEnd));
+        }
+
+        byte[] prefix = new byte[cipher.getStreamPrefixSize()];
+        if (!Cipher.readFully(in.position(bodyStart), ByteBuffer.wrap(prefix))) {
+            throw new IOException("Encrypted stream is too short");
+        }
+        long resumeAt = offset;
+        if (bodyStart + cipher.getEncryptedOffset(offset) >= bodyEnd) {
+            // Past the end: read the last frame instead, so that its final flag is still checked
+            long low = 0;
+            long high = offset / Cipher.STREAM_CHUNK_SIZE;
+            while (low + 1 < high) {
+                long middle = (low + high) >>> 1;
+                if (bodyStart + cipher.getEncryptedOffset(middle * Cipher.STREAM_CHUNK_SIZE) < bodyEnd) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            resumeAt = low * Cipher.STREAM_CHUNK_SIZE;
+        }
+        if (layout != null) {
+            IntegrityTree.verifyRange(in, header, layout, key, resumeAt, offset - resumeAt + maxBytes);
+        }
+        in.position(bodyStart + cipher.getEncryptedOffset(resumeAt));
+        ReadableByteChannel plain = resumeAt == 0 ? cipher.newDecryptingChannel(upTo(in.position(bodyStart), bodyEnd))
+                : cipher.resumeDecryptingChannel(upTo(in, bodyEnd), prefix, resumeAt);
+        ByteBuffer skipped = ByteBuffer.allocate(Cipher.STREAM_CHUNK_SIZE);
+        while (resumeAt < offset) {
+            skipped.clear();
+            skipped.limit((int) Math.min(skipped.capacity(), offset - resumeAt));
+            int n = plain.read(skipped);
+            if (n == -1) {
+                break;
+            }
+            resumeAt += n;
+        }
+        return plain;
+    }
+
+    /**
+     * Derives an AES key from a password using SHA-256.
+     * 
+     * @param password The password
+     * @return The derived key
+     * @throws Exception if SHA-256 is unavailable
+     */
+    public static SecretKey deriveKey(String password) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(hash, "AES");
+    }
+
+    /**
+     * Decrypts a file written in the legacy single-blob format.
+     * AES-GCM authenticates the blob as a whole, so it has to be read at once.
+     * 
+     * @param file   The file to decrypt
+     * @param cipher The cipher matching the file header
+     * @throws Exception if decryption fails
+     */
+    private static void decryptLegacyFile(File file, Cipher cipher) throws Exception {
+        // File, body and plaintext are all in memory at once
+        MemoryBudget.Reservation reserved = MemoryBudget.shared().reserve(3 * file.length());
+        try {
+            decryptLegacyBlob(file, cipher);
+        } finally {
+            reserved.close();
+        }
+    }
+
+    private static void decryptLegacyBlob(File file, Cipher cipher) throws Exception {
+        // Read file
+        IoThrottle.shared().acquire(file.length());
+        StageEvent event = StageEvent.begin(StageEvent.READ, cipher.getCipherName());
+        byte[] fileBytes = Files.readAllBytes(file.toPath());
+        StageEvent.end(event, fileBytes.length);
+
+        // Extract encrypted data (skip header)
+        byte[] encryptedData = extractData(fileBytes);
+
+        // Decrypt using cipher
+        byte[] decrypted = cipher.decrypt(encryptedData);
+
+        // Write decrypted data back to file
+        Path temp = createTempSibling(file.toPath());
+        try {
+            IoThrottle.shared().acquire(decrypted.length);
+            event = StageEvent.begin(StageEvent.WRITE, cipher.getCipherName());
+            Files.write(temp, decrypted);
+            StageEvent.end(event, decrypted.length);
+            replace(temp, file.toPath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Limits reads from a file to the bytes before the given offset, e.g.
+     * to stop at the integrity tree after the body.
+     * 
+     * @param channel The file, positioned at the start of the body
+     * @param end     Offset where the body ends (Long.MAX_VALUE for the file end)
+     * @return The channel itself if there is no limit, else a wrapper
+     */
+    static ReadableByteChannel upTo(FileChannel channel, long end) {
+        if (end == Long.MAX_VALUE) {
+            return channel;
+        }
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                long left = end - channel.position();
+                if (left <= 0) {
+                    return -1;
+                }
+                if (dst.remaining() <= left) {
+                    return channel.read(dst);
+                }
+                ByteBuffer bounded = dst.duplicate();
+                bounded.limit(bounded.position() + (int) left);
+                int n = channel.read(bounded);
+                dst.position(bounded.position());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps a channel so that every byte read from it is also written to a
+     * tap.
+     */
+    private static ReadableByteChannel tee(ReadableByteChannel channel, WritableByteChannel tap) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int start = dst.position();
+                int n = channel.read(dst);
+                if (n > 0) {
+                    ByteBuffer copy = dst.duplicate();
+                    copy.flip();
+                    copy.position(start);
+                    Cipher.writeFully(tap, copy);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Creates an empty temporary file in the same directory as the given file,
+     * so that it can later be moved over it atomically.
+     * 
+     * @param file The file that will be replaced
+     * @return Path of the temporary file
+     */
+    static Path createTempSibling(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        return Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+    }
+
+    /**
+     * Moves the temporary file over the target, atomically where supported.
+     * The temporary file is forced to disk first, so that a crash right after
+     * the move cannot leave the target empty, and it takes over the target's
+     * POSIX permissions, which a temporary file does not have. On POSIX the
+     * directory is forced after the move, so that once this returns the
+     * rename survives a power loss (a journal may record it as done).
+     * 
+     * @param temp   The finished temporary file
+     * @param target The file to replace
+     */
+    static void replace(Path temp, Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        PosixFileAttributeView view = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (view != null && Files.exists(target)) {
+            // After the force: a read-only mode would not let it be opened for writing
+            Files.setPosixFilePermissions(temp, view.readAttributes().permissions());
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (view != null) {
+            // Directories can only be opened as channels on POSIX systems
+            try (FileChannel directory = FileChannel.open(target.toAbsolutePath().getParent(),
+                    StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+        }
+    }
+
+    /**
+     * Extracts encrypted data from file bytes (skips header).
+     * 
+     * @param fileBytes Complete file bytes including header
+     * @return Encrypted data without header
+     */
+    private static byte[] extractData(byte[] fileBytes) {
+        int headerSize = FileHeaderUtil.getHeaderSize();
+        byte[] data = new byte[fileBytes.length - headerSize];
+        System.arraycopy(fileBytes, headerSize, data, 0, data.length);
+        return data;
+    }
+}
@@ -0,0 +1,518 @@
+package cryptify.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Mirrors a directory tree to another local directory, rsync-style, writing
+ * only the parts of each file that changed.
+ * 
+ * Files whose size and modification time already match are skipped without
+ * being read. For the others, the target file is cut into blocks, each with
+ * a weak rolling checksum and a strong hash; the source is then scanned
+ * with the rolling checksum, so blocks are found again even after data was
+ * inserted or removed before them. The source is rebuilt as a list of
+ * "copy this block of the old file" and "these new bytes" operations:
+ * - If every reused block stays where it is, only the new bytes are written
+ *   into the target file (a patch in place).
+ * - Otherwise the file is assembled next to the target from old blocks and
+ *   new bytes, then moved over it.
+ * Files are processed in parallel. The target's modification time is set
+ * last, so an interrupted sync is simply picked up by the next one.
+ * 
+ * The sync works on the encrypted bytes and needs no key. Caesar and XOR
+ * files change only where their plaintext changed; AES files get a fresh IV
+ * whenever they are re-encrypted, so those are copied in full.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Signatures and delta operations are internal
+ * - Thread Safety: Files are independent; counters are atomic
+ */
+public class DeltaSync {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int STRONG_SIZE = 16;
+    private static final int FILTER_BITS = 22;
+
+    private final Path source;
+    private final Path target;
+    private final int threads;
+    private boolean deleteExtraneous;
+    private boolean alwaysCompare;
+
+    /**
+     * Totals of one sync run.
+     */
+    public static class Report {
+
+        public final AtomicInteger filesScanned = new AtomicInteger();
+        public final AtomicInteger filesUnchanged = new AtomicInteger();
+        public final AtomicInteger filesCopied = new AtomicInteger();
+        public final AtomicInteger filesPatched = new AtomicInteger();
+        public final AtomicInteger filesRebuilt = new AtomicInteger();
+        public final AtomicInteger filesDeleted = new AtomicInteger();
+        public final AtomicLong bytesRead = new AtomicLong();
+        public final AtomicLong bytesWritten = new AtomicLong();
+        public final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String toString() {
+            return String.format("%d files: %d unchanged, %d copied, %d patched, %d rebuilt, %d deleted, "
+                    + "%d failed; %.1f MB read, %.1f MB written", filesScanned.get(), filesUnchanged.get(),
+                    filesCopied.get(), filesPatched.get(), filesRebuilt.get(), filesDeleted.get(),
+                    failures.size(), bytesRead.get() / 1e6, bytesWritten.get() / 1e6);
+        }
+    }
+
+    /**
+     * One block of the target file.
+     */
+    private static class Block {
+
+        final long offset;
+        final int length;
+        final byte[] strong;
+
+        Block(long offset, int length, byte[] strong) {
+            this.offset = offset;
+            this.length = length;
+            this.strong = strong;
+        }
+    }
+
+    /**
+     * One step of rebuilding the source: reuse target bytes, or take new
+     * bytes from the source.
+     */
+    private static class Op {
+
+        final boolean fromTarget;
+        final long offset;
+        long length;
+
+        Op(boolean fromTarget, long offset, long length) {
+            this.fromTarget = fromTarget;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Creates a sync from one directory into another.
+     * 
+     * @param source  The tree to mirror
+     * @param target  The mirror (created if missing)
+     * @param threads Files processed at once
+     */
+    public DeltaSync(Path source, Path target, int threads) {
+        this.source = source;
+        this.target = target;
+        this.threads = threads;
+    }
+
+    /**
+     * Also deletes target files that no longer exist in the source.
+     */
+    public void setDeleteExtraneous(boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+
+    /**
+     * Compares contents even when size and modification time match.
+     */
+    public void setAlwaysCompare(boolean alwaysCompare) {
+        this.alwaysCompare = alwaysCompare;
+    }
+
+    /**
+     * Runs the sync. Failures of single files are collected in the report;
+     * the other files are still synced.
+     * 
+     * @return What was done
+     * @throws IOException if the source tree cannot be listed
+     */
+    public Report run() throws IOException {
+        Report report = new Report();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(source)) {
+            files = walk.filter(Files::isRegularFile).map(source::relativize).collect(Collectors.toList());
+        }
+        Files.createDirectories(target);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cryptify-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (Path relative : files) {
+                pending.add(pool.submit(() -> {
+                    try {
+                        syncFile(source.resolve(relative), target.resolve(relative), report);
+                    } catch (Exception e) {
+                        report.failures.add(relative + ": " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (Exception e) {
+            throw new IOException("Sync was interrupted", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        if (deleteExtraneous) {
+            deleteExtraneous(new HashSet<>(files), report);
+        }
+        return report;
+    }
+
+    /**
+     * Brings one target file up to date with its source.
+     */
+    private void syncFile(Path from, Path to, Report report) throws IOException {
+        report.filesScanned.incrementAndGet();
+        long size = Files.size(from);
+        FileTime modified = Files.getLastModifiedTime(from);
+
+        if (!Files.exists(to)) {
+            Files.createDirectories(to.toAbsolutePath().getParent());
+            Path temp = CryptoHelper.createTempSibling(to);
+            try {
+                try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                        FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    copyRange(in, 0, out, 0, size);
+                    out.force(false);
+                }
+                CryptoHelper.replace(temp, to);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            Files.setLastModifiedTime(to, modified);
+            report.bytesRead.addAndGet(size);
+            report.bytesWritten.addAndGet(size);
+            report.filesCopied.incrementAndGet();
+            return;
+        }
+
+        if (!alwaysCompare && Files.size(to) == size && Files.getLastModifiedTime(to).equals(modified)) {
+            report.filesUnchanged.incrementAndGet();
+            return;
+        }
+
+        List<Op> ops;
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                FileChannel old = FileChannel.open(to, StandardOpenOption.READ)) {
+            Map<Integer, List<Block>> blocks = signatures(old, report);
+            ops = delta(in, size, blocks, report);
+        }
+
+        long literal = 0;
+        boolean inPlace = true;
+        long position = 0;
+        for (Op op : ops) {
+            if (op.fromTarget && op.offset != position) {
+                inPlace = false;
+            } else if (!op.fromTarget) {
+                literal += op.length;
+            }
+            position += op.length;
+        }
+
+        if (literal == 0 && inPlace && Files.size(to) == size) {
+            report.filesUnchanged.incrementAndGet();
+        } else if (inPlace) {
+            patch(from, to, ops, size);
+            report.bytesWritten.addAndGet(literal);
+            report.filesPatched.incrementAndGet();
+        } else {
+            rebuild(from, to, ops);
+            report.bytesWritten.addAndGet(size);
+            report.filesRebuilt.incrementAndGet();
+        }
+        Files.setLastModifiedTime(to, modified);
+    }
+
+    /**
+     * Computes the weak checksum and strong hash of every target block,
+     * indexed by weak checksum.
+     */
+    private static Map<Integer, List<Block>> signatures(FileChannel old, Report report) throws IOException {
+        Map<Integer, List<Block>> blocks = new HashMap<>();
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long offset = 0;
+        while (true) {
+            buffer.clear();
+            while (buffer.hasRemaining() && old.read(buffer, offset + buffer.position()) != -1) {
+                // Fill the whole block unless the file ends
+            }
+            int length = buffer.position();
+            if (length == 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            Block block = new Block(offset, length, strong(digest, bytes, 0, length));
+            blocks.computeIfAbsent(weak(bytes, 0, length), k -> new ArrayList<>()).add(block);
+            offset += length;
+            report.bytesRead.addAndGet(length);
+            if (length < BLOCK_SIZE) {
+                break;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Scans the source with the rolling checksum and describes it as target
+     * blocks plus literal bytes.
+     */
+    private static List<Op> delta(FileChannel in, long size, Map<Integer, List<Block>> blocks, Report report)
+            throws IOException {
+        List<Op> ops = new ArrayList<>();
+        MessageDigest digest = sha256();
+        byte[] window = new byte[WINDOW_SIZE];
+
+        // Most rolled positions match nothing; a bit set rules them out
+        // before the map is consulted
+        long[] filter = new long[(1 << FILTER_BITS) / 64];
+        for (int weak : blocks.keySet()) {
+            int bit = filterBit(weak);
+            filter[bit >>> 6] |= 1L << bit;
+        }
+        long windowStart = 0;
+        int windowLength = 0;
+
+        long position = 0;
+        long literalStart = 0;
+        int a = 0;
+        int b = 0;
+        boolean fresh = true;
+
+        while (position < size) {
+            int length = (int) Math.min(BLOCK_SIZE, size - position);
+            // Keep the block plus the next byte in the window
+            if (position + length + 1 > windowStart + windowLength && windowStart + windowLength < size
+                    || position < windowStart) {
+                windowStart = position;
+                windowLength = fill(in, window, windowStart);
+                report.bytesRead.addAndGet(windowLength);
+            }
+            int at = (int) (position - windowStart);
+
+            if (fresh) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < length; i++) {
+                    int x = window[at + i] & 0xFF;
+                    a += x;
+                    b += (length - i) * x;
+                }
+                fresh = false;
+            }
+
+            Block match = null;
+            int weak = ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+            int bit = filterBit(weak);
+            List<Block> candidates = (filter[bit >>> 6] & (1L << bit)) == 0 ? null : blocks.get(weak);
+            if (candidates != null) {
+                byte[] strong = null;
+                for (Block candidate : candidates) {
+                    if (candidate.length != length) {
+                        continue;
+                    }
+                    if (strong == null) {
+                        strong = strong(digest, window, at, length);
+                    }
+                    // Prefer the block at the same offset, for patching in place
+                    if (MessageDigest.isEqual(strong, candidate.strong)
+                            && (match == null || candidate.offset == position)) {
+                        match = candidate;
+                    }
+                }
+            }
+
+            if (match != null) {
+                add(ops, false, literalStart, position - literalStart);
+                add(ops, true, match.offset, length);
+                position += length;
+                literalStart = position;
+                fresh = true;
+            } else if (length < BLOCK_SIZE) {
+                // A short tail that matches nothing is literal as a whole
+                position = size;
+            } else {
+                // Roll one byte forward; the block stays BLOCK_SIZE long while the file lasts
+                int out = window[at] & 0xFF;
+                position++;
+                if (position + BLOCK_SIZE > size) {
+                    fresh = true;
+                } else {
+                    int next = window[at + BLOCK_SIZE] & 0xFF;
+                    a += next - out;
+                    b += a - BLOCK_SIZE * out;
+                }
+            }
+        }
+        add(ops, false, literalStart, size - literalStart);
+        return ops;
+    }
+
+    /**
+     * Appends an operation, merging it with the previous one where they
+     * continue each other.
+     */
+    private static void add(List<Op> ops, boolean fromTarget, long offset, long length) {
+        if (length == 0) {
+            return;
+        }
+        if (!ops.isEmpty()) {
+            Op last = ops.get(ops.size() - 1);
+            if (last.fromTarget == fromTarget && last.offset + last.length == offset) {
+                last.length += length;
+                return;
+            }
+        }
+        ops.add(new Op(fromTarget, offset, length));
+    }
+
+    /**
+     * Writes only the literal ranges into the target and fixes its length.
+     */
+    private static void patch(Path from, Path to, List<Op> ops, long size) throws IOException {
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (Op op : ops) {
+                if (!op.fromTarget) {
+                    copyRange(in, op.offset, out, position, op.length);
+                }
+                position += op.length;
+            }
+            out.truncate(size);
+            out.force(false);
+        }
+    }
+
+    /**
+     * Assembles the new file from target blocks and literals next to the
+     * target, then moves it over the target.
+     */
+    private static void rebuild(Path from, Path to, List<Op> ops) throws IOException {
+        Path temp = CryptoHelper.createTempSibling(to);
+        try {
+            try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                    FileChannel old = FileChannel.open(to, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (Op op : ops) {
+                    copyRange(op.fromTarget ? old : in, op.offset, out, position, op.length);
+                    position += op.length;
+                }
+                out.force(false);
+            }
+            CryptoHelper.replace(temp, to);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes target files that are not in the source.
+     */
+    private void deleteExtraneous(Set<Path> keep, Report report) throws IOException {
+        List<Path> extra;
+        try (Stream<Path> walk = Files.walk(target)) {
+            extra = walk.filter(Files::isRegularFile).filter(path -> !keep.contains(target.relativize(path)))
+                    .collect(Collectors.toList());
+        }
+        for (Path path : extra) {
+            try {
+                Files.delete(path);
+                report.filesDeleted.incrementAndGet();
+            } catch (IOException e) {
+                report.failures.add(target.relativize(path) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void copyRange(FileChannel in, long from, FileChannel out, long to, long length)
+            throws IOException {
+        long done = 0;
+        while (done < length) {
+            long n = in.transferTo(from + done, length - done, out.position(to + done));
+            if (n <= 0) {
+                throw new IOException("File changed while it was synced");
+            }
+            done += n;
+        }
+    }
+
+    private static int fill(FileChannel in, byte[] window, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(window);
+        while (buffer.hasRemaining() && in.read(buffer, offset + buffer.position()) != -1) {
+            // Fill the window unless the file ends
+        }
+        return buffer.position();
+    }
+
+    /**
+     * rsync's weak checksum: a = sum of bytes, b = sum of bytes weighted by
+     * their distance from the block end, both mod 2^16.
+     */
+    private static int weak(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = bytes[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private static int filterBit(int weak) {
+        return (weak * 0x9E3779B9) >>> (32 - FILTER_BITS);
+    }
+
+    private static byte[] strong(MessageDigest digest, byte[] bytes, int offset, int length) {
+        digest.update(bytes, offset, length);
+        byte[] hash = digest.digest();
+        byte[] truncated = new byte[STRONG_SIZE];
+        System.arraycopy(hash, 0, truncated, 0, STRONG_SIZE);
+        return truncated;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package cryptify.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of which files are encrypted, and with which cipher.
+ * 
+ * Each entry remembers the size, modification time and file key (inode) a
+ * file had when its header was probed. A lookup only stats the file; the
+ * header is read again only when one of those attributes has changed.
+ * CryptoHelper usually replaces a file by moving a new file over it, which
+ * changes the file key and invalidates the entry. A file encrypted or
+ * decrypted in place (InPlaceTransform) keeps its file key; its entry is
+ * invalidated by the size change instead, as the trailer is appended or
+ * cut off.
+ * 
+ * Storage is a RecordLog that is rewritten (compacted) once stale records
+ * outnumber live ones. A torn record at the end of the log, left by a
+ * crash, is dropped on load.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Log format and validation rules are internal
+ * - Thread Safety: Lookups may run concurrently; log writes are serialized
+ */
+public class EncryptionStateIndex {
+
+    private static final int LOG_MAGIC = 0x43534932; // "CSI2"
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private final Map<String, State> entries = new ConcurrentHashMap<>();
+    private RecordLog log;
+
+    /**
+     * Opens (or creates) an index backed by the given log file.
+     * 
+     * @param logFile The log file, or null for an in-memory index
+     * @throws IOException if the log cannot be read or created
+     */
+    public EncryptionStateIndex(Path logFile) throws IOException {
+        if (logFile != null) {
+            log = new RecordLog(logFile, LOG_MAGIC);
+            for (byte[] record : log.takeReplayed()) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                byte op = in.readByte();
+                State state = readState(in);
+                if (op == OP_PUT) {
+                    entries.put(state.path, state);
+                } else {
+                    entries.remove(state.path);
+                }
+            }
+            if (needsCompaction()) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Gets the default log location in the user's home directory.
+     * 
+     * @return Path of the default index log
+     */
+    public static Path defaultLocation() {
+        return Paths.get(System.getProperty("user.home"), ".cryptify", "state.idx");
+    }
+
+    /**
+     * Gets the encryption state of a file, probing its header only if the
+     * cached entry is missing or stale.
+     * 
+     * @param file The file to look up
+     * @return The file's current state
+     * @throws IOException if the file cannot be read
+     */
+    public State lookup(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        State cached = entries.get(path.toString());
+        if (cached != null && cached.matches(attrs)) {
+            return cached;
+        }
+        return probe(path, attrs);
+    }
+
+    /**
+     * Re-probes a file regardless of what is cached.
+     * 
+     * @param file The file to probe
+     * @return The file's current state
+     * @throws IOException if the file cannot be read
+     */
+    public State refresh(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return probe(path, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    /**
+     * Removes a file from the index.
+     * 
+     * @param file The file to forget
+     */
+    public synchronized void forget(File file) throws IOException {
+        String path = file.toPath().toAbsolutePath().normalize().toString();
+        if (entries.remove(path) != null) {
+            append(OP_REMOVE, new State(path, 0, 0, "", (byte) -1, (byte) -1));
+        }
+    }
+
+    /**
+     * Gets the number of files in the index.
+     * 
+     * @return Entry count
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes buffered log records to disk.
+     */
+    public synchronized void flush() throws IOException {
+        if (log != null) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Rewrites the log so it only contains live entries.
+     * 
+     * @throws IOException if the new log cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        if (log == null) {
+            return;
+        }
+        List<byte[]> records = new ArrayList<>(entries.size());
+        for (State state : entries.values()) {
+            records.add(encode(OP_PUT, state));
+        }
+        log.rewrite(records);
+    }
+
+    /**
+     * Flushes and closes the log.
+     */
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Reads a file's header and records the result.
+     */
+    private State probe(Path path, BasicFileAttributes attrs) throws IOException {
+        byte[] header = attrs.isRegularFile() ? FileHeaderUtil.readMetadata(path.toFile()) : null;
+        State state = new State(path.toString(), attrs.size(), attrs.lastModifiedTime().toMillis(),
+                fileKeyOf(attrs), header == null ? -1 : header[4], header == null ? -1 : header[5]);
+
+        synchronized (this) {
+            entries.put(state.path, state);
+            append(OP_PUT, state);
+        }
+        return state;
+    }
+
+    /**
+     * Appends a record to the log and compacts it when it has grown stale.
+     */
+    private void append(byte op, State state) throws IOException {
+        if (log == null) {
+            return;
+        }
+        log.append(encode(op, state));
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    private boolean needsCompaction() {
+        return log.getRecordCount() > COMPACT_MIN_RECORDS && log.getRecordCount() > 2L * entries.size();
+    }
+
+    private static byte[] encode(byte op, State state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(op);
+        record.writeUTF(state.path);
+        record.writeLong(state.size);
+        record.writeLong(state.lastModified);
+        record.writeUTF(state.fileKey);
+        record.writeByte(state.cipherType);
+        record.writeByte(state.formatVersion);
+        return bytes.toByteArray();
+    }
+
+    private static State readState(DataInputStream in) throws IOException {
+        return new State(in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), in.readByte(), in.readByte());
+    }
+
+    private static String fileKeyOf(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? "" : key.toString();
+    }
+
+    /**
+     * Cached encryption state of one file.
+     */
+    public static class State {
+
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final String fileKey;
+        public final byte cipherType;
+        public final byte formatVersion;
+
+        State(String path, long size, long lastModified, String fileKey, byte cipherType, byte formatVersion) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.cipherType = cipherType;
+            this.formatVersion = formatVersion;
+        }
+
+        /**
+         * Checks if this entry still describes the file with these attributes.
+         */
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size()
+                    && lastModified == attrs.lastModifiedTime().toMillis()
+                    && fileKey.equals(fileKeyOf(attrs));
+        }
+
+        /**
+         * Checks if the file had a valid encryption header.
+         * 
+         * @return true if encrypted
+         */
+        public boolean isEncrypted() {
+            return cipherType != -1;
+        }
+
+        /**
+         * Gets a short status label for display.
+         * 
+         * @return The cipher name, or an empty string for plain files
+         */
+        public String getLabel() {
+            return isEncrypted() ? CipherFactory.getCipherName(cipherType) : "";
+        }
+    }
+}
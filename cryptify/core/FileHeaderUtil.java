@@ -0,0 +1,403 @@
+package cryptify.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Utility class for file header operations.
+ * Handles reading and writing encryption metadata in file headers.
+ * 
+ * Header layout (8 bytes):
+ * [0-3] "ENCR" magic, [4] cipher type, [5] format version,
+ * [6-7] key ID (format 2 and later; 0 = none).
+ * From format 2 on it is followed by a key check block:
+ * [8-23] random salt, [24-39] HMAC-SHA256(key, salt) truncated to 16 bytes.
+ * 
+ * Format versions:
+ * - 0: legacy, the body is one Cipher.encrypt(byte[]) blob
+ * - 1: stream, the body is the output of Cipher.newEncryptingChannel()
+ * - 2: stream with key check, so a wrong key is rejected from the header
+ *   alone, for every cipher. The key ID is a stable 16-bit tag of the key
+ *   that lets a KeyRing find the right key without trying them all.
+ * - 3: format 2 followed by a keyed Merkle tree over the body (Caesar and
+ *   XOR only, see IntegrityTree), so damage can be located and bounded
+ *   reads verified. The body ends where the tree starts.
+ * Caesar and XOR produce identical bodies in all formats; AES does not.
+ * 
+ * Files encrypted in place (Caesar and XOR only) keep the body at offset 0
+ * and carry the header in a trailer instead:
+ * [body][header][8 body length][8 bytes done][1 state]["RCNE"].
+ * The state tells a finished file from one whose in-place pass was
+ * interrupted, and "done" says how far that pass got.
+ * 
+ * Design Pattern: Utility/Helper class (static methods)
+ * OOP Principle: Single Responsibility - Only handles file headers
+ */
+public class FileHeaderUtil {
+
+    public static final byte FORMAT_LEGACY = 0;
+    public static final byte FORMAT_STREAM = 1;
+    public static final byte FORMAT_KEY_CHECK = 2;
+    public static final byte FORMAT_INTEGRITY = 3;
+    public static final byte CURRENT_FORMAT = FORMAT_INTEGRITY;
+
+    public static final byte TRAILER_ENCRYPTED = 1;
+    public static final byte TRAILER_ENCRYPTING = 2;
+    public static final byte TRAILER_DECRYPTING = 3;
+
+    private static final byte[] MAGIC_BYTES = "ENCR".getBytes(StandardCharsets.UTF_8);
+    private static final int HEADER_SIZE = 8;
+    private static final int SALT_SIZE = 16;
+    private static final int CHECK_SIZE = 16;
+    private static final byte[] CHECK_LABEL = "cryptify key check".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ID_LABEL = "cryptify key id".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRAILER_MAGIC = "RCNE".getBytes(StandardCharsets.UTF_8);
+    private static final int TRAILER_TAIL_SIZE = 8 + 8 + 1 + 4;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The metadata at the end of a file encrypted in place.
+     */
+    public static class Trailer {
+
+        public final byte[] header;
+        public final long bodyLength;
+        public final long done;
+        public final byte state;
+
+        public Trailer(byte[] header, long bodyLength, long done, byte state) {
+            this.header = header;
+            this.bodyLength = bodyLength;
+            this.done = done;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Creates a file header in format 2, including the key check value for
+     * the given key.
+     * 
+     * @param cipherType The cipher type identifier
+     * @param key        The key the body will be encrypted with
+     * @return Complete header array
+     */
+    public static byte[] createHeader(byte cipherType, SecretKey key) {
+        return createHeader(cipherType, key, FORMAT_KEY_CHECK);
+    }
+
+    /**
+     * Creates a file header with a key check value in format 2 or later.
+     * 
+     * @param cipherType    The cipher type identifier
+     * @param key           The key the body will be encrypted with
+     * @param formatVersion FORMAT_KEY_CHECK or FORMAT_INTEGRITY
+     * @return Complete header array
+     */
+    public static byte[] createHeader(byte cipherType, SecretKey key, byte formatVersion) {
+        byte[] header = new byte[getHeaderSize(formatVersion)];
+        System.arraycopy(createHeader(cipherType, formatVersion), 0, header, 0, HEADER_SIZE);
+        int keyId = getKeyId(key);
+        header[6] = (byte) (keyId >>> 8);
+        header[7] = (byte) keyId;
+
+        byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+        System.arraycopy(salt, 0, header, HEADER_SIZE, SALT_SIZE);
+        System.arraycopy(hmac(key, CHECK_LABEL, salt, CHECK_SIZE), 0, header, HEADER_SIZE + SALT_SIZE, CHECK_SIZE);
+        return header;
+    }
+
+    /**
+     * Creates the fixed 8-byte part of a header.
+     * 
+     * @param cipherType    The cipher type identifier
+     * @param formatVersion The body format version
+     * @return 8-byte header array
+     */
+    public static byte[] createHeader(byte cipherType, byte formatVersion) {
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC_BYTES, 0, header, 0, MAGIC_BYTES.length);
+        header[4] = cipherType;
+        header[5] = formatVersion;
+        // Bytes 6-7 hold the key ID; 0 means none
+        return header;
+    }
+
+    /**
+     * Reads the complete header of a file (including any key check block)
+     * without reading the rest of it. The body starts at header.length.
+     * 
+     * @param file The file to read
+     * @return The header bytes, or null if not a valid encrypted file
+     * @throws IOException if file cannot be read
+     */
+    public static byte[] readHeader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!Cipher.readFully(channel, header) || parseHeader(header.array()) == null) {
+                return null;
+            }
+
+            int size = getHeaderSize(header.get(5));
+            if (size == HEADER_SIZE) {
+                return header.array();
+            }
+            ByteBuffer full = ByteBuffer.allocate(size);
+            full.put(header.array());
+            if (!Cipher.readFully(channel, full)) {
+                return null;
+            }
+            return full.array();
+        }
+    }
+
+    /**
+     * Reads the trailer of a file encrypted in place.
+     * 
+     * @param file The file to read
+     * @return The trailer, or null if the file has none
+     * @throws IOException if file cannot be read
+     */
+    public static Trailer readTrailer(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readTrailer(channel);
+        }
+    }
+
+    /**
+     * Reads the trailer at the end of an open file.
+     * 
+     * @param channel The file
+     * @return The trailer, or null if the file has none
+     * @throws IOException if file cannot be read
+     */
+    public static Trailer readTrailer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + TRAILER_TAIL_SIZE) {
+            return null;
+        }
+        ByteBuffer tail = ByteBuffer.allocate(TRAILER_TAIL_SIZE);
+        while (tail.hasRemaining() && channel.read(tail, size - TRAILER_TAIL_SIZE + tail.position()) != -1) {
+            // Keep reading until the tail is complete
+        }
+        for (int i = 0; i < TRAILER_MAGIC.length; i++) {
+            if (tail.get(TRAILER_TAIL_SIZE - TRAILER_MAGIC.length + i) != TRAILER_MAGIC[i]) {
+                return null;
+            }
+        }
+
+        long bodyLength = tail.getLong(0);
+        long headerSize = size - TRAILER_TAIL_SIZE - bodyLength;
+        if (bodyLength < 0 || headerSize < HEADER_SIZE || headerSize > getHeaderSize(CURRENT_FORMAT)) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate((int) headerSize);
+        while (header.hasRemaining() && channel.read(header, bodyLength + header.position()) != -1) {
+            // Keep reading until the header is complete
+        }
+        if (header.hasRemaining() || parseHeader(header.array()) == null
+                || getHeaderSize(header.get(5)) != headerSize) {
+            return null;
+        }
+        return new Trailer(header.array(), bodyLength, tail.getLong(8), tail.get(16));
+    }
+
+    /**
+     * Writes a trailer right after the body, replacing any trailer there.
+     * 
+     * @param channel    The file
+     * @param header     The complete header
+     * @param bodyLength Length of the body
+     * @param done       How far the current in-place pass has got
+     * @param state      One of the TRAILER_ states
+     * @throws IOException if the trailer cannot be written
+     */
+    public static void writeTrailer(FileChannel channel, byte[] header, long bodyLength, long done, byte state)
+            throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(header.length + TRAILER_TAIL_SIZE);
+        trailer.put(header).putLong(bodyLength).putLong(done).put(state).put(TRAILER_MAGIC);
+        trailer.flip();
+        while (trailer.hasRemaining()) {
+            channel.write(trailer, bodyLength + trailer.position());
+        }
+    }
+
+    /**
+     * Reads a file's header, wherever the file keeps it: in the trailer for
+     * files encrypted in place, otherwise at the start.
+     * 
+     * @param file The file to read
+     * @return The header bytes, or null if not a valid encrypted file
+     * @throws IOException if file cannot be read
+     */
+    public static byte[] readMetadata(File file) throws IOException {
+        Trailer trailer = readTrailer(file);
+        return trailer != null ? trailer.header : readHeader(file);
+    }
+
+    /**
+     * Validates header bytes.
+     * 
+     * @param header The first bytes of a file or stream
+     * @return The header, or null if the magic bytes do not match
+     */
+    public static byte[] parseHeader(byte[] header) {
+        if (header.length < HEADER_SIZE) {
+            return null;
+        }
+
+        // Verify magic bytes
+        for (int i = 0; i < MAGIC_BYTES.length; i++) {
+            if (header[i] != MAGIC_BYTES[i]) {
+                return null;
+            }
+        }
+
+        return header;
+    }
+
+    /**
+     * Reads and validates the cipher type from a file.
+     * Only the header (or trailer) is read.
+     * 
+     * @param file The file to read
+     * @return The cipher type, or -1 if not a valid encrypted file
+     * @throws IOException if file cannot be read
+     */
+    public static byte readCipherType(File file) throws IOException {
+        byte[] header = readMetadata(file);
+        return header == null ? -1 : header[4];
+    }
+
+    /**
+     * Reads the body format version from a file.
+     * 
+     * @param file The file to read
+     * @return The format version, or -1 if not a valid encrypted file
+     * @throws IOException if file cannot be read
+     */
+    public static byte readFormatVersion(File file) throws IOException {
+        byte[] header = readMetadata(file);
+        return header == null ? -1 : header[5];
+    }
+
+    /**
+     * Checks if a file has a valid encryption header.
+     * 
+     * @param file The file to check
+     * @return true if file has valid header
+     */
+    public static boolean isEncryptedFile(File file) {
+        try {
+            return readCipherType(file) != -1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the size of the fixed part of the header, which holds the
+     * format version.
+     * 
+     * @return Header size
+     */
+    public static int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    /**
+     * Gets the complete header size of a format version.
+     * 
+     * @param formatVersion The format version
+     * @return Header size, including the key check block if the format has one
+     */
+    public static int getHeaderSize(byte formatVersion) {
+        return formatVersion >= FORMAT_KEY_CHECK ? HEADER_SIZE + SALT_SIZE + CHECK_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Checks the key against the header's key check value, in constant time.
+     * Headers of formats without a key check always pass.
+     * 
+     * @param header The complete header
+     * @param key    The key to check
+     * @throws IOException if the key is wrong
+     */
+    public static void checkKey(byte[] header, SecretKey key) throws IOException {
+        if (!matchesKey(header, key)) {
+            throw new IOException("Wrong key for this file");
+        }
+    }
+
+    /**
+     * Tests the key against the header's key check value, in constant time.
+     * 
+     * @param header The complete header
+     * @param key    The key to test
+     * @return false only if the header has a key check and the key fails it
+     */
+    public static boolean matchesKey(byte[] header, SecretKey key) {
+        if (header[5] < FORMAT_KEY_CHECK) {
+            return true;
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] stored = new byte[CHECK_SIZE];
+        System.arraycopy(header, HEADER_SIZE, salt, 0, SALT_SIZE);
+        System.arraycopy(header, HEADER_SIZE + SALT_SIZE, stored, 0, CHECK_SIZE);
+        return MessageDigest.isEqual(stored, hmac(key, CHECK_LABEL, salt, CHECK_SIZE));
+    }
+
+    /**
+     * Gets the key ID stored in a header.
+     * 
+     * @param header The header
+     * @return The key ID (1-65535), or 0 if the header has none
+     */
+    public static int readKeyId(byte[] header) {
+        if (header[5] < FORMAT_KEY_CHECK) {
+            return 0;
+        }
+        return ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+    }
+
+    /**
+     * Computes the key ID written into headers for a key. Different keys may
+     * share an ID; the key check value tells them apart.
+     * 
+     * @param key The key
+     * @return The key ID, never 0
+     */
+    public static int getKeyId(SecretKey key) {
+        byte[] value = hmac(key, ID_LABEL, new byte[0], 2);
+        int id = ((value[0] & 0xFF) << 8) | (value[1] & 0xFF);
+        return id == 0 ? 1 : id;
+    }
+
+    /**
+     * Computes HMAC-SHA256(key, label || data), truncated to size bytes.
+     * The label keeps each value from matching any other use of the key.
+     */
+    private static byte[] hmac(SecretKey key, byte[] label, byte[] data, int size) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            mac.update(label);
+            byte[] value = mac.doFinal(data);
+            byte[] truncated = new byte[size];
+            System.arraycopy(value, 0, truncated, 0, size);
+            return truncated;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
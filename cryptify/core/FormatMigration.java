@@ -0,0 +1,324 @@
+package cryptify.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+
+/**
+ * Upgrades every file of a directory tree that is still in format 0
+ * (single blob) or 1 (stream without key check) to format 2, in parallel.
+ * 
+ * Legacy files are found by reading their headers while the tree is walked,
+ * so the walk never holds more than a few pending files and millions of
+ * files need no up-front listing. Each file is decrypted and re-encrypted
+ * into a part file next to it; the part file is then decrypted again and
+ * its plaintext digest compared with the original's before it replaces the
+ * original. A mismatch leaves the original untouched.
+ * 
+ * A migration can be stopped at any time and simply run again: migrated
+ * files have a format 2 header and are skipped, and a part file left by an
+ * interrupted run is overwritten. Memory stays bounded by the shared
+ * MemoryBudget, and disk usage can be limited with the IoThrottle. A legacy
+ * AES blob is decrypted in memory, so one larger than
+ * CryptoHelper.MAX_LEGACY_STREAM_BYTES is reported as a failure and kept.
+ * 
+ * Legacy headers carry no key check, so files are migrated with the key
+ * ring's active key. For AES a wrong key fails authentication and the file
+ * is reported. Caesar and XOR cannot tell a wrong key, and migrating with
+ * one would stamp the file with the wrong key check, so those files are
+ * left alone unless setTrustKey(true) says the key is known to be right.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Walking, conversion and verification are internal
+ * - Thread Safety: Files are independent; counters are atomic
+ */
+public class FormatMigration {
+
+    private static final String PART_SUFFIX = ".migrating";
+
+    private final Path root;
+    private final KeyRing keys;
+    private final int threads;
+    private final Report report = new Report();
+    private boolean trustKey;
+
+    /**
+     * Totals of one migration run, readable while it runs.
+     */
+    public static class Report {
+
+        public final AtomicInteger filesScanned = new AtomicInteger();
+        public final AtomicInteger filesMigrated = new AtomicInteger();
+        public final AtomicInteger filesCurrent = new AtomicInteger();
+        public final AtomicInteger filesNotEncrypted = new AtomicInteger();
+        public final AtomicInteger filesUnverifiable = new AtomicInteger();
+        public final AtomicLong bytesMigrated = new AtomicLong();
+        public final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        private final long startNanos = System.nanoTime();
+
+        /**
+         * @return Encrypted bytes migrated per second since the start
+         */
+        public double getMegabytesPerSecond() {
+            return bytesMigrated.get() / 1e6 / elapsedSeconds();
+        }
+
+        /**
+         * @return Files migrated per second since the start
+         */
+        public double getFilesPerSecond() {
+            return filesMigrated.get() / elapsedSeconds();
+        }
+
+        private double elapsedSeconds() {
+            return Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d files: %d migrated, %d already current, %d not encrypted, "
+                    + "%d Caesar/XOR left alone, %d failed; %.1f MB at %.1f MB/s, %.1f files/s",
+                    filesScanned.get(), filesMigrated.get(), filesCurrent.get(), filesNotEncrypted.get(),
+                    filesUnverifiable.get(), failures.size(), bytesMigrated.get() / 1e6, getMegabytesPerSecond(),
+                    getFilesPerSecond());
+        }
+    }
+
+    /**
+     * Creates a migration of a directory tree.
+     * 
+     * @param root    The tree to migrate
+     * @param keys    Keys; the active key is used for legacy files
+     * @param threads Files migrated at once
+     */
+    public FormatMigration(Path root, KeyRing keys, int threads) {
+        this.root = root;
+        this.keys = keys;
+        this.threads = threads;
+    }
+
+    /**
+     * Also migrates Caesar and XOR files, whose key cannot be checked.
+     */
+    public void setTrustKey(boolean trustKey) {
+        this.trustKey = trustKey;
+    }
+
+    /**
+     * Gets the totals so far; safe to call from another thread during run().
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    /**
+     * Migrates the tree. Failures of single files are collected in the
+     * report; the other files are still migrated.
+     * 
+     * @return What was done
+     * @throws IOException if the tree cannot be walked
+     */
+    public Report run() throws IOException {
+        // A short queue keeps the walk just ahead of the workers
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), runnable -> {
+                    Thread thread = new Thread(runnable, "cryptify-migrate");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(PART_SUFFIX)) {
+                        pool.execute(() -> {
+                            try {
+                                migrateFile(file);
+                            } catch (Exception e) {
+                                report.failures.add(root.relativize(file) + ": " + e.getMessage());
+                            } catch (Throwable e) {
+                                // E.g. out of memory: the file is still counted, and the worker lives on
+                                report.failures.add(root.relativize(file) + ": " + e);
+                            }
+                        });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Part files come and go while the tree is walked
+                    if (!(e instanceof NoSuchFileException)) {
+                        report.failures.add(root.relativize(file) + ": " + e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Migration was interrupted", e);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Migrates one file if its header says it is in a legacy format.
+     */
+    private void migrateFile(Path file) throws Exception {
+        report.filesScanned.incrementAndGet();
+        byte[] header = FileHeaderUtil.readMetadata(file.toFile());
+        if (header == null) {
+            report.filesNotEncrypted.incrementAndGet();
+            return;
+        }
+        if (header[5] >= FileHeaderUtil.FORMAT_KEY_CHECK) {
+            report.filesCurrent.incrementAndGet();
+            return;
+        }
+        SecretKey key = keys.find(header);
+        if (key == null) {
+            throw new IOException("No encryption key has been set");
+        }
+        Cipher cipher = CipherFactory.createCipherByType(header[4], key);
+        if (cipher instanceof LengthPreservingCipher && !trustKey) {
+            report.filesUnverifiable.incrementAndGet();
+            return;
+        }
+        Path part = file.resolveSibling("." + file.getFileName() + PART_SUFFIX);
+        long size = Files.size(file);
+
+        try {
+            byte[] written = convert(file, header, part, cipher, key);
+            byte[] verified = verify(part, key);
+            if (!MessageDigest.isEqual(written, verified)) {
+                throw new IOException("Migrated copy does not decrypt to the original; original kept");
+            }
+            CryptoHelper.replace(part, file);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        report.bytesMigrated.addAndGet(size);
+        report.filesMigrated.incrementAndGet();
+    }
+
+    /**
+     * Decrypts the legacy file and encrypts it again into the part file.
+     * 
+     * @return SHA-256 of the plaintext
+     */
+    private static byte[] convert(Path file, byte[] header, Path part, Cipher cipher, SecretKey key)
+            throws Exception {
+        MessageDigest digest = sha256();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            Cipher.writeFully(out, ByteBuffer.wrap(FileHeaderUtil.createHeader(cipher.getCipherType(), key)));
+            // Closed on failure too, to give back its buffers; the part file is deleted then
+            try (WritableByteChannel encrypting = cipher.newEncryptingChannel(
+                    IoThrottle.shared().writes(BatchJob.unclosable(out)))) {
+                WritableByteChannel plaintext = digesting(digest, encrypting);
+                in.position(header.length);
+
+                if (header[5] == FileHeaderUtil.FORMAT_LEGACY && !(cipher instanceof LengthPreservingCipher)) {
+                    // The legacy AES blob is authenticated as a whole; too large a blob fails the file
+                    CryptoHelper.decryptLegacyStream(Channels.newInputStream(IoThrottle.shared().reads(in)), cipher,
+                            plaintext);
+                } else {
+                    ReadableByteChannel decrypting = cipher.newDecryptingChannel(IoThrottle.shared().reads(in));
+                    Cipher.transfer(decrypting, plaintext);
+                }
+            }
+            out.force(true);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Decrypts a migrated part file without writing anything.
+     * 
+     * @return SHA-256 of its plaintext
+     */
+    private static byte[] verify(Path part, SecretKey key) throws Exception {
+        byte[] header = FileHeaderUtil.readHeader(part.toFile());
+        if (header == null || header[5] != FileHeaderUtil.FORMAT_KEY_CHECK) {
+            throw new IOException("Migrated copy has no valid header");
+        }
+        FileHeaderUtil.checkKey(header, key);
+        Cipher cipher = CipherFactory.createCipherByType(header[4], key);
+        MessageDigest digest = sha256();
+        try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+            in.position(header.length);
+            ReadableByteChannel decrypting = cipher.newDecryptingChannel(IoThrottle.shared().reads(in));
+            Cipher.transfer(decrypting, digesting(digest, null));
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Wraps a channel so that everything written is also digested.
+     * 
+     * @param sink The channel to pass the bytes on to, or null to drop them
+     */
+    private static WritableByteChannel digesting(MessageDigest digest, WritableByteChannel sink) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                ByteBuffer copy = src.duplicate();
+                int n = sink != null ? sink.write(src) : src.remaining();
+                if (sink == null) {
+                    src.position(src.limit());
+                }
+                copy.limit(copy.position() + n);
+                digest.update(copy);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (sink != null) {
+                    sink.close();
+                }
+            }
+        };
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
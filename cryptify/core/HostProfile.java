@@ -0,0 +1,418 @@
+package cryptify.core;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Properties;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Tuning values for this machine: I/O chunk size, worker count and the
+ * in-flight buffer budget.
+ * 
+ * The values come from a short calibration run: every cipher from
+ * CipherFactory.getAllCiphers() is self-tested (encrypt, decrypt, compare)
+ * and timed, and a scratch file is written and read back with several chunk
+ * sizes. The result is saved as a properties file and reused on later runs
+ * until the hardware fingerprint (CPU count, architecture, OS, heap limit
+ * and file store) changes.
+ * 
+ * Until a profile is installed, current() returns conservative defaults, so
+ * nothing ever blocks on calibration. Installing a profile also sets the
+ * shared MemoryBudget to its in-flight budget; the worker count is read by
+ * whoever creates workers (CryptifyEngine.setWorkerCount() applies a later
+ * profile to a running engine).
+ * 
+ * OOP Principles:
+ * - Encapsulation: Measurement and persistence are internal
+ * - Immutability: A profile never changes once built
+ */
+public class HostProfile {
+
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int[] CHUNK_CANDIDATES = { 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+    private static final long DISK_PROBE_BYTES = 32L * 1024 * 1024;
+    private static final int CIPHER_SAMPLE_SIZE = 1024 * 1024;
+    private static final long DEFAULT_BUDGET_MILLIS = 3000;
+
+    private static volatile HostProfile current = defaults();
+
+    private final String fingerprint;
+    private final int chunkSize;
+    private final int workerCount;
+    private final long inFlightBytes;
+    private final double diskReadMBps;
+    private final double diskWriteMBps;
+    private final double[] cipherMBps;
+
+    private HostProfile(String fingerprint, int chunkSize, int workerCount, long inFlightBytes,
+            double diskReadMBps, double diskWriteMBps, double[] cipherMBps) {
+        this.fingerprint = fingerprint;
+        this.chunkSize = chunkSize;
+        this.workerCount = workerCount;
+        this.inFlightBytes = inFlightBytes;
+        this.diskReadMBps = diskReadMBps;
+        this.diskWriteMBps = diskWriteMBps;
+        this.cipherMBps = cipherMBps;
+    }
+
+    /**
+     * Gets the installed profile (defaults until one is installed).
+     * 
+     * @return The active profile
+     */
+    public static HostProfile current() {
+        return current;
+    }
+
+    /**
+     * Makes a profile the active one for the whole process, including its
+     * in-flight budget as the shared memory budget.
+     * 
+     * @param profile The profile to use
+     */
+    public static void install(HostProfile profile) {
+        current = profile;
+        MemoryBudget.shared().setLimit(profile.getInFlightBytes());
+    }
+
+    /**
+     * Gets the default profile location in the user's home directory.
+     * 
+     * @return Path of the saved profile
+     */
+    public static Path defaultLocation() {
+        return Paths.get(System.getProperty("user.home"), ".cryptify", "host-profile.properties");
+    }
+
+    /**
+     * Loads the saved profile, or calibrates and saves a new one when there
+     * is none or it was made on different hardware.
+     * 
+     * @param profileFile Where the profile is stored
+     * @return A profile valid for this machine
+     * @throws Exception if calibration or the cipher self-test fails
+     */
+    public static HostProfile loadOrCalibrate(Path profileFile) throws Exception {
+        HostProfile saved = loadSaved(profileFile);
+        if (saved != null) {
+            return saved;
+        }
+        Path probeDir = profileFile.toAbsolutePath().getParent();
+        Files.createDirectories(probeDir);
+        HostProfile profile = calibrate(probeDir, DEFAULT_BUDGET_MILLIS);
+        profile.save(profileFile);
+        return profile;
+    }
+
+    /**
+     * Loads the saved profile without calibrating, which is quick enough to
+     * do before anything that depends on the profile is created.
+     * 
+     * @param profileFile Where the profile is stored
+     * @return The saved profile, or null if there is none for this hardware
+     */
+    public static HostProfile loadSaved(Path profileFile) {
+        Path probeDir = profileFile.toAbsolutePath().getParent();
+        if (!Files.exists(profileFile)) {
+            return null;
+        }
+        HostProfile saved = load(profileFile);
+        try {
+            return saved != null && saved.fingerprint.equals(fingerprint(probeDir)) ? saved : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Measures this machine. Takes roughly budgetMillis in total.
+     * 
+     * @param probeDir     Directory for the scratch file (on the disk to tune for)
+     * @param budgetMillis Time budget for all measurements
+     * @return The measured profile
+     * @throws Exception if a cipher fails its self-test
+     */
+    public static HostProfile calibrate(Path probeDir, long budgetMillis) throws Exception {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+        // Ciphers get half the budget, the disk the other half
+        Cipher[] ciphers = CipherFactory.getAllCiphers(key);
+        double[] cipherMBps = new double[ciphers.length + 1];
+        for (Cipher cipher : ciphers) {
+            selfTest(cipher);
+            cipherMBps[cipher.getCipherType()] = measureCipher(cipher, budgetMillis / 2 / ciphers.length);
+        }
+
+        int bestChunk = DEFAULT_CHUNK_SIZE;
+        double bestSeconds = Double.MAX_VALUE;
+        double readMBps = 0;
+        double writeMBps = 0;
+        long perCandidate = budgetMillis / 2 / CHUNK_CANDIDATES.length;
+        Path scratch = Files.createTempFile(probeDir, ".calibration", ".tmp");
+        try {
+            for (int chunk : CHUNK_CANDIDATES) {
+                double[] rates = measureDisk(scratch, chunk, perCandidate);
+                double secondsPerMB = 1 / rates[0] + 1 / rates[1];
+                if (secondsPerMB < bestSeconds) {
+                    bestSeconds = secondsPerMB;
+                    bestChunk = chunk;
+                    readMBps = rates[0];
+                    writeMBps = rates[1];
+                }
+            }
+        } finally {
+            Files.deleteIfExists(scratch);
+        }
+
+        // Enough workers for AES to keep up with the disk, plus one to
+        // overlap I/O waits, but never more than there are cores
+        int cpus = Runtime.getRuntime().availableProcessors();
+        double disk = Math.min(readMBps, writeMBps);
+        int workers = (int) Math.ceil(disk / Math.max(cipherMBps[3], 1)) + 1;
+        workers = Math.max(1, Math.min(cpus, workers));
+
+        // Each worker holds a read and a write buffer, double-buffered
+        long inFlight = Math.min((long) workers * bestChunk * 4, Runtime.getRuntime().maxMemory() / 4);
+
+        return new HostProfile(fingerprint(probeDir), bestChunk, workers, inFlight, readMBps, writeMBps,
+                cipherMBps);
+    }
+
+    /**
+     * Size of the buffers used to read and write files.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Number of files worth processing concurrently.
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Total bytes of buffers that may be held by running work at once.
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    /**
+     * Measured throughput of a cipher in MB/s, or 0 if not calibrated.
+     */
+    public double getCipherMBps(byte cipherType) {
+        return cipherType > 0 && cipherType < cipherMBps.length ? cipherMBps[cipherType] : 0;
+    }
+
+    public double getDiskReadMBps() {
+        return diskReadMBps;
+    }
+
+    public double getDiskWriteMBps() {
+        return diskWriteMBps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("chunk=%d KiB, workers=%d, in-flight=%d MiB, disk r/w=%.0f/%.0f MB/s, "
+                + "Caesar/XOR/AES=%.0f/%.0f/%.0f MB/s", chunkSize / 1024, workerCount, inFlightBytes >> 20,
+                diskReadMBps, diskWriteMBps, getCipherMBps((byte) 1), getCipherMBps((byte) 2),
+                getCipherMBps((byte) 3));
+    }
+
+    /**
+     * Profile used before (or without) calibration.
+     */
+    private static HostProfile defaults() {
+        int workers = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return new HostProfile("", DEFAULT_CHUNK_SIZE, workers, (long) workers * DEFAULT_CHUNK_SIZE * 4, 0, 0,
+                new double[4]);
+    }
+
+    /**
+     * Encrypts and decrypts a sample and checks it round-trips.
+     */
+    private static void selfTest(Cipher cipher) throws Exception {
+        byte[] sample = new byte[3 * Cipher.STREAM_CHUNK_SIZE + 17];
+        new SecureRandom().nextBytes(sample);
+        byte[] decrypted = cipher.decrypt(cipher.encrypt(sample));
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        cipher.encrypt(new ByteArrayInputStream(sample), encrypted);
+        cipher.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), streamed);
+
+        if (!Arrays.equals(sample, decrypted) || !Arrays.equals(sample, streamed.toByteArray())) {
+            throw new IllegalStateException("Self-test failed for " + cipher.getCipherName());
+        }
+    }
+
+    /**
+     * Streams a sample through the cipher's encrypting channel repeatedly.
+     * 
+     * @return Throughput in MB/s
+     */
+    private static double measureCipher(Cipher cipher, long millis) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocateDirect(CIPHER_SAMPLE_SIZE);
+        WritableByteChannel sink = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        WritableByteChannel encrypting = cipher.newEncryptingChannel(sink);
+        long bytes = 0;
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        do {
+            sample.clear();
+            bytes += Cipher.writeFully(encrypting, sample);
+        } while (System.nanoTime() < deadline);
+        encrypting.close();
+
+        return bytes / 1e6 / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Writes (with a final force) and reads back a scratch file. The page
+     * cache still holds what was just written, so it is read back with
+     * direct I/O; where the file system does not allow that, the read rate
+     * is taken to be the write rate rather than that of the cache.
+     * 
+     * @return { read MB/s, write MB/s }
+     */
+    private static double[] measureDisk(Path scratch, int chunk, long millis) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunk);
+        long deadline = System.nanoTime() + millis / 2 * 1_000_000;
+
+        long written = 0;
+        long start = System.nanoTime();
+        try (FileChannel out = FileChannel.open(scratch, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (written < DISK_PROBE_BYTES && System.nanoTime() < deadline) {
+                buffer.clear();
+                written += Cipher.writeFully(out, buffer);
+            }
+            out.force(false);
+        }
+        double writeMBps = written / 1e6 / Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+
+        double readMBps = measureDirectRead(scratch, chunk);
+        if (readMBps == 0) {
+            readMBps = writeMBps;
+        }
+
+        return new double[] { readMBps, writeMBps };
+    }
+
+    /**
+     * Reads a file bypassing the page cache.
+     * 
+     * @return Read rate in MB/s, or 0 if direct I/O is not available
+     */
+    private static double measureDirectRead(Path file, int chunk) {
+        try {
+            int alignment = (int) Files.getFileStore(file).getBlockSize();
+            if (alignment <= 0 || chunk % alignment != 0) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(chunk + alignment).alignedSlice(alignment);
+            long read = 0;
+            long start = System.nanoTime();
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, ExtendedOpenOption.DIRECT)) {
+                int n;
+                buffer.clear().limit(chunk);
+                while ((n = in.read(buffer)) > 0) {
+                    read += n;
+                    buffer.clear().limit(chunk);
+                }
+            }
+            return read / 1e6 / Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+        } catch (IOException | UnsupportedOperationException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Describes the hardware a profile was measured on.
+     */
+    private static String fingerprint(Path probeDir) throws IOException {
+        FileStore store = Files.getFileStore(probeDir);
+        return System.getProperty("os.name") + "/" + System.getProperty("os.arch")
+                + "/cpus=" + Runtime.getRuntime().availableProcessors()
+                + "/heap=" + Runtime.getRuntime().maxMemory()
+                + "/store=" + store.name() + ":" + store.type();
+    }
+
+    private void save(Path profileFile) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("fingerprint", fingerprint);
+        properties.setProperty("chunkSize", Integer.toString(chunkSize));
+        properties.setProperty("workerCount", Integer.toString(workerCount));
+        properties.setProperty("inFlightBytes", Long.toString(inFlightBytes));
+        properties.setProperty("diskReadMBps", Double.toString(diskReadMBps));
+        properties.setProperty("diskWriteMBps", Double.toString(diskWriteMBps));
+        for (int type = 1; type < cipherMBps.length; type++) {
+            properties.setProperty("cipherMBps." + type, Double.toString(cipherMBps[type]));
+        }
+        try (OutputStream out = Files.newOutputStream(profileFile)) {
+            properties.store(out, "Cryptify host profile - delete to recalibrate");
+        }
+    }
+
+    private static HostProfile load(Path profileFile) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(profileFile)) {
+            properties.load(in);
+            double[] cipherMBps = new double[4];
+            for (int type = 1; type < cipherMBps.length; type++) {
+                cipherMBps[type] = Double.parseDouble(properties.getProperty("cipherMBps." + type, "0"));
+            }
+            int chunkSize = Integer.parseInt(properties.getProperty("chunkSize"));
+            int workerCount = Integer.parseInt(properties.getProperty("workerCount"));
+            long inFlightBytes = Long.parseLong(properties.getProperty("inFlightBytes"));
+            if (chunkSize <= 0 || chunkSize > BufferPool.MAX_POOLED_SIZE || workerCount <= 0 || inFlightBytes <= 0) {
+                // Edited or damaged: the scheduler and the memory budget cannot use it
+                return null;
+            }
+            return new HostProfile(properties.getProperty("fingerprint", ""), chunkSize, workerCount, inFlightBytes,
+                    Double.parseDouble(properties.getProperty("diskReadMBps")),
+                    Double.parseDouble(properties.getProperty("diskWriteMBps")),
+                    cipherMBps);
+        } catch (IOException | RuntimeException e) {
+            // Unreadable or from an older version: recalibrate
+            return null;
+        }
+    }
+}
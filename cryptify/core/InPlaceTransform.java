@@ -0,0 +1,436 @@
+package cryptify.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts and decrypts files in place with length-preserving ciphers.
+ * 
+ * Caesar and XOR map every byte to one byte at the same offset, so the body
+ * can be transformed where it is with positional reads and writes, and the
+ * header goes into a trailer at the end of the file (see FileHeaderUtil).
+ * No temporary copy is made: the extra disk space is the trailer, and every
+ * byte is written once instead of twice.
+ * 
+ * Without a copy there is no atomic replace, so each pass is made
+ * crash-safe instead. The body is processed in windows; before a window is
+ * written, a small journal next to the file durably records the CRC32 of
+ * every 512-byte sector of the window both before and after the transform,
+ * and after it is written the trailer's "done" offset moves past it. An
+ * interrupted pass is finished by the next encrypt or decrypt call: sectors
+ * of the last window that match their new CRC are left alone, those that
+ * match their old CRC are transformed.
+ * 
+ * This relies on the disk writing each 512-byte sector whole, so that a
+ * crash leaves every sector either old or new, never a mix (the guarantee
+ * disks give for sector writes; larger pages may tear). A sector that
+ * matches neither CRC fails the pass instead of being transformed again,
+ * and a sector whose old and new CRC coincide is journaled whole and
+ * copied back, since its CRC cannot tell which one is on disk.
+ * 
+ * The steps of each window are reported to a StepListener, if one is set,
+ * so that a fault-injection harness (see InPlaceCrashTest) can stop a pass
+ * at each of them the way a crash would.
+ * 
+ * OOP Principles:
+ * - Polymorphism: Works with any LengthPreservingCipher
+ * - Separation of concerns: Crash recovery is kept out of the ciphers
+ */
+public class InPlaceTransform {
+
+    private static final int SECTOR_SIZE = 512;
+    private static final int WINDOW_SIZE = 16 * 1024 * 1024;
+
+    /** The window's journal record is on disk; the window is not written yet */
+    public static final String STEP_JOURNALED = "journaled";
+    /** The window is on disk; the trailer does not count it as done yet */
+    public static final String STEP_WRITTEN = "written";
+    /** The trailer counts the window as done */
+    public static final String STEP_COMMITTED = "committed";
+
+    private static volatile StepListener stepListener;
+
+    /**
+     * Told about each durable step of a pass.
+     */
+    public interface StepListener {
+
+        /**
+         * Called once a step of a window is forced to disk. An exception
+         * thrown here ends the pass at that point, like a crash.
+         * 
+         * @param file     The file being transformed
+         * @param step     STEP_JOURNALED, STEP_WRITTEN or STEP_COMMITTED
+         * @param position Body offset of the window
+         * @param length   Bytes in the window
+         * @throws IOException to interrupt the pass
+         */
+        void reached(File file, String step, long position, int length) throws IOException;
+    }
+
+    /**
+     * Sets the listener told about every step of every pass, for crash
+     * testing.
+     * 
+     * @param listener The listener, or null for none
+     */
+    public static void setStepListener(StepListener listener) {
+        stepListener = listener;
+    }
+
+    /**
+     * Checks if a cipher can work in place.
+     * 
+     * @param cipherType The cipher type (1=Caesar, 2=XOR, 3=AES)
+     * @return true for length-preserving ciphers
+     */
+    public static boolean supports(byte cipherType) {
+        return cipherType == 1 || cipherType == 2;
+    }
+
+    /**
+     * Encrypts a file in place. A file whose earlier in-place pass was
+     * interrupted is finished first.
+     * 
+     * @param file       The file to encrypt
+     * @param key        The encryption key
+     * @param cipherType The cipher type (1=Caesar or 2=XOR)
+     * @throws Exception if the cipher cannot work in place or encryption fails
+     */
+    public static void encrypt(File file, SecretKey key, byte cipherType) throws Exception {
+        LengthPreservingCipher cipher = lengthPreserving(CipherFactory.createCipherByType(cipherType, key));
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            FileHeaderUtil.Trailer trailer = FileHeaderUtil.readTrailer(channel);
+            if (trailer != null && trailer.state != FileHeaderUtil.TRAILER_DECRYPTING) {
+                if (trailer.state == FileHeaderUtil.TRAILER_ENCRYPTING) {
+                    FileHeaderUtil.checkKey(trailer.header, key);
+                    finish(file, channel, trailer, cipher(trailer, key));
+                    return;
+                }
+                throw new IOException("File is already encrypted");
+            }
+            if (trailer != null) {
+                // Finish the interrupted decryption, then start over
+                FileHeaderUtil.checkKey(trailer.header, key);
+                finish(file, channel, trailer, cipher(trailer, key));
+            }
+
+            // A journal left over from an earlier pass must not apply to this one
+            Files.deleteIfExists(journalPath(file));
+            byte[] header = FileHeaderUtil.createHeader(cipherType, key);
+            long length = channel.size();
+            FileHeaderUtil.writeTrailer(channel, header, length, 0, FileHeaderUtil.TRAILER_ENCRYPTING);
+            StageEvent.force(channel, false, cipher.getCipherName());
+            finish(file, channel, new FileHeaderUtil.Trailer(header, length, 0, FileHeaderUtil.TRAILER_ENCRYPTING),
+                    cipher);
+        }
+    }
+
+    /**
+     * Decrypts a file encrypted in place and removes its trailer. A file
+     * whose in-place encryption was interrupted is finished first.
+     * 
+     * @param file The file to decrypt
+     * @param key  The decryption key
+     * @throws Exception if the file has no trailer, the key is wrong or
+     *                   decryption fails
+     */
+    public static void decrypt(File file, SecretKey key) throws Exception {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            FileHeaderUtil.Trailer trailer = FileHeaderUtil.readTrailer(channel);
+            if (trailer == null) {
+                throw new IOException("File was not encrypted in place");
+            }
+            if (trailer.header[5] > FileHeaderUtil.CURRENT_FORMAT) {
+                throw new IOException("File was written by a newer version of this application");
+            }
+            FileHeaderUtil.checkKey(trailer.header, key);
+            LengthPreservingCipher cipher = cipher(trailer, key);
+
+            if (trailer.state == FileHeaderUtil.TRAILER_ENCRYPTING) {
+                finish(file, channel, trailer, cipher);
+            }
+            if (trailer.state != FileHeaderUtil.TRAILER_DECRYPTING) {
+                Files.deleteIfExists(journalPath(file));
+                FileHeaderUtil.writeTrailer(channel, trailer.header, trailer.bodyLength, 0,
+                        FileHeaderUtil.TRAILER_DECRYPTING);
+                StageEvent.force(channel, false, cipher.getCipherName());
+                trailer = new FileHeaderUtil.Trailer(trailer.header, trailer.bodyLength, 0,
+                        FileHeaderUtil.TRAILER_DECRYPTING);
+            }
+            finish(file, channel, trailer, cipher);
+        }
+    }
+
+    /**
+     * Runs the pass described by the trailer from its "done" offset to the
+     * end of the body, then marks the file encrypted or drops the trailer.
+     */
+    private static void finish(File file, FileChannel channel, FileHeaderUtil.Trailer trailer,
+            LengthPreservingCipher cipher) throws IOException {
+        boolean encrypting = trailer.state == FileHeaderUtil.TRAILER_ENCRYPTING;
+        Path journal = journalPath(file);
+        Journal recovered = readJournal(journal, trailer.done);
+
+        ByteBuffer window = BufferPool.shared().acquire(WINDOW_SIZE);
+        try {
+            for (long position = trailer.done; position < trailer.bodyLength; position += window.limit()) {
+                window.clear();
+                window.limit((int) Math.min(WINDOW_SIZE, trailer.bodyLength - position));
+                readFully(channel, window, position);
+                window.flip();
+
+                if (recovered != null) {
+                    // The journal on disk already describes this window
+                    recover(cipher, window, position, encrypting, recovered);
+                    recovered = null;
+                } else {
+                    int[] before = sectorCrcs(window);
+                    cipher.timedTransform(window, position, encrypting);
+                    writeJournal(journal, position, before, window);
+                }
+                step(file, STEP_JOURNALED, position, window.limit());
+
+                writeFully(channel, window, position);
+                StageEvent.force(channel, false, cipher.getCipherName());
+                step(file, STEP_WRITTEN, position, window.limit());
+                FileHeaderUtil.writeTrailer(channel, trailer.header, trailer.bodyLength, position + window.limit(),
+                        trailer.state);
+                StageEvent.force(channel, false, cipher.getCipherName());
+                step(file, STEP_COMMITTED, position, window.limit());
+                JobScheduler.yieldPoint();
+            }
+        } finally {
+            BufferPool.shared().release(window);
+        }
+
+        if (encrypting) {
+            FileHeaderUtil.writeTrailer(channel, trailer.header, trailer.bodyLength, trailer.bodyLength,
+                    FileHeaderUtil.TRAILER_ENCRYPTED);
+        } else {
+            channel.truncate(trailer.bodyLength);
+        }
+        StageEvent.force(channel, false, cipher.getCipherName());
+        Files.deleteIfExists(journal);
+    }
+
+    /**
+     * Sector CRCs and, where those cannot tell old from new, whole sectors
+     * journaled for one window.
+     */
+    private static class Journal {
+
+        final int[] before;
+        final int[] after;
+        // The transformed content of the sectors whose CRCs coincide, in order
+        final ByteBuffer copies;
+
+        Journal(int[] before, int[] after, ByteBuffer copies) {
+            this.before = before;
+            this.after = after;
+            this.copies = copies;
+        }
+    }
+
+    /**
+     * Finishes a window that was being written when the pass was
+     * interrupted: sectors still holding the old content are transformed,
+     * those already written are kept.
+     * 
+     * @throws IOException if a sector holds neither the old nor the new
+     *                     content, i.e. its write was torn
+     */
+    private static void recover(LengthPreservingCipher cipher, ByteBuffer window, long position,
+            boolean encrypting, Journal journal) throws IOException {
+        if (journal.before.length != sectorCount(window)) {
+            throw new IOException("Recovery journal does not match the interrupted window");
+        }
+        ByteBuffer copies = journal.copies.duplicate();
+        CRC32 crc = new CRC32();
+        for (int sector = 0; sector < journal.before.length; sector++) {
+            ByteBuffer slice = sector(window, sector);
+            if (journal.before[sector] == journal.after[sector]) {
+                ByteBuffer copy = copies.duplicate();
+                copy.limit(copy.position() + slice.remaining());
+                copies.position(copy.limit());
+                slice.put(copy);
+                continue;
+            }
+            crc.reset();
+            crc.update(slice.duplicate());
+            int value = (int) crc.getValue();
+            if (value == journal.before[sector]) {
+                cipher.timedTransform(slice, position + sector * (long) SECTOR_SIZE, encrypting);
+            } else if (value != journal.after[sector]) {
+                throw new IOException("Write at offset " + (position + sector * (long) SECTOR_SIZE)
+                        + " was torn by the interruption; the file cannot be recovered in place");
+            }
+        }
+    }
+
+    /**
+     * Durably records the old and new CRC32 of every sector of a window
+     * before the window is written back.
+     * 
+     * @param before CRCs of the sectors before the transform
+     * @param window The transformed window
+     */
+    private static void writeJournal(Path journal, long position, int[] before, ByteBuffer window)
+            throws IOException {
+        int[] after = sectorCrcs(window);
+        int copied = 0;
+        for (int sector = 0; sector < after.length; sector++) {
+            if (before[sector] == after[sector]) {
+                copied += sector(window, sector).remaining();
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(8 + 4 + after.length * 8 + copied + 4);
+        record.putLong(position).putInt(window.limit());
+        for (int sector = 0; sector < after.length; sector++) {
+            record.putInt(before[sector]).putInt(after[sector]);
+        }
+        for (int sector = 0; sector < after.length; sector++) {
+            if (before[sector] == after[sector]) {
+                record.put(sector(window, sector));
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        try (FileChannel out = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, record, 0);
+            StageEvent.force(out, false, null);
+        }
+    }
+
+    /**
+     * Reads what was journaled for the window at the given offset.
+     * 
+     * @return The journal, or null if it is missing, damaged or about
+     *         another window (in which case that window was never written)
+     */
+    private static Journal readJournal(Path journal, long position) throws IOException {
+        if (!Files.exists(journal)) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(journal));
+        if (record.remaining() < 16 || record.getLong(0) != position) {
+            return null;
+        }
+        int length = record.getInt(8);
+        if (length <= 0 || length > WINDOW_SIZE) {
+            return null;
+        }
+        int sectors = (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        if (record.remaining() < 8 + 4 + sectors * 8 + 4) {
+            return null;
+        }
+        int[] before = new int[sectors];
+        int[] after = new int[sectors];
+        int copied = 0;
+        for (int sector = 0; sector < sectors; sector++) {
+            before[sector] = record.getInt(12 + sector * 8);
+            after[sector] = record.getInt(16 + sector * 8);
+            if (before[sector] == after[sector]) {
+                copied += Math.min(SECTOR_SIZE, length - sector * SECTOR_SIZE);
+            }
+        }
+        if (record.remaining() != 8 + 4 + sectors * 8 + copied + 4) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.remaining() - 4);
+        if ((int) crc.getValue() != record.getInt(record.remaining() - 4)) {
+            return null;
+        }
+
+        ByteBuffer copies = record.duplicate();
+        copies.position(12 + sectors * 8).limit(12 + sectors * 8 + copied);
+        return new Journal(before, after, copies.slice());
+    }
+
+    private static int[] sectorCrcs(ByteBuffer window) {
+        int[] crcs = new int[sectorCount(window)];
+        CRC32 crc = new CRC32();
+        for (int sector = 0; sector < crcs.length; sector++) {
+            crc.reset();
+            crc.update(sector(window, sector));
+            crcs[sector] = (int) crc.getValue();
+        }
+        return crcs;
+    }
+
+    private static int sectorCount(ByteBuffer window) {
+        return (window.limit() + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    /**
+     * A view of one sector of a window.
+     */
+    private static ByteBuffer sector(ByteBuffer window, int sector) {
+        ByteBuffer slice = window.duplicate();
+        slice.position(sector * SECTOR_SIZE);
+        slice.limit(Math.min(window.limit(), slice.position() + SECTOR_SIZE));
+        return slice;
+    }
+
+    private static void step(File file, String step, long position, int length) throws IOException {
+        StepListener listener = stepListener;
+        if (listener != null) {
+            listener.reached(file, step, position, length);
+        }
+    }
+
+    private static Path journalPath(File file) {
+        Path path = file.toPath().toAbsolutePath();
+        return path.resolveSibling("." + path.getFileName() + ".inplace");
+    }
+
+    private static LengthPreservingCipher cipher(FileHeaderUtil.Trailer trailer, SecretKey key) throws Exception {
+        return lengthPreserving(CipherFactory.createCipherByType(trailer.header[4], key));
+    }
+
+    private static LengthPreservingCipher lengthPreserving(Cipher cipher) {
+        if (!(cipher instanceof LengthPreservingCipher)) {
+            throw new IllegalArgumentException(cipher.getCipherName() + " changes the data length and cannot "
+                    + "encrypt in place");
+        }
+        return (LengthPreservingCipher) cipher;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        IoThrottle.shared().acquire(buffer.remaining());
+        StageEvent event = StageEvent.begin(StageEvent.READ, null);
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("File ended unexpectedly");
+            }
+        }
+        StageEvent.end(event, buffer.position() - start);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        IoThrottle.shared().acquire(buffer.remaining());
+        StageEvent event = StageEvent.begin(StageEvent.WRITE, null);
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position());
+        }
+        StageEvent.end(event, buffer.remaining());
+    }
+}
@@ -0,0 +1,492 @@
+package cryptify.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keyed Merkle tree over the body of a Caesar or XOR file (format 3).
+ * 
+ * The encrypted body is cut into CHUNK_SIZE chunks. Each chunk is a leaf,
+ * HMAC(k, 0 || index || chunk), and each inner node is
+ * HMAC(k, 1 || left || right), where k is derived from the file key. The
+ * root is bound to the header and body length: rootMac =
+ * HMAC(k, 2 || header || body length || chunk size || top node).
+ * All levels are stored after the body, followed by a fixed tail:
+ * [header][body][level 0 ... top level][32 rootMac][8 body length]
+ * [4 chunk size]["MRKL"].
+ * 
+ * This makes three checks possible:
+ * - verify() hashes every chunk in parallel and reports exactly which
+ *   byte ranges are damaged, after authenticating the stored leaves.
+ * - verifyRange() checks a bounded read by hashing only its chunks and
+ *   reading their authentication paths (log2 of the chunk count nodes).
+ * - A wrong key is rejected by the header key check before any hashing.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Tree layout and hashing are internal
+ * - Thread Safety: Each verification thread has its own Mac
+ */
+public class IntegrityTree {
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final int NODE_SIZE = 32;
+    private static final byte[] MAGIC = "MRKL".getBytes(StandardCharsets.US_ASCII);
+    private static final int TAIL_SIZE = NODE_SIZE + 8 + 4 + 4;
+    private static final byte[] KEY_LABEL = "cryptify merkle tree".getBytes(StandardCharsets.UTF_8);
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final byte ROOT = 2;
+
+    /**
+     * Where the body and each tree level of a file are.
+     */
+    public static class Layout {
+
+        public final long bodyOffset;
+        public final long bodyLength;
+        public final int chunkSize;
+        final byte[] rootMac;
+        final int[] levelCounts;
+        final long[] levelOffsets;
+
+        Layout(long bodyOffset, long bodyLength, int chunkSize, byte[] rootMac) {
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.chunkSize = chunkSize;
+            this.rootMac = rootMac;
+            this.levelCounts = levelCounts(leafCount(bodyLength, chunkSize));
+            this.levelOffsets = new long[levelCounts.length];
+            long offset = bodyOffset + bodyLength;
+            for (int level = 0; level < levelCounts.length; level++) {
+                levelOffsets[level] = offset;
+                offset += (long) levelCounts[level] * NODE_SIZE;
+            }
+        }
+
+        public int getLeafCount() {
+            return levelCounts[0];
+        }
+
+        long treeSize() {
+            long nodes = 0;
+            for (int count : levelCounts) {
+                nodes += count;
+            }
+            return nodes * NODE_SIZE + TAIL_SIZE;
+        }
+    }
+
+    /**
+     * Passes the encrypted body through to the file and hashes it into
+     * leaves on the way; finish() then appends the tree. Closing it leaves
+     * the file open.
+     */
+    public static class Builder implements WritableByteChannel {
+
+        private final WritableByteChannel out;
+        private final Mac mac;
+        private final ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+        private long bodyLength;
+        private int inChunk;
+        private int leafIndex;
+        private boolean open = true;
+
+        public Builder(WritableByteChannel out, SecretKey key) {
+            this.out = out;
+            this.mac = newMac(key);
+            startLeaf();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), CHUNK_SIZE - inChunk);
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + n);
+                mac.update(slice.duplicate());
+                while (slice.hasRemaining()) {
+                    out.write(slice);
+                }
+                src.position(src.position() + n);
+                inChunk += n;
+                bodyLength += n;
+                written += n;
+                if (inChunk == CHUNK_SIZE) {
+                    leaves.write(mac.doFinal(), 0, NODE_SIZE);
+                    startLeaf();
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Appends the tree and tail at the file's current position.
+         * 
+         * @param file   The file the body was written to
+         * @param header The file's complete header
+         * @throws IOException if the tree cannot be written
+         */
+        public void finish(FileChannel file, byte[] header) throws IOException {
+            if (inChunk > 0 || leaves.size() == 0) {
+                leaves.write(mac.doFinal(), 0, NODE_SIZE);
+            } else {
+                // Drop the leaf started after the last full chunk
+                mac.reset();
+            }
+            List<byte[]> levels = buildLevels(mac, leaves.toByteArray());
+            for (byte[] level : levels) {
+                Cipher.writeFully(file, ByteBuffer.wrap(level));
+            }
+            byte[] top = levels.get(levels.size() - 1);
+            ByteBuffer tail = ByteBuffer.allocate(TAIL_SIZE);
+            tail.put(rootMac(mac, header, bodyLength, CHUNK_SIZE, top)).putLong(bodyLength).putInt(CHUNK_SIZE)
+                    .put(MAGIC);
+            tail.flip();
+            Cipher.writeFully(file, tail);
+        }
+
+        private void startLeaf() {
+            mac.update(LEAF);
+            mac.update(ByteBuffer.allocate(8).putLong(0, leafIndex++).array());
+            inChunk = 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            // The owner closes the file
+            open = false;
+        }
+    }
+
+    /**
+     * Reads the tail of a format 3 file.
+     * 
+     * @param channel The file
+     * @param header  Its complete header
+     * @return The layout
+     * @throws IOException if the tail is missing or inconsistent
+     */
+    public static Layout readLayout(FileChannel channel, byte[] header) throws IOException {
+        long size = channel.size();
+        ByteBuffer tail = ByteBuffer.allocate(TAIL_SIZE);
+        if (size < header.length + TAIL_SIZE) {
+            throw new IOException("Integrity tree is missing");
+        }
+        readFully(channel, tail, size - TAIL_SIZE);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (tail.get(TAIL_SIZE - MAGIC.length + i) != MAGIC[i]) {
+                throw new IOException("Integrity tree is missing");
+            }
+        }
+        byte[] rootMac = new byte[NODE_SIZE];
+        tail.position(0);
+        tail.get(rootMac);
+        long bodyLength = tail.getLong();
+        int chunkSize = tail.getInt();
+        if (bodyLength < 0 || chunkSize <= 0) {
+            throw new IOException("Integrity tree is damaged");
+        }
+
+        Layout layout = new Layout(header.length, bodyLength, chunkSize, rootMac);
+        if (header.length + bodyLength + layout.treeSize() != size) {
+            throw new IOException("Integrity tree is damaged or the file was truncated");
+        }
+        return layout;
+    }
+
+    /**
+     * Verifies every chunk of a file, in parallel.
+     * 
+     * @param file    The file (format 3)
+     * @param key     The file's key
+     * @param threads Threads to hash with
+     * @return Damaged ranges of the body as { offset, length }, merged
+     *         where adjacent; empty if the file is intact
+     * @throws IOException if the tree itself does not match (damaged
+     *                     trailer or wrong key) or the file cannot be read
+     */
+    public static List<long[]> verify(File file, SecretKey key, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[] header = FileHeaderUtil.readHeader(file);
+            if (header == null || header[5] != FileHeaderUtil.FORMAT_INTEGRITY) {
+                throw new IOException("File has no integrity tree");
+            }
+            FileHeaderUtil.checkKey(header, key);
+            Layout layout = readLayout(channel, header);
+
+            // Authenticate the stored tree from its leaves up
+            Mac mac = newMac(key);
+            ByteBuffer stored = ByteBuffer.allocate((int) (layout.treeSize() - TAIL_SIZE));
+            readFully(channel, stored, layout.levelOffsets[0]);
+            byte[] leaves = new byte[layout.getLeafCount() * NODE_SIZE];
+            System.arraycopy(stored.array(), 0, leaves, 0, leaves.length);
+            List<byte[]> levels = buildLevels(mac, leaves);
+            int at = 0;
+            boolean intact = true;
+            for (byte[] level : levels) {
+                byte[] copy = new byte[level.length];
+                System.arraycopy(stored.array(), at, copy, 0, level.length);
+                intact &= MessageDigest.isEqual(copy, level);
+                at += level.length;
+            }
+            byte[] expected = rootMac(mac, header, layout.bodyLength, layout.chunkSize, levels.get(levels.size() - 1));
+            if (!intact || !MessageDigest.isEqual(expected, layout.rootMac)) {
+                throw new IOException("Integrity tree is damaged");
+            }
+
+            // Rehash every chunk against its now trusted leaf
+            List<Integer> damaged = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger next = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            // Any failure, not only I/O: a worker that dies leaves its chunk unchecked
+            Throwable[] failure = new Throwable[1];
+            for (int t = 0; t < Math.max(1, threads); t++) {
+                Thread worker = new Thread(() -> {
+                    ByteBuffer chunk = null;
+                    try {
+                        Mac threadMac = newMac(key);
+                        chunk = BufferPool.shared().acquire(layout.chunkSize);
+                        int index;
+                        while ((index = next.getAndIncrement()) < layout.getLeafCount()) {
+                            byte[] leaf = hashChunk(channel, layout, index, threadMac, chunk);
+                            if (!MessageDigest.isEqual(leaf, slice(leaves, index))) {
+                                damaged.add(index);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        BufferPool.shared().release(chunk);
+                    }
+                }, "cryptify-verify-" + t);
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Verification was interrupted", e);
+                }
+            }
+            if (failure[0] instanceof IOException) {
+                throw (IOException) failure[0];
+            }
+            if (failure[0] instanceof RuntimeException) {
+                throw (RuntimeException) failure[0];
+            }
+            if (failure[0] instanceof Error) {
+                throw (Error) failure[0];
+            }
+            if (failure[0] != null) {
+                throw new IOException("Verification failed: " + failure[0], failure[0]);
+            }
+            return ranges(damaged, layout);
+        }
+    }
+
+    /**
+     * Verifies the chunks covering a range of the body, reading only those
+     * chunks and their authentication paths.
+     * 
+     * @param channel The file
+     * @param header  Its complete header
+     * @param layout  Its layout
+     * @param key     The file's key
+     * @param offset  Start of the range in the body
+     * @param length  Length of the range
+     * @throws IOException if any covered chunk is damaged or the key is wrong
+     */
+    public static void verifyRange(FileChannel channel, byte[] header, Layout layout, SecretKey key, long offset,
+            long length) throws IOException {
+        Mac mac = newMac(key);
+        long end = Math.min(layout.bodyLength, offset + length);
+        int first = (int) (offset / layout.chunkSize);
+        int last = end <= offset ? first : (int) ((end - 1) / layout.chunkSize);
+        ByteBuffer chunk = BufferPool.shared().acquire(layout.chunkSize);
+        try {
+            for (int index = first; index <= last && index < layout.getLeafCount(); index++) {
+                byte[] node = hashChunk(channel, layout, index, mac, chunk);
+                int position = index;
+                for (int level = 0; level < layout.levelCounts.length - 1; level++) {
+                    int sibling = position ^ 1;
+                    mac.update(NODE);
+                    if ((position & 1) == 1) {
+                        mac.update(readNode(channel, layout, level, sibling));
+                        mac.update(node);
+                    } else {
+                        mac.update(node);
+                        if (sibling < layout.levelCounts[level]) {
+                            mac.update(readNode(channel, layout, level, sibling));
+                        }
+                    }
+                    node = mac.doFinal();
+                    position >>>= 1;
+                }
+                byte[] expected = rootMac(mac, header, layout.bodyLength, layout.chunkSize, node);
+                if (!MessageDigest.isEqual(expected, layout.rootMac)) {
+                    long start = (long) index * layout.chunkSize;
+                    throw new IOException("File is damaged at bytes " + start + "-"
+                            + (Math.min(layout.bodyLength, start + layout.chunkSize) - 1));
+                }
+            }
+        } finally {
+            BufferPool.shared().release(chunk);
+        }
+    }
+
+    /**
+     * Describes damaged ranges for an error message.
+     * 
+     * @param damaged Ranges from verify()
+     * @return e.g. "File is damaged at bytes 0-1048575, 5242880-6291455"
+     */
+    public static String describe(List<long[]> damaged) {
+        StringBuilder text = new StringBuilder("File is damaged at bytes ");
+        for (int i = 0; i < damaged.size(); i++) {
+            long[] range = damaged.get(i);
+            text.append(i == 0 ? "" : ", ").append(range[0]).append('-').append(range[0] + range[1] - 1);
+        }
+        return text.toString();
+    }
+
+    private static byte[] hashChunk(FileChannel channel, Layout layout, int index, Mac mac, ByteBuffer chunk)
+            throws IOException {
+        long start = (long) index * layout.chunkSize;
+        chunk.clear();
+        chunk.limit((int) Math.min(layout.chunkSize, layout.bodyLength - start));
+        readFully(channel, chunk, layout.bodyOffset + start);
+        chunk.flip();
+        mac.update(LEAF);
+        mac.update(ByteBuffer.allocate(8).putLong(0, index).array());
+        mac.update(chunk);
+        return mac.doFinal();
+    }
+
+    private static byte[] readNode(FileChannel channel, Layout layout, int level, int index) throws IOException {
+        ByteBuffer node = ByteBuffer.allocate(NODE_SIZE);
+        readFully(channel, node, layout.levelOffsets[level] + (long) index * NODE_SIZE);
+        return node.array();
+    }
+
+    /**
+     * Computes all levels above the leaves; an odd node out is hashed alone.
+     * 
+     * @return Every level, leaves first and the single top node last
+     */
+    private static List<byte[]> buildLevels(Mac mac, byte[] leaves) {
+        List<byte[]> levels = new ArrayList<>();
+        levels.add(leaves);
+        byte[] level = leaves;
+        while (level.length > NODE_SIZE) {
+            int count = level.length / NODE_SIZE;
+            byte[] parent = new byte[(count + 1) / 2 * NODE_SIZE];
+            for (int i = 0; i < count; i += 2) {
+                mac.update(NODE);
+                mac.update(level, i * NODE_SIZE, Math.min(2, count - i) * NODE_SIZE);
+                System.arraycopy(mac.doFinal(), 0, parent, i / 2 * NODE_SIZE, NODE_SIZE);
+            }
+            levels.add(parent);
+            level = parent;
+        }
+        return levels;
+    }
+
+    private static byte[] rootMac(Mac mac, byte[] header, long bodyLength, int chunkSize, byte[] top) {
+        mac.update(ROOT);
+        mac.update(header);
+        mac.update(ByteBuffer.allocate(12).putLong(bodyLength).putInt(chunkSize).array());
+        return mac.doFinal(top);
+    }
+
+    private static List<long[]> ranges(List<Integer> damaged, Layout layout) {
+        List<Integer> sorted = new ArrayList<>(damaged);
+        Collections.sort(sorted);
+        List<long[]> ranges = new ArrayList<>();
+        for (int index : sorted) {
+            long start = (long) index * layout.chunkSize;
+            long length = Math.min(layout.chunkSize, layout.bodyLength - start);
+            long[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (previous != null && previous[0] + previous[1] == start) {
+                previous[1] += length;
+            } else {
+                ranges.add(new long[] { start, length });
+            }
+        }
+        return ranges;
+    }
+
+    private static byte[] slice(byte[] nodes, int index) {
+        byte[] node = new byte[NODE_SIZE];
+        System.arraycopy(nodes, index * NODE_SIZE, node, 0, NODE_SIZE);
+        return node;
+    }
+
+    private static int leafCount(long bodyLength, int chunkSize) {
+        return (int) Math.max(1, (bodyLength + chunkSize - 1) / chunkSize);
+    }
+
+    private static int[] levelCounts(int leafCount) {
+        List<Integer> counts = new ArrayList<>();
+        int count = leafCount;
+        counts.add(count);
+        while (count > 1) {
+            count = (count + 1) / 2;
+            counts.add(count);
+        }
+        int[] result = new int[counts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a Mac keyed with the tree key derived from the file key.
+     */
+    private static Mac newMac(SecretKey key) {
+        try {
+            Mac derive = Mac.getInstance("HmacSHA256");
+            derive.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(derive.doFinal(KEY_LABEL), "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) == -1) {
+                throw new IOException("File ended unexpectedly");
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package cryptify.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Token-bucket limiter on file bytes per second and I/O operations per
+ * second, shared by every file read and write of the encryption pipeline.
+ * 
+ * Each read or write takes one operation token and one token per byte; a
+ * caller that finds a bucket empty sleeps until its tokens have accrued.
+ * Buckets hold at most BURST_NANOS worth of tokens, so after an idle spell
+ * only a short burst gets through and the rate stays smooth. Callers are
+ * served in arrival order, across all threads.
+ * 
+ * Limits can be changed at any time, also while files are being processed,
+ * and apply from the next operation on. Interactive jobs of the
+ * JobScheduler are never held back: the limiter is for background work.
+ * 
+ * Design Pattern: Singleton-style shared instance (like BufferPool)
+ * OOP Principles:
+ * - Encapsulation: Bucket state is internal
+ * - Thread Safety: Reservations are made under a lock, sleeps outside it
+ */
+public class IoThrottle implements IoThrottleMBean {
+
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final IoThrottle SHARED = new IoThrottle();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(SHARED,
+                    new ObjectName("cryptify:type=IoThrottle"));
+        } catch (JMException | SecurityException e) {
+            // Still adjustable through the setters, just not over JMX
+        }
+    }
+
+    private volatile long bytesPerSecond;
+    private volatile long operationsPerSecond;
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    // Time at which each bucket is empty again; guarded by this
+    private long bytesFreeAt;
+    private long operationsFreeAt;
+
+    /**
+     * Gets the process-wide throttle.
+     * 
+     * @return The shared throttle (unlimited until a limit is set)
+     */
+    public static IoThrottle shared() {
+        return SHARED;
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public long getOperationsPerSecond() {
+        return operationsPerSecond;
+    }
+
+    @Override
+    public void setOperationsPerSecond(long operationsPerSecond) {
+        this.operationsPerSecond = Math.max(0, operationsPerSecond);
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /**
+     * Checks if any limit is set.
+     */
+    public boolean isLimited() {
+        return bytesPerSecond > 0 || operationsPerSecond > 0;
+    }
+
+    /**
+     * Takes the tokens for one operation of the given size, sleeping until
+     * they are available.
+     * 
+     * @param bytes Bytes read or written by the operation
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long byteRate = bytesPerSecond;
+        long operationRate = operationsPerSecond;
+        if ((byteRate <= 0 && operationRate <= 0) || JobScheduler.isInteractive()) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            wait = 0;
+            if (byteRate > 0) {
+                bytesFreeAt = Math.max(bytesFreeAt, now - BURST_NANOS)
+                        + (long) (bytes * 1e9 / byteRate);
+                wait = bytesFreeAt - now;
+            }
+            if (operationRate > 0) {
+                operationsFreeAt = Math.max(operationsFreeAt, now - BURST_NANOS) + 1_000_000_000L / operationRate;
+                wait = Math.max(wait, operationsFreeAt - now);
+            }
+        }
+        if (wait > 0) {
+            throttledNanos.addAndGet(wait);
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * Wraps a channel so that every read is throttled.
+     */
+    public ReadableByteChannel reads(ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                // Tokens are taken for what was asked, as the disk sees the request
+                acquire(dst.remaining());
+                return channel.read(dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps a channel so that every write is throttled.
+     */
+    public WritableByteChannel writes(WritableByteChannel channel) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                acquire(src.remaining());
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
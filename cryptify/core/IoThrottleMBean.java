@@ -0,0 +1,21 @@
+package cryptify.core;
+
+/**
+ * JMX view of the I/O throttle, e.g. for jconsole or a monitoring agent.
+ * Registered as "cryptify:type=IoThrottle". A limit of 0 means unlimited.
+ */
+public interface IoThrottleMBean {
+
+    long getBytesPerSecond();
+
+    void setBytesPerSecond(long bytesPerSecond);
+
+    long getOperationsPerSecond();
+
+    void setOperationsPerSecond(long operationsPerSecond);
+
+    /**
+     * @return Total time callers have been held back, in milliseconds
+     */
+    long getThrottledMillis();
+}
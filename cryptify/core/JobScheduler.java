@@ -0,0 +1,275 @@
+package cryptify.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the engine's file jobs on a fixed set of worker threads, with two
+ * priority classes.
+ * 
+ * Interactive jobs (a click in the GUI, a preview) are taken first, in the
+ * order they arrive. Bulk jobs are taken largest file first, which keeps
+ * one huge file from starting last and finishing long after the others.
+ * 
+ * A bulk job also yields between chunks: Cipher.transfer() and the in-place
+ * windows call yieldPoint(), and if interactive jobs are waiting, the worker
+ * runs them right there before continuing with its own chunk. An interactive
+ * job therefore waits at most for one chunk on any busy worker, however many
+ * bulk jobs are queued.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Queues and workers are internal
+ * - Thread Safety: Jobs may be submitted from any thread
+ */
+public class JobScheduler {
+
+    /**
+     * Priority class of a job.
+     */
+    public enum Priority {
+        INTERACTIVE, BULK
+    }
+
+    /**
+     * A queued job.
+     */
+    private static class Job implements Comparable<Job> {
+
+        final Priority priority;
+        final long size;
+        final long sequence;
+        final ReentrantLock lock;
+        final Runnable task;
+
+        Job(Priority priority, long size, long sequence, ReentrantLock lock, Runnable task) {
+            this.priority = priority;
+            this.size = size;
+            this.sequence = sequence;
+            this.lock = lock;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            // Largest first, then in submission order
+            int bySize = Long.compare(other.size, size);
+            return bySize != 0 ? bySize : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final ThreadLocal<JobScheduler> WORKER_OF = new ThreadLocal<>();
+    private static final ThreadLocal<Job> CURRENT = new ThreadLocal<>();
+
+    private final String name;
+    // Guarded by this
+    private int threads;
+    private int running;
+    private int nextWorker;
+    private final ArrayDeque<Job> interactive = new ArrayDeque<>();
+    private final PriorityQueue<Job> bulk = new PriorityQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile int interactiveWaiting;
+    private boolean started;
+    private boolean shutdown;
+
+    /**
+     * Creates a scheduler; its threads start with the first job.
+     * 
+     * @param name    Prefix for the worker thread names
+     * @param threads Number of worker threads
+     */
+    public JobScheduler(String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.name = name;
+        this.threads = threads;
+    }
+
+    /**
+     * Changes the number of worker threads, e.g. once the host profile is
+     * known. Extra workers are started at once; surplus workers stop when
+     * they finish their current job.
+     * 
+     * @param threads Number of worker threads
+     */
+    public synchronized void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+        if (started) {
+            while (running < threads) {
+                startWorker();
+            }
+        }
+        // Idle surplus workers see the new count and stop
+        notifyAll();
+    }
+
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Queues a job.
+     * 
+     * @param priority Its priority class
+     * @param size     Bytes it will process (orders bulk jobs; 0 if unknown)
+     * @param lock     Lock the job takes, or null; a yielding bulk job only
+     *                 runs this job if the lock is free
+     * @param task     The job
+     */
+    public void submit(Priority priority, long size, ReentrantLock lock, Runnable task) {
+        Job job = new Job(priority, size, sequence.getAndIncrement(), lock, task);
+        synchronized (this) {
+            if (shutdown) {
+                throw new IllegalStateException("Scheduler has been shut down");
+            }
+            if (priority == Priority.INTERACTIVE) {
+                interactive.add(job);
+                interactiveWaiting = interactive.size();
+            } else {
+                bulk.add(job);
+            }
+            startWorkers();
+            notify();
+        }
+    }
+
+    /**
+     * Lets waiting interactive jobs run if the current thread is a worker
+     * busy with a bulk job. Call it between chunks; elsewhere it does nothing.
+     */
+    public static void yieldPoint() {
+        JobScheduler scheduler = WORKER_OF.get();
+        if (scheduler == null || scheduler.interactiveWaiting == 0) {
+            return;
+        }
+        Job current = CURRENT.get();
+        if (current == null || current.priority != Priority.BULK) {
+            return;
+        }
+        Job job;
+        while ((job = scheduler.pollInteractive()) != null) {
+            try {
+                scheduler.execute(job);
+            } finally {
+                if (job.lock != null) {
+                    job.lock.unlock();
+                }
+                CURRENT.set(current);
+            }
+        }
+    }
+
+    /**
+     * Checks if the current thread is running an interactive job.
+     */
+    static boolean isInteractive() {
+        Job current = CURRENT.get();
+        return current != null && current.priority == Priority.INTERACTIVE;
+    }
+
+    /**
+     * Lets queued jobs finish, then stops the workers.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Takes the oldest interactive job whose lock is free, and takes the
+     * lock for it. A lock this thread holds counts as taken: the bulk job
+     * is in the middle of that file. Waiting for a lock here could deadlock
+     * with its owner, which may be waiting for memory this thread holds.
+     */
+    private synchronized Job pollInteractive() {
+        Iterator<Job> jobs = interactive.iterator();
+        while (jobs.hasNext()) {
+            Job job = jobs.next();
+            if (job.lock == null || (!job.lock.isHeldByCurrentThread() && job.lock.tryLock())) {
+                jobs.remove();
+                interactiveWaiting = interactive.size();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the next job: interactive first, then the largest bulk job.
+     * 
+     * @return The job, or null once shut down and drained, or if this
+     *         worker is surplus after setThreads()
+     */
+    private synchronized Job take() throws InterruptedException {
+        while (true) {
+            if (running > threads) {
+                running--;
+                // The wake-up this worker may have taken belongs to another one
+                notify();
+                return null;
+            }
+            Job job = interactive.poll();
+            if (job != null) {
+                interactiveWaiting = interactive.size();
+                return job;
+            }
+            job = bulk.poll();
+            if (job != null) {
+                return job;
+            }
+            if (shutdown) {
+                running--;
+                return null;
+            }
+            wait();
+        }
+    }
+
+    private void execute(Job job) {
+        CURRENT.set(job);
+        try {
+            job.task.run();
+        } catch (RuntimeException e) {
+            // Jobs report their own failures; a worker must survive anything else
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    private void startWorkers() {
+        if (started) {
+            return;
+        }
+        started = true;
+        while (running < threads) {
+            startWorker();
+        }
+    }
+
+    private void startWorker() {
+        running++;
+        Thread worker = new Thread(() -> {
+            WORKER_OF.set(this);
+            try {
+                Job job;
+                while ((job = take()) != null) {
+                    execute(job);
+                }
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    running--;
+                }
+                Thread.currentThread().interrupt();
+            }
+        }, name + "-" + (++nextWorker));
+        worker.setDaemon(true);
+        worker.start();
+    }
+}
@@ -0,0 +1,159 @@
+package cryptify.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.SecretKey;
+
+/**
+ * The keys known in this session, indexed by the key ID written into file
+ * headers.
+ * 
+ * Finding the key for a file is one map lookup on the header's key ID plus
+ * a key check per key in that bucket (almost always one); no trial
+ * decryption is needed. Derived keys stay in the ring for the whole
+ * session, so each password has to be entered only once.
+ * 
+ * The most recently added key is the active key, used for encryption and
+ * for old files whose header names no key.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Lookup structure is internal
+ * - Thread Safety: All methods are synchronized
+ */
+public class KeyRing {
+
+    private final Map<Integer, List<SecretKey>> keysById = new HashMap<>();
+    private SecretKey activeKey;
+
+    /**
+     * Creates an empty keyring.
+     */
+    public KeyRing() {
+    }
+
+    /**
+     * Creates a keyring holding one key.
+     * 
+     * @param key The key, which becomes active
+     */
+    public KeyRing(SecretKey key) {
+        add(key);
+    }
+
+    /**
+     * Derives a key from a password and makes it the active key.
+     * Only the derived key is kept, never the password.
+     * 
+     * @param password The password
+     * @return The key
+     * @throws Exception if the key cannot be derived
+     */
+    public SecretKey addPassword(String password) throws Exception {
+        SecretKey key = CryptoHelper.deriveKey(password);
+        add(key);
+        return key;
+    }
+
+    /**
+     * Adds a key and makes it the active key.
+     * 
+     * @param key The key
+     */
+    public synchronized void add(SecretKey key) {
+        List<SecretKey> bucket = keysById.computeIfAbsent(FileHeaderUtil.getKeyId(key), id -> new ArrayList<>(1));
+        if (!bucket.contains(key)) {
+            bucket.add(key);
+        }
+        activeKey = key;
+    }
+
+    /**
+     * Gets the key new files are encrypted with.
+     * 
+     * @return The most recently added key, or null if the ring is empty
+     */
+    public synchronized SecretKey getActiveKey() {
+        return activeKey;
+    }
+
+    /**
+     * Finds the key a header was written with.
+     * 
+     * @param header The complete file header
+     * @return The matching key; the active key for headers without a key
+     *         check; or null if no key in the ring matches
+     */
+    public synchronized SecretKey find(byte[] header) {
+        if (header[5] < FileHeaderUtil.FORMAT_KEY_CHECK) {
+            return activeKey;
+        }
+        int keyId = FileHeaderUtil.readKeyId(header);
+        if (keyId != 0) {
+            return findIn(keysById.get(keyId), header);
+        }
+        // Header without a key ID: check every key
+        for (List<SecretKey> bucket : keysById.values()) {
+            SecretKey key = findIn(bucket, header);
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static SecretKey findIn(List<SecretKey> bucket, byte[] header) {
+        if (bucket != null) {
+            for (SecretKey key : bucket) {
+                if (FileHeaderUtil.matchesKey(header, key)) {
+                    return key;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the key an encrypted file was written with.
+     * 
+     * @param file The encrypted file
+     * @return The matching key
+     * @throws IOException if the file is not encrypted or no key matches
+     */
+    public SecretKey keyFor(File file) throws IOException {
+        byte[] header = FileHeaderUtil.readMetadata(file);
+        if (header == null) {
+            throw new IOException("File is not encrypted or was not encrypted by this application");
+        }
+        SecretKey key = find(header);
+        if (key == null) {
+            throw new IOException("None of the keys entered matches this file");
+        }
+        return key;
+    }
+
+    /**
+     * Gets the number of distinct keys.
+     * 
+     * @return Key count
+     */
+    public synchronized int size() {
+        int count = 0;
+        for (List<SecretKey> bucket : keysById.values()) {
+            count += bucket.size();
+        }
+        return count;
+    }
+
+    /**
+     * Checks if the ring has no keys.
+     * 
+     * @return true if empty
+     */
+    public synchronized boolean isEmpty() {
+        return activeKey == null;
+    }
+}
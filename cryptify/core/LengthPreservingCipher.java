@@ -0,0 +1,175 @@
+package cryptify.core;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Base class for ciphers that map every input byte to exactly one output byte.
+ * Subclasses only describe how a run of bytes is transformed; the byte array,
+ * stream and channel APIs are all built on top of that single operation.
+ * 
+ * Design Pattern: Template Method Pattern
+ * OOP Principles:
+ * - Inheritance: Extends abstract Cipher class
+ * - Abstraction: Subclasses implement transform() only
+ */
+public abstract class LengthPreservingCipher extends Cipher {
+
+    public LengthPreservingCipher(SecretKey key) {
+        super(key);
+    }
+
+    /**
+     * Transforms the bytes between the buffer's position and limit in place.
+     * The buffer's position and limit are left unchanged.
+     * 
+     * @param buffer     The bytes to transform
+     * @param position   Offset of the buffer's first byte within the whole stream
+     * @param encrypting true to encrypt, false to decrypt
+     */
+    protected abstract void transform(ByteBuffer buffer, long position, boolean encrypting);
+
+    /**
+     * Calls transform(), recorded as a cipher stage (see StageEvent).
+     */
+    final void timedTransform(ByteBuffer buffer, long position, boolean encrypting) {
+        StageEvent event = StageEvent.begin(StageEvent.CIPHER, getCipherName());
+        transform(buffer, position, encrypting);
+        StageEvent.end(event, buffer.remaining());
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws Exception {
+        byte[] result = data.clone();
+        timedTransform(ByteBuffer.wrap(result), 0, true);
+        return result;
+    }
+
+    @Override
+    public byte[] decrypt(byte[] data) throws Exception {
+        byte[] result = data.clone();
+        timedTransform(ByteBuffer.wrap(result), 0, false);
+        return result;
+    }
+
+    @Override
+    public WritableByteChannel newEncryptingChannel(WritableByteChannel out) {
+        return new TransformingWritableChannel(out, true, 0);
+    }
+
+    @Override
+    public ReadableByteChannel newDecryptingChannel(ReadableByteChannel in) {
+        return new TransformingReadableChannel(in, false, 0);
+    }
+
+    @Override
+    public WritableByteChannel resumeEncryptingChannel(WritableByteChannel out, byte[] streamPrefix,
+            long plainOffset, boolean last) {
+        // Nothing marks the end of the stream, so every section is alike
+        return new TransformingWritableChannel(out, true, plainOffset);
+    }
+
+    @Override
+    public ReadableByteChannel resumeDecryptingChannel(ReadableByteChannel in, byte[] streamPrefix,
+            long plainOffset) {
+        return new TransformingReadableChannel(in, false, plainOffset);
+    }
+
+    /**
+     * Transforms bytes on their way into another channel.
+     * The caller's buffers are never modified; the pooled scratch buffer is
+     * returned when the channel is closed.
+     */
+    private class TransformingWritableChannel implements WritableByteChannel {
+
+        private final WritableByteChannel out;
+        private final boolean encrypting;
+        private ByteBuffer scratch = BufferPool.shared().acquire(STREAM_CHUNK_SIZE);
+        private long position;
+
+        TransformingWritableChannel(WritableByteChannel out, boolean encrypting, long position) {
+            this.out = out;
+            this.encrypting = encrypting;
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (scratch == null) {
+                throw new IOException("Channel is closed");
+            }
+            int written = 0;
+            while (src.hasRemaining()) {
+                int n = Math.min(scratch.capacity(), src.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + n);
+
+                scratch.clear();
+                scratch.put(slice);
+                scratch.flip();
+                timedTransform(scratch, position, encrypting);
+                writeFully(out, scratch);
+
+                src.position(src.position() + n);
+                position += n;
+                written += n;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return scratch != null && out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            BufferPool.shared().release(scratch);
+            scratch = null;
+            out.close();
+        }
+    }
+
+    /**
+     * Transforms bytes in the caller's buffer right after they are read.
+     */
+    private class TransformingReadableChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel in;
+        private final boolean encrypting;
+        private long position;
+
+        TransformingReadableChannel(ReadableByteChannel in, boolean encrypting, long position) {
+            this.in = in;
+            this.encrypting = encrypting;
+            this.position = position;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            int n = in.read(dst);
+            if (n > 0) {
+                ByteBuffer region = dst.duplicate();
+                region.limit(start + n);
+                region.position(start);
+                timedTransform(region, position, encrypting);
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package cryptify.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide budget for the memory that file jobs hold at once: every
+ * buffer leased from the shared BufferPool and every whole-file array of the
+ * legacy format is reserved here first.
+ * 
+ * When the budget is used up, a thread that holds nothing yet waits until
+ * enough is released; this is where a new file (or the first chunk of one)
+ * is held back. A thread that already holds memory is never made to wait,
+ * since it may be holding what the others are waiting for; it goes over the
+ * budget by at most the few buffers one job needs. Throughput drops to what
+ * fits instead of the process running out of memory.
+ * 
+ * Each reserve() returns a Reservation that is closed to give the memory
+ * back. It counts against the thread that reserved it wherever it is
+ * closed, so a buffer handed to a writer thread or closed by an async
+ * completion still ends what its reserving thread holds.
+ * 
+ * The default budget is the in-flight budget of the host profile (a few
+ * chunk buffers per worker, at most a quarter of the heap), and follows it
+ * when a calibrated profile is installed.
+ * 
+ * Design Pattern: Singleton-style shared instance (like BufferPool)
+ * OOP Principles:
+ * - Encapsulation: Accounting is internal; callers only hold Reservations
+ * - Thread Safety: All methods may be called concurrently
+ */
+public class MemoryBudget {
+
+    private static final MemoryBudget SHARED = new MemoryBudget(HostProfile.current().getInFlightBytes());
+
+    private final ThreadLocal<long[]> held = ThreadLocal.withInitial(() -> new long[1]);
+    private long limit;
+    private long inUse;
+    private long peak;
+    private long waits;
+    private long waitNanos;
+
+    /**
+     * Creates a budget.
+     * 
+     * @param limit Bytes that may be reserved at once
+     */
+    public MemoryBudget(long limit) {
+        setLimit(limit);
+    }
+
+    /**
+     * Gets the process-wide budget used by the shared BufferPool.
+     * 
+     * @return The shared budget
+     */
+    public static MemoryBudget shared() {
+        return SHARED;
+    }
+
+    /**
+     * Changes the budget; waiting threads are re-checked at once.
+     * 
+     * @param limit Bytes that may be reserved at once (at least 1)
+     */
+    public synchronized void setLimit(long limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.limit = limit;
+        notifyAll();
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    public synchronized long getInUse() {
+        return inUse;
+    }
+
+    /**
+     * @return The most ever reserved at once
+     */
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    /**
+     * @return How many reservations had to wait
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * Reserves memory, waiting while the budget is used up if the current
+     * thread holds none yet. A reservation larger than the whole budget
+     * goes ahead once nothing else is reserved. If interrupted while
+     * waiting, the reservation is granted and the interrupt flag kept.
+     * 
+     * @param bytes Bytes about to be allocated
+     * @return The reservation, to be closed when the memory is no longer
+     *         in use (from any thread)
+     */
+    public synchronized Reservation reserve(long bytes) {
+        long[] mine = held.get();
+        if (mine[0] == 0 && inUse > 0 && inUse + bytes > limit) {
+            long start = System.nanoTime();
+            waits++;
+            try {
+                while (inUse > 0 && inUse + bytes > limit) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            waitNanos += System.nanoTime() - start;
+        }
+        inUse += bytes;
+        mine[0] += bytes;
+        peak = Math.max(peak, inUse);
+        return new Reservation(bytes, mine);
+    }
+
+    private synchronized void release(Reservation reservation) {
+        if (reservation.released) {
+            return;
+        }
+        reservation.released = true;
+        inUse -= reservation.bytes;
+        reservation.holder[0] -= reservation.bytes;
+        notifyAll();
+    }
+
+    /**
+     * Memory reserved with reserve(). Closing it more than once has no
+     * further effect.
+     */
+    public class Reservation implements AutoCloseable {
+
+        private final long bytes;
+        // What the reserving thread holds, shared with its other reservations
+        private final long[] holder;
+        // Guarded by the budget
+        private boolean released;
+
+        private Reservation(long bytes, long[] holder) {
+            this.bytes = bytes;
+            this.holder = holder;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Gives the memory back.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("budget=%d MB, in use=%d MB, peak=%d MB, waits=%d (%d ms)", limit >> 20, inUse >> 20,
+                peak >> 20, waits, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+}
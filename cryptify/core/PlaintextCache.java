@@ -0,0 +1,393 @@
+package cryptify.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.crypto.SecretKey;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Bounded cache of decrypted file content, so that reading the same file
+ * again (a preview clicked twice, a file served repeatedly) is a memory copy
+ * instead of another pass of the cipher.
+ * 
+ * Files are cached in blocks of BLOCK_SIZE plaintext bytes, each decrypted
+ * on its own from the nearest chunk (see Cipher.resumeDecryptingChannel), so
+ * reading the middle of a large file does not decrypt its beginning and a
+ * file larger than the cache can still be read through it. When the cached
+ * bytes exceed the limit, the least recently read blocks are dropped.
+ * 
+ * A block belongs to the version of the file it was read from: its size,
+ * modification time and file key (the inode, where the platform has one),
+ * and the key it was decrypted with. Every read compares the file's current
+ * version with that of the blocks it finds; on the first stale one, all
+ * blocks of the file are dropped and it is decrypted again, so a
+ * re-encrypted or replaced file is never served stale.
+ * 
+ * Blocks are kept on the heap, or in direct buffers outside it; the latter
+ * keeps a large cache out of the garbage collector's way, but counts against
+ * -XX:MaxDirectMemorySize.
+ * 
+ * A block is reserved in the shared MemoryBudget only while it is being
+ * decrypted. Once cached, it counts against the cache's own limit instead:
+ * the budget bounds memory in flight, and blocks kept there for as long as
+ * they stay cached would leave the pipelines waiting on it with no room.
+ * 
+ * Design Pattern: Read-through cache
+ * OOP Principles:
+ * - Encapsulation: Blocks and their order are internal
+ * - Thread Safety: All methods may be called concurrently; a block missed
+ *   by two threads at once may be decrypted twice, never served half-read
+ */
+public class PlaintextCache implements PlaintextCacheMBean {
+
+    /**
+     * Plaintext bytes per cached block (a whole number of stream chunks).
+     */
+    public static final int BLOCK_SIZE = 16 * Cipher.STREAM_CHUNK_SIZE;
+
+    /**
+     * What a cached block was read from.
+     */
+    private static class Version {
+
+        final long size;
+        final FileTime modified;
+        final Object fileKey;
+        final SecretKey key;
+
+        Version(BasicFileAttributes attributes, SecretKey key) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+            this.fileKey = attributes.fileKey();
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Version)) {
+                return false;
+            }
+            Version version = (Version) other;
+            return size == version.size && modified.equals(version.modified)
+                    && Objects.equals(fileKey, version.fileKey) && Objects.equals(key, version.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, fileKey);
+        }
+    }
+
+    /**
+     * Position of a block in a file.
+     */
+    private static class BlockKey {
+
+        final Path path;
+        final long index;
+
+        BlockKey(Path path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey key = (BlockKey) other;
+            return index == key.index && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(index);
+        }
+    }
+
+    /**
+     * A cached block: up to BLOCK_SIZE bytes, fewer only for the last block.
+     */
+    private static class Block {
+
+        final Version version;
+        final ByteBuffer data;
+
+        Block(Version version, ByteBuffer data) {
+            this.version = version;
+            this.data = data;
+        }
+
+        boolean isLast() {
+            return data.capacity() < BLOCK_SIZE;
+        }
+    }
+
+    private final boolean offHeap;
+    // Least recently read first; guarded by this
+    private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytesInUse;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Creates an empty cache.
+     * 
+     * @param maxBytes Decrypted bytes to keep at most
+     * @param offHeap  Whether to keep blocks in direct buffers
+     */
+    public PlaintextCache(long maxBytes, boolean offHeap) {
+        this.offHeap = offHeap;
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Makes the cache visible over JMX as "cryptify:type=PlaintextCache,name=...".
+     * 
+     * @param name Tells this cache apart from others in the process
+     * @return Whether it could be registered
+     */
+    public boolean register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("cryptify:type=PlaintextCache,name=" + ObjectName.quote(name)));
+            return true;
+        } catch (JMException | SecurityException e) {
+            // Still usable, just not visible over JMX
+            return false;
+        }
+    }
+
+    /**
+     * Reads plaintext from a file through the cache.
+     * 
+     * @param file     The file (unencrypted files are cached as they are)
+     * @param key      Its key (null for an unencrypted file)
+     * @param position Plaintext offset to read from
+     * @param dst      Buffer to read into, as far as it has room
+     * @return Bytes read, or -1 if position is at or past the end
+     * @throws Exception if the file cannot be read or decrypted
+     */
+    public int read(File file, SecretKey key, long position, ByteBuffer dst) throws Exception {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        Path path = file.toPath().toAbsolutePath().normalize();
+        Version version = new Version(Files.readAttributes(path, BasicFileAttributes.class), key);
+        int read = 0;
+        while (dst.hasRemaining()) {
+            Block block = block(path, version, position / BLOCK_SIZE);
+            int from = (int) (position % BLOCK_SIZE);
+            if (from >= block.data.capacity()) {
+                break;
+            }
+            ByteBuffer part = block.data.duplicate();
+            part.position(from).limit(from + Math.min(part.capacity() - from, dst.remaining()));
+            int n = part.remaining();
+            dst.put(part);
+            read += n;
+            position += n;
+            if (block.isLast()) {
+                break;
+            }
+        }
+        return read == 0 && dst.hasRemaining() ? -1 : read;
+    }
+
+    /**
+     * Reads the whole plaintext of a file through the cache.
+     * 
+     * @param file The file (unencrypted files are cached as they are)
+     * @param key  Its key (null for an unencrypted file)
+     * @return The plaintext
+     * @throws Exception if the file cannot be read or decrypted
+     */
+    public byte[] readAll(File file, SecretKey key) throws Exception {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long position = 0;
+        int n;
+        while ((n = read(file, key, position, block)) != -1) {
+            plain.write(block.array(), 0, n);
+            position += n;
+            block.clear();
+        }
+        return plain.toByteArray();
+    }
+
+    /**
+     * Drops all cached blocks of a file, e.g. after changing it.
+     */
+    public synchronized void invalidate(File file) {
+        dropFile(file.toPath().toAbsolutePath().normalize());
+    }
+
+    /**
+     * Drops every cached block.
+     */
+    @Override
+    public synchronized void clear() {
+        blocks.clear();
+        bytesInUse = 0;
+    }
+
+    /**
+     * Changes the limit; blocks over it are dropped at once.
+     * 
+     * @param maxBytes Decrypted bytes to keep at most (0 to cache nothing)
+     */
+    @Override
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    @Override
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Gets a block of the given version, decrypting it on a miss.
+     */
+    private Block block(Path path, Version version, long index) throws Exception {
+        BlockKey blockKey = new BlockKey(path, index);
+        synchronized (this) {
+            Block block = blocks.get(blockKey);
+            if (block != null && block.version.equals(version)) {
+                hits++;
+                return block;
+            }
+            if (block != null) {
+                // The file changed; none of its blocks is current
+                invalidations++;
+                dropFile(path);
+            }
+            misses++;
+        }
+        Block block = new Block(version, load(path.toFile(), version.key, index * BLOCK_SIZE));
+        // A file changed while it was read gives no usable block
+        if (!new Version(Files.readAttributes(path, BasicFileAttributes.class), version.key).equals(version)) {
+            throw new IOException("File changed while it was being read");
+        }
+        synchronized (this) {
+            if (block.data.capacity() <= maxBytes) {
+                Block old = blocks.put(blockKey, block);
+                if (old != null) {
+                    bytesInUse -= old.data.capacity();
+                }
+                bytesInUse += block.data.capacity();
+                evict();
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Decrypts one block. A short block is the last one: it is read to the
+     * end of the stream, so a truncated file fails here.
+     */
+    private ByteBuffer load(File file, SecretKey key, long offset) throws Exception {
+        MemoryBudget.Reservation reservation = MemoryBudget.shared().reserve(BLOCK_SIZE);
+        try {
+            ByteBuffer data = offHeap ? ByteBuffer.allocateDirect(BLOCK_SIZE) : ByteBuffer.allocate(BLOCK_SIZE);
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ReadableByteChannel plain = CryptoHelper.openPlaintext(in, file, key, offset, BLOCK_SIZE);
+                // Nothing may follow the short read
+                if (!Cipher.readFully(plain, data) && plain.read(ByteBuffer.allocate(1)) != -1) {
+                    throw new IOException("Plaintext continues after its end: " + file);
+                }
+                plain.close();
+            }
+            data.flip();
+            if (data.limit() < BLOCK_SIZE) {
+                ByteBuffer exact = offHeap ? ByteBuffer.allocateDirect(data.limit())
+                        : ByteBuffer.allocate(data.limit());
+                data = exact.put(data);
+                data.flip();
+            }
+            return data.asReadOnlyBuffer();
+        } finally {
+            reservation.close();
+        }
+    }
+
+    private void dropFile(Path path) {
+        Iterator<Map.Entry<BlockKey, Block>> entries = blocks.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<BlockKey, Block> entry = entries.next();
+            if (entry.getKey().path.equals(path)) {
+                bytesInUse -= entry.getValue().data.capacity();
+                entries.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Block> eldest = blocks.values().iterator();
+        while (bytesInUse > maxBytes && eldest.hasNext()) {
+            bytesInUse -= eldest.next().data.capacity();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("cache=%d MB%s, in use=%d MB, hits=%d (%d%%), misses=%d, evictions=%d, invalidations=%d",
+                maxBytes >> 20, offHeap ? " off-heap" : "", bytesInUse >> 20, hits,
+                lookups == 0 ? 0 : hits * 100 / lookups, misses, evictions, invalidations);
+    }
+}
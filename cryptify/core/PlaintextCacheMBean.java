@@ -0,0 +1,27 @@
+package cryptify.core;
+
+/**
+ * JMX view of a plaintext cache, e.g. for jconsole or a monitoring agent.
+ * Registered as "cryptify:type=PlaintextCache,name=..." by register().
+ */
+public interface PlaintextCacheMBean {
+
+    long getMaxBytes();
+
+    void setMaxBytes(long maxBytes);
+
+    long getBytesInUse();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    /**
+     * @return How often a file was found changed and its blocks dropped
+     */
+    long getInvalidations();
+
+    void clear();
+}
@@ -0,0 +1,204 @@
+package cryptify.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of checksummed records, used for the small on-disk
+ * structures (state index, batch journal) that must survive crashes.
+ * 
+ * Layout: [4-byte magic] followed by records of
+ * [4-byte length][4-byte CRC32][payload].
+ * On open, the log is replayed up to the first incomplete or corrupt
+ * record and truncated there, so a torn write at the tail is discarded.
+ * 
+ * OOP Principle: Single Responsibility - only framing and durability;
+ * callers decide what the records mean.
+ */
+public class RecordLog {
+
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private final Path file;
+    private final int magic;
+    private final List<byte[]> replayed = new ArrayList<>();
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long recordCount;
+
+    /**
+     * Opens (or creates) a log, replaying its intact records.
+     * 
+     * @param file  The log file
+     * @param magic Identifies what kind of log the file must be
+     * @throws IOException if the file is not a log of this kind or cannot be opened
+     */
+    public RecordLog(Path file, int magic) throws IOException {
+        this.file = file;
+        this.magic = magic;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        load();
+        open();
+    }
+
+    /**
+     * Gets the records found when the log was opened, oldest first.
+     * The list is released after the first call.
+     * 
+     * @return Replayed record payloads
+     */
+    public List<byte[]> takeReplayed() {
+        List<byte[]> records = new ArrayList<>(replayed);
+        replayed.clear();
+        return records;
+    }
+
+    /**
+     * Appends a record to the write buffer.
+     * It becomes durable on the next sync().
+     * 
+     * @param payload Record contents
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        recordCount++;
+    }
+
+    /**
+     * Hands buffered records to the operating system.
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes buffered records and forces them to stable storage.
+     */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        fileOut.getChannel().force(false);
+    }
+
+    /**
+     * Atomically replaces the whole log with the given records.
+     * 
+     * @param payloads The records to keep
+     */
+    public synchronized void rewrite(List<byte[]> payloads) throws IOException {
+        out.close();
+        Path temp = file.resolveSibling(file.getFileName() + ".rewrite");
+        try (FileOutputStream tempOut = new FileOutputStream(temp.toFile());
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tempOut))) {
+            data.writeInt(magic);
+            for (byte[] payload : payloads) {
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                data.writeInt(payload.length);
+                data.writeInt((int) crc.getValue());
+                data.write(payload);
+            }
+            data.flush();
+            tempOut.getFD().sync();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordCount = payloads.size();
+        open();
+    }
+
+    /**
+     * Gets the number of records in the log, including superseded ones.
+     * 
+     * @return Record count
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Syncs and closes the log.
+     */
+    public synchronized void close() throws IOException {
+        sync();
+        out.close();
+    }
+
+    /**
+     * Deletes the log file. The log must be closed.
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private void open() throws IOException {
+        boolean fresh = !Files.exists(file) || Files.size(file) == 0;
+        fileOut = new FileOutputStream(file.toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        if (fresh) {
+            out.writeInt(magic);
+            sync();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        long validLength = 0;
+        try (InputStream fileIn = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            if (in.readInt() != magic) {
+                throw new IOException("Not a recognized log file: " + file);
+            }
+            validLength = 4;
+
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                replayed.add(payload);
+                recordCount++;
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Reached the end, possibly in the middle of a torn record
+        }
+
+        if (validLength < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package cryptify.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted full-text index of text files, so that finding the files that
+ * contain some words does not mean decrypting every file.
+ * 
+ * Words are runs of letters and digits, lower-cased: any non-ASCII UTF-8
+ * byte counts as a letter, so other scripts stay whole. At most
+ * MAX_WORD_BYTES of a word count.
+ * Each word is stored only as a tag: the first 8 bytes of a keyed
+ * HMAC-SHA256, so the index reveals neither the words nor which files share
+ * a word without the key. A file's text is tokenized while it is being
+ * encrypted (see CryptifyEngine.setSearchIndex), so indexing costs no extra
+ * read.
+ * 
+ * Storage is a RecordLog whose records are each encrypted with AES-GCM, and
+ * updates are appended as files are added: a file's tags go into records
+ * of at most TAGS_PER_RECORD, followed by a record with its size and time
+ * that makes them count. A crash in between leaves the file unindexed
+ * rather than half indexed. The log is compacted once stale records
+ * outnumber live ones.
+ * 
+ * In memory, each tag has a posting list of file numbers. File numbers only
+ * grow, so every list is sorted and a query intersects them by merging,
+ * starting from the shortest. A query reads no file at all unless a match
+ * has changed since it was indexed; that file is then decrypted and indexed
+ * again before it is reported.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Tags, record layout and posting lists are internal
+ * - Thread Safety: All index methods are synchronized; tokenizing a file
+ *   needs no lock
+ */
+public class SearchIndex {
+
+    public static final int MAX_WORD_BYTES = 64;
+
+    private static final int LOG_MAGIC = 0x43535831; // "CSX1"
+    private static final byte OP_TAGS = 1;
+    private static final byte OP_PUT = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final int TAGS_PER_RECORD = 64 * 1024;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final byte[] TAG_LABEL = "cryptify search tags".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RECORD_LABEL = "cryptify search records".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Indexed state of one file.
+     */
+    private static class Entry {
+
+        final int number;
+        final long size;
+        final long lastModified;
+        final long[] tags;
+
+        Entry(int number, long size, long lastModified, long[] tags) {
+            this.number = number;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.tags = tags;
+        }
+
+        int recordCount() {
+            // The tag records plus the record that puts them
+            return (tags.length + TAGS_PER_RECORD - 1) / TAGS_PER_RECORD + 1;
+        }
+    }
+
+    /**
+     * Growable sorted list of file numbers.
+     */
+    private static class Postings {
+
+        int[] numbers = new int[2];
+        int size;
+
+        void add(int number) {
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            numbers[size++] = number;
+        }
+    }
+
+    private final byte[] tagKey;
+    private final AESCipher recordCipher;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final List<String> paths = new ArrayList<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private final Map<String, List<long[]>> pending = new HashMap<>();
+    private long liveRecords;
+    private RecordLog log;
+
+    /**
+     * Opens (or creates) an index backed by the given log file.
+     * 
+     * @param logFile The log file, or null for an in-memory index
+     * @param key     The key the index is encrypted and tagged with
+     * @throws IOException if the log cannot be read, or was written with another key
+     */
+    public SearchIndex(Path logFile, SecretKey key) throws IOException {
+        this.tagKey = deriveKey(key, TAG_LABEL);
+        this.recordCipher = new AESCipher(new SecretKeySpec(deriveKey(key, RECORD_LABEL), "AES"));
+        if (logFile != null) {
+            log = new RecordLog(logFile, LOG_MAGIC);
+            for (byte[] record : log.takeReplayed()) {
+                replay(record);
+            }
+            pending.clear();
+            if (needsCompaction()) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Gets the default log location in the user's home directory.
+     * 
+     * @return Path of the default search index
+     */
+    public static Path defaultLocation() {
+        return Paths.get(System.getProperty("user.home"), ".cryptify", "search.idx");
+    }
+
+    /**
+     * Checks if a file is one the index is meant for: a .txt file.
+     * 
+     * @param file The file
+     * @return true if it should be indexed
+     */
+    public static boolean isIndexable(File file) {
+        return file.getName().toLowerCase().endsWith(".txt");
+    }
+
+    /**
+     * Creates a tokenizer to write a file's plaintext to, e.g. as the tap of
+     * CryptoHelper.encryptFile(); hand it to put() afterwards.
+     * 
+     * @return A new, empty tokenizer
+     */
+    public Tokens newTokens() {
+        return new Tokens(tagKey);
+    }
+
+    /**
+     * Records the words of a file, replacing what was indexed for it. The
+     * file's current size and time are recorded with them, so call this
+     * once the file has its final content.
+     * 
+     * @param file   The file
+     * @param tokens The tokenizer its plaintext was written to
+     * @throws IOException if the file cannot be read or the log written
+     */
+    public void put(File file, Tokens tokens) throws IOException {
+        Path path = normalize(file);
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        long[] tags = tokens.finish();
+        synchronized (this) {
+            drop(path.toString());
+            for (int from = 0; from < tags.length; from += TAGS_PER_RECORD) {
+                // The offset tells replay where a new list starts
+                append(encode(OP_TAGS, path.toString(), from, 0,
+                        Arrays.copyOfRange(tags, from, Math.min(tags.length, from + TAGS_PER_RECORD))));
+            }
+            Entry entry = new Entry(paths.size(), attrs.size(), attrs.lastModifiedTime().toMillis(), tags);
+            append(encode(OP_PUT, path.toString(), entry.size, entry.lastModified, new long[0]));
+            add(path.toString(), entry);
+            compactIfStale();
+        }
+    }
+
+    /**
+     * Reads a file (decrypting it in memory if it is encrypted) and indexes
+     * its words. The file is not changed.
+     * 
+     * @param file The file
+     * @param key  Its key (ignored for unencrypted files)
+     * @throws Exception if the file cannot be read or decrypted
+     */
+    public void index(File file, SecretKey key) throws Exception {
+        Tokens tokens = newTokens();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ReadableByteChannel plain = CryptoHelper.openPlaintext(in, file, key, Long.MAX_VALUE);
+            Cipher.transfer(plain, tokens);
+            plain.close();
+        }
+        put(file, tokens);
+    }
+
+    /**
+     * Updates the recorded size and time of a file whose text has not
+     * changed, e.g. after it was encrypted or decrypted in place.
+     * 
+     * @param file The file
+     * @throws IOException if the file cannot be read or the log written
+     */
+    public synchronized void touch(File file) throws IOException {
+        Path path = normalize(file);
+        Entry old = entries.get(path.toString());
+        if (old == null) {
+            return;
+        }
+        Tokens same = newTokens();
+        same.tags.addAll(boxed(old.tags));
+        put(file, same);
+    }
+
+    /**
+     * Checks if a file is indexed and has not changed since.
+     * 
+     * @param file The file
+     * @return true if the index describes the file as it is now
+     */
+    public synchronized boolean isCurrent(File file) {
+        Entry entry = entries.get(normalize(file).toString());
+        if (entry == null) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(normalize(file), BasicFileAttributes.class);
+            return entry.size == attrs.size() && entry.lastModified == attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds the indexed files that contain every word of a query, from the
+     * index alone.
+     * 
+     * @param query Words separated by anything that is not part of a word
+     * @return The matching files, in the order they were indexed
+     * @throws IllegalArgumentException if the query has no words
+     */
+    public synchronized List<File> candidates(String query) {
+        long[] tags = tagsOf(query);
+        Postings[] lists = new Postings[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            lists[i] = postings.get(tags[i]);
+            if (lists[i] == null) {
+                return new ArrayList<>();
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+        int[] matches = Arrays.copyOf(lists[0].numbers, lists[0].size);
+        int count = matches.length;
+        for (int i = 1; i < lists.length && count > 0; i++) {
+            count = intersect(matches, count, lists[i]);
+        }
+
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String path = paths.get(matches[i]);
+            // Numbers of replaced or removed files stay in the lists until compaction
+            if (path != null) {
+                files.add(new File(path));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Finds the files that contain every word of a query. Only matches that
+     * changed since they were indexed are read: they are decrypted with
+     * their key from the ring and indexed again, and kept only if they
+     * still match. Matches that no longer exist are removed.
+     * 
+     * @param query Words separated by anything that is not part of a word
+     * @param keys  Keys to decrypt changed matches with
+     * @return The matching files
+     * @throws Exception if the index cannot be updated
+     */
+    public List<File> search(String query, KeyRing keys) throws Exception {
+        List<File> found = new ArrayList<>();
+        for (File file : candidates(query)) {
+            if (isCurrent(file)) {
+                found.add(file);
+            } else if (!file.isFile()) {
+                remove(file);
+            } else {
+                try {
+                    index(file, FileHeaderUtil.isEncryptedFile(file) ? keys.keyFor(file) : null);
+                } catch (Exception e) {
+                    // Unreadable with these keys; keep the old entry for later
+                    continue;
+                }
+                if (candidates(query).contains(file)) {
+                    found.add(file);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Removes a file from the index.
+     * 
+     * @param file The file to forget
+     */
+    public synchronized void remove(File file) throws IOException {
+        String path = normalize(file).toString();
+        if (entries.containsKey(path)) {
+            drop(path);
+            append(encode(OP_REMOVE, path, 0, 0, new long[0]));
+            compactIfStale();
+        }
+    }
+
+    /**
+     * Gets the number of files in the index.
+     * 
+     * @return Entry count
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes buffered log records to disk.
+     */
+    public synchronized void flush() throws IOException {
+        if (log != null) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Rewrites the log so it only contains live entries, and renumbers the
+     * files so the posting lists hold no stale numbers.
+     * 
+     * @throws IOException if the new log cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        Map<String, Entry> live = new HashMap<>(entries);
+        List<String> order = new ArrayList<>();
+        for (String path : paths) {
+            if (path != null) {
+                order.add(path);
+            }
+        }
+        entries.clear();
+        paths.clear();
+        postings.clear();
+        liveRecords = 0;
+
+        List<byte[]> records = new ArrayList<>();
+        for (String path : order) {
+            Entry old = live.get(path);
+            for (int from = 0; from < old.tags.length; from += TAGS_PER_RECORD) {
+                records.add(encode(OP_TAGS, path, from, 0,
+                        Arrays.copyOfRange(old.tags, from, Math.min(old.tags.length, from + TAGS_PER_RECORD))));
+            }
+            records.add(encode(OP_PUT, path, old.size, old.lastModified, new long[0]));
+            add(path, new Entry(paths.size(), old.size, old.lastModified, old.tags));
+        }
+        if (log != null) {
+            log.rewrite(records);
+        }
+    }
+
+    /**
+     * Flushes and closes the log.
+     */
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Applies one record of the log while loading.
+     */
+    private void replay(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(decode(record)));
+        byte op = in.readByte();
+        String path = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        long[] tags = new long[in.readInt()];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = in.readLong();
+        }
+
+        if (op == OP_TAGS) {
+            if (size == 0) {
+                // Drops the tags of an earlier put that a crash cut short
+                pending.remove(path);
+            }
+            pending.computeIfAbsent(path, p -> new ArrayList<>()).add(tags);
+            return;
+        }
+        drop(path);
+        if (op == OP_PUT) {
+            List<long[]> parts = pending.remove(path);
+            long[] all = new long[0];
+            if (parts != null) {
+                int length = 0;
+                for (long[] part : parts) {
+                    length += part.length;
+                }
+                all = new long[length];
+                int at = 0;
+                for (long[] part : parts) {
+                    System.arraycopy(part, 0, all, at, part.length);
+                    at += part.length;
+                }
+            }
+            add(path, new Entry(paths.size(), size, lastModified, all));
+        }
+    }
+
+    /**
+     * Adds an entry with the next file number to the posting lists.
+     */
+    private void add(String path, Entry entry) {
+        entries.put(path, entry);
+        paths.add(path);
+        for (long tag : entry.tags) {
+            postings.computeIfAbsent(tag, t -> new Postings()).add(entry.number);
+        }
+        liveRecords += entry.recordCount();
+    }
+
+    /**
+     * Forgets a file's entry; its number stays in the posting lists, dead,
+     * until the next compaction.
+     */
+    private void drop(String path) {
+        Entry old = entries.remove(path);
+        if (old != null) {
+            paths.set(old.number, null);
+            liveRecords -= old.recordCount();
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        if (log != null) {
+            log.append(record);
+        }
+    }
+
+    private void compactIfStale() throws IOException {
+        if (log != null && needsCompaction()) {
+            compact();
+        }
+    }
+
+    private boolean needsCompaction() {
+        return log.getRecordCount() > COMPACT_MIN_RECORDS && log.getRecordCount() > 2 * liveRecords;
+    }
+
+    /**
+     * Keeps the numbers of the first count matches that are also in the
+     * list; both are sorted.
+     * 
+     * @return How many matches are left
+     */
+    private static int intersect(int[] matches, int count, Postings list) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < list.size; i++) {
+            while (j < list.size && list.numbers[j] < matches[i]) {
+                j++;
+            }
+            if (j < list.size && list.numbers[j] == matches[i]) {
+                matches[kept++] = matches[i];
+            }
+        }
+        return kept;
+    }
+
+    private long[] tagsOf(String query) {
+        Tokens tokens = newTokens();
+        try {
+            tokens.write(ByteBuffer.wrap(query.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException impossible) {
+            throw new IllegalStateException(impossible);
+        }
+        long[] tags = tokens.finish();
+        if (tags.length == 0) {
+            throw new IllegalArgumentException("Search needs at least one word");
+        }
+        return tags;
+    }
+
+    private byte[] encode(byte op, String path, long size, long lastModified, long[] tags) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + tags.length * 8);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(op);
+        record.writeUTF(path);
+        record.writeLong(size);
+        record.writeLong(lastModified);
+        record.writeInt(tags.length);
+        for (long tag : tags) {
+            record.writeLong(tag);
+        }
+        try {
+            return recordCipher.encrypt(bytes.toByteArray());
+        } catch (Exception e) {
+            throw new IOException("Could not encrypt the search index: " + e.getMessage(), e);
+        }
+    }
+
+    private byte[] decode(byte[] record) throws IOException {
+        try {
+            return recordCipher.decrypt(record);
+        } catch (Exception e) {
+            throw new IOException("The search index was written with a different key");
+        }
+    }
+
+    private static Path normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private static Set<Long> boxed(long[] tags) {
+        Set<Long> set = new HashSet<>(tags.length * 2);
+        for (long tag : tags) {
+            set.add(tag);
+        }
+        return set;
+    }
+
+    private static byte[] deriveKey(SecretKey key, byte[] label) {
+        try {
+            Mac derive = Mac.getInstance("HmacSHA256");
+            derive.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            return derive.doFinal(label);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Splits the plaintext written to it into words and collects the tags
+     * of the distinct words. Not thread-safe; use one per file.
+     */
+    public static class Tokens implements WritableByteChannel {
+
+        private final Mac mac;
+        private final byte[] word = new byte[MAX_WORD_BYTES];
+        private final Set<Long> tags = new HashSet<>();
+        private int length;
+        private boolean ascii = true;
+        private boolean open = true;
+
+        Tokens(byte[] tagKey) {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(tagKey, "HmacSHA256"));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                byte b = src.get();
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                } else if (b < 0) {
+                    ascii = false;
+                } else if (!((b >= 'a' && b <= 'z') || (b >= '0' && b <= '9'))) {
+                    endWord();
+                    continue;
+                }
+                if (length < word.length) {
+                    word[length++] = b;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Gets the tags of all words written so far.
+         */
+        long[] finish() {
+            endWord();
+            long[] result = new long[tags.size()];
+            int i = 0;
+            for (long tag : tags) {
+                result[i++] = tag;
+            }
+            return result;
+        }
+
+        private void endWord() {
+            if (length > 0) {
+                if (ascii) {
+                    mac.update(word, 0, length);
+                } else {
+                    // Rare enough to afford a String for lower-casing
+                    mac.update(new String(word, 0, length, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT)
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                tags.add(ByteBuffer.wrap(mac.doFinal()).getLong());
+                length = 0;
+                ascii = true;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package cryptify.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one stage of encrypting or decrypting:
+ * header probe, read, cipher, write or fsync.
+ * 
+ * The event is disabled by default. While no recording enables it, begin()
+ * returns null and the timed channel wrappers return the channel itself, so
+ * the cost is one check per call. To record it:
+ * java -XX:StartFlightRecording:filename=run.jfr,+cryptify.Stage#enabled=true ...
+ * (or enable "cryptify.Stage" in a JDK Mission Control template), then open
+ * the recording in Mission Control and group the events by stage and thread.
+ * 
+ * OOP Principles:
+ * - Inheritance: Extends jdk.jfr.Event
+ * - Encapsulation: Callers never see the event unless it is enabled
+ */
+@Name("cryptify.Stage")
+@Label("Cryptify Stage")
+@Category("Cryptify")
+@Description("One stage of encrypting or decrypting a file or stream")
+@Enabled(false)
+@StackTrace(false)
+public class StageEvent extends Event {
+
+    public static final String HEADER = "header";
+    public static final String READ = "read";
+    public static final String CIPHER = "cipher";
+    public static final String WRITE = "write";
+    public static final String FSYNC = "fsync";
+
+    private static final EventType TYPE = EventType.getEventType(StageEvent.class);
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Cipher")
+    public String cipher;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    /**
+     * Starts timing a stage.
+     * 
+     * @param stage  One of the stage constants
+     * @param cipher Name of the cipher involved
+     * @return The started event, or null if no recording wants it
+     */
+    public static StageEvent begin(String stage, String cipher) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        StageEvent event = new StageEvent();
+        event.stage = stage;
+        event.cipher = cipher;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes timing a stage started with begin().
+     * 
+     * @param event The event (null does nothing)
+     * @param bytes Bytes the stage processed
+     */
+    public static void end(StageEvent event, long bytes) {
+        if (event != null) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Wraps a channel so that each read is recorded as a READ stage.
+     * 
+     * @return The wrapper, or the channel itself if the event is disabled
+     */
+    public static ReadableByteChannel timedReads(ReadableByteChannel channel, String cipher) {
+        if (!TYPE.isEnabled()) {
+            return channel;
+        }
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                StageEvent event = begin(READ, cipher);
+                int n = channel.read(dst);
+                end(event, Math.max(0, n));
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps a channel so that each write is recorded as a WRITE stage.
+     * 
+     * @return The wrapper, or the channel itself if the event is disabled
+     */
+    public static WritableByteChannel timedWrites(WritableByteChannel channel, String cipher) {
+        if (!TYPE.isEnabled()) {
+            return channel;
+        }
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                StageEvent event = begin(WRITE, cipher);
+                int n = channel.write(src);
+                end(event, n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Forces a file to disk, recorded as an FSYNC stage.
+     * 
+     * @param channel  The file
+     * @param metaData Whether file metadata must be written too
+     * @param cipher   Name of the cipher involved
+     * @throws IOException if the force fails
+     */
+    public static void force(FileChannel channel, boolean metaData, String cipher) throws IOException {
+        StageEvent event = begin(FSYNC, cipher);
+        channel.force(metaData);
+        end(event, 0);
+    }
+}
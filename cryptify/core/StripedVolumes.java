@@ -0,0 +1,582 @@
+package cryptify.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An encrypted file split into fixed-size volumes, which are written and
+ * read in parallel and may be spread round-robin over several directories
+ * (e.g. one per disk), so throughput adds up over the disks.
+ * 
+ * The volumes are consecutive sections of one ordinary encrypted stream
+ * (format 2): volume 0 starts with the header, and each volume holds the
+ * encrypted frames of volumeSize plaintext bytes. Every section is
+ * encrypted on its own from its chunk offset (see
+ * Cipher.resumeEncryptingChannel), so no volume waits for another, and
+ * concatenating the volumes in order gives a file that decryptFile()
+ * accepts.
+ * 
+ * A text manifest next to the first volume lists the volumes in order with
+ * their sizes, and ends with an HMAC over all of it and the header, so
+ * volumes cannot be dropped from it or reordered in it unnoticed. With AES,
+ * swapped volume files are detected as well, since each frame's IV is bound
+ * to its index. Paths in the manifest are relative to it; a volume that is not
+ * found there is looked for next to the manifest, so a set that was copied
+ * into one directory still decrypts.
+ * 
+ * OOP Principles:
+ * - Encapsulation: Manifest format and section arithmetic are internal
+ * - Immutability: An opened set never changes
+ */
+public class StripedVolumes {
+
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final String MAGIC = "cryptify-volumes 1";
+    private static final byte[] KEY_LABEL = "cryptify volume manifest".getBytes(StandardCharsets.UTF_8);
+
+    private final Path manifest;
+    private final byte[] header;
+    private final long length;
+    private final long volumeSize;
+    private final List<Path> volumes;
+    private final long[] volumeLengths;
+    private final byte[] mac;
+
+    private StripedVolumes(Path manifest, byte[] header, long length, long volumeSize, List<Path> volumes,
+            long[] volumeLengths, byte[] mac) {
+        this.manifest = manifest;
+        this.header = header;
+        this.length = length;
+        this.volumeSize = volumeSize;
+        this.volumes = volumes;
+        this.volumeLengths = volumeLengths;
+        this.mac = mac;
+    }
+
+    /**
+     * Gets a volume size that splits a file into about the given number of
+     * volumes: the share of each, rounded up to a whole number of chunks.
+     * 
+     * @param length  Plaintext length of the file
+     * @param volumes How many volumes are wanted
+     * @return Plaintext bytes per volume
+     */
+    public static long volumeSizeFor(long length, int volumes) {
+        if (volumes < 1) {
+            throw new IllegalArgumentException("There must be at least one volume");
+        }
+        long share = (length + volumes - 1) / volumes;
+        long chunks = Math.max(1, (share + Cipher.STREAM_CHUNK_SIZE - 1) / Cipher.STREAM_CHUNK_SIZE);
+        return chunks * Cipher.STREAM_CHUNK_SIZE;
+    }
+
+    /**
+     * Gets how many volumes to work on at once by default: at least one per
+     * directory, so that every disk is kept busy.
+     * 
+     * @param dirs The directories the volumes are in (repeats are fine)
+     * @return Thread count
+     */
+    public static int defaultThreads(List<Path> dirs) {
+        return Math.max(new HashSet<>(dirs).size(), HostProfile.current().getWorkerCount());
+    }
+
+    /**
+     * Encrypts a file into volumes. Volume i is named NAME.volNNN and goes
+     * into targets[i % targets.size()]; the manifest NAME.manifest goes into
+     * the first target and is written last. The file itself is not changed.
+     * 
+     * @param source     The file to encrypt
+     * @param key        The encryption key
+     * @param cipherType The cipher type (1=Caesar, 2=XOR, 3=AES)
+     * @param volumeSize Plaintext bytes per volume (a multiple of Cipher.STREAM_CHUNK_SIZE)
+     * @param targets    Directories to spread the volumes over
+     * @param threads    How many volumes to write at once
+     * @return The new volume set
+     * @throws Exception if a volume cannot be written; no manifest is left then
+     */
+    public static StripedVolumes encrypt(File source, SecretKey key, byte cipherType, long volumeSize,
+            List<Path> targets, int threads) throws Exception {
+        if (volumeSize <= 0 || volumeSize % Cipher.STREAM_CHUNK_SIZE != 0) {
+            throw new IllegalArgumentException("Volume size must be a multiple of " + Cipher.STREAM_CHUNK_SIZE);
+        }
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No target directory given");
+        }
+        Cipher cipher = CipherFactory.createCipherByType(cipherType, key);
+        byte[] header = FileHeaderUtil.createHeader(cipherType, key);
+        // The stream prefix (AES base IV) is random, as newEncryptingChannel() would make it
+        byte[] prefix = new byte[cipher.getStreamPrefixSize()];
+        new SecureRandom().nextBytes(prefix);
+
+        long length = source.length();
+        int count = (int) Math.max(1, (length + volumeSize - 1) / volumeSize);
+        String name = source.getName();
+        Path manifest = targets.get(0).toAbsolutePath().resolve(name + MANIFEST_SUFFIX);
+        List<Path> volumes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Path dir = targets.get(i % targets.size()).toAbsolutePath();
+            Files.createDirectories(dir);
+            volumes.add(dir.resolve(String.format("%s.vol%03d", name, i)));
+        }
+        long[] volumeLengths = new long[count];
+
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            runSections(count, threads, "cryptify-stripe", index -> {
+                long start = index * volumeSize;
+                long end = Math.min(length, start + volumeSize);
+                Cipher sectionCipher = CipherFactory.createCipherByType(cipherType, key);
+                try (FileChannel out = FileChannel.open(volumes.get(index), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    if (index == 0) {
+                        Cipher.writeFully(out, ByteBuffer.wrap(header));
+                        Cipher.writeFully(out, ByteBuffer.wrap(prefix));
+                    }
+                    WritableByteChannel encrypting = sectionCipher.resumeEncryptingChannel(
+                            StageEvent.timedWrites(IoThrottle.shared().writes(out), sectionCipher.getCipherName()),
+                            prefix, start, index == count - 1);
+                    Cipher.transfer(IoThrottle.shared().reads(range(in, start, end)), encrypting);
+                    encrypting.close();
+                    volumeLengths[index] = Files.size(volumes.get(index));
+                }
+            });
+        } catch (Exception e) {
+            for (Path volume : volumes) {
+                Files.deleteIfExists(volume);
+            }
+            throw e;
+        }
+
+        List<Path> stored = new ArrayList<>(count);
+        for (Path volume : volumes) {
+            stored.add(manifest.getParent().relativize(volume));
+        }
+        StripedVolumes set = new StripedVolumes(manifest, header, length, volumeSize, volumes, volumeLengths,
+                null);
+        byte[] text = set.manifestText(stored).getBytes(StandardCharsets.UTF_8);
+        Path temp = CryptoHelper.createTempSibling(manifest);
+        try {
+            Files.write(temp, concat(text, ("mac " + hex(macOf(key, text, header)) + "\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+            CryptoHelper.replace(temp, manifest);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return open(manifest);
+    }
+
+    /**
+     * Reads a manifest. Nothing is authenticated until decrypt() or
+     * verify() is given the key.
+     * 
+     * @param manifest The manifest file
+     * @return The volume set it describes
+     * @throws IOException if it is not a readable manifest
+     */
+    public static StripedVolumes open(Path manifest) throws IOException {
+        manifest = manifest.toAbsolutePath();
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        try {
+            if (lines.isEmpty() || !lines.get(0).equals(MAGIC)) {
+                throw new IOException("Not a volume manifest: " + manifest);
+            }
+            byte[] header = unhex(value(lines.get(1), "header"));
+            long length = Long.parseLong(value(lines.get(2), "length"));
+            long volumeSize = Long.parseLong(value(lines.get(3), "volume-size"));
+            int count = Integer.parseInt(value(lines.get(4), "volumes"));
+            List<Path> volumes = new ArrayList<>(count);
+            long[] volumeLengths = new long[count];
+            for (int i = 0; i < count; i++) {
+                // volume LENGTH PATH; the path may contain spaces
+                String[] parts = value(lines.get(5 + i), "volume").split(" ", 2);
+                volumeLengths[i] = Long.parseLong(parts[0]);
+                volumes.add(locate(manifest, parts[1]));
+            }
+            byte[] mac = unhex(value(lines.get(5 + count), "mac"));
+            return new StripedVolumes(manifest, header, length, volumeSize, Collections.unmodifiableList(volumes),
+                    volumeLengths, mac);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Volume manifest is damaged: " + manifest);
+        }
+    }
+
+    /**
+     * Checks the manifest against the key and the volumes' sizes and first
+     * header, without decrypting anything.
+     * 
+     * @param key The key the set was encrypted with
+     * @throws IOException if the key is wrong or the set was changed
+     */
+    public void verify(SecretKey key) throws IOException {
+        FileHeaderUtil.checkKey(header, key);
+        List<String> stored = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (!line.startsWith("mac ")) {
+                stored.add(line);
+            }
+        }
+        byte[] text = (String.join("\n", stored) + "\n").getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(macOf(key, text, header), mac)) {
+            throw new IOException("Volume manifest has been changed");
+        }
+        for (int i = 0; i < volumes.size(); i++) {
+            if (!Files.isRegularFile(volumes.get(i))) {
+                throw new IOException("Volume " + i + " is missing: " + volumes.get(i));
+            }
+            if (Files.size(volumes.get(i)) != volumeLengths[i]) {
+                throw new IOException("Volume " + i + " has the wrong size: " + volumes.get(i));
+            }
+        }
+        byte[] first = FileHeaderUtil.readHeader(volumes.get(0).toFile());
+        if (first == null || !MessageDigest.isEqual(first, header)) {
+            throw new IOException("Volume 0 does not belong to this manifest");
+        }
+    }
+
+    /**
+     * Decrypts all volumes at once into one file, which replaces the target
+     * only once every volume has been decrypted (and, for AES,
+     * authenticated).
+     * 
+     * @param target  The plaintext file to write
+     * @param key     The key the set was encrypted with
+     * @param threads How many volumes to read at once
+     * @throws Exception if a volume is missing, damaged or cannot be decrypted
+     */
+    public void decrypt(File target, SecretKey key, int threads) throws Exception {
+        verify(key);
+        Cipher cipher = CipherFactory.createCipherByType(header[4], key);
+        byte[] prefix = new byte[cipher.getStreamPrefixSize()];
+        try (FileChannel first = FileChannel.open(volumes.get(0), StandardOpenOption.READ)) {
+            if (!Cipher.readFully(first.position(header.length), ByteBuffer.wrap(prefix))) {
+                throw new IOException("Volume 0 is truncated");
+            }
+        }
+
+        Path output = target.toPath();
+        Path temp = CryptoHelper.createTempSibling(output);
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                runSections(volumes.size(), threads, "cryptify-unstripe", index -> {
+                    long start = index * volumeSize;
+                    long expected = Math.min(length, start + volumeSize) - start;
+                    boolean last = index == volumes.size() - 1;
+                    Cipher sectionCipher = CipherFactory.createCipherByType(header[4], key);
+                    try (FileChannel in = FileChannel.open(volumes.get(index), StandardOpenOption.READ)) {
+                        in.position(index == 0 ? header.length + prefix.length : 0);
+                        ReadableByteChannel plain = sectionCipher.resumeDecryptingChannel(
+                                IoThrottle.shared().reads(in), prefix, start);
+                        long copied = Cipher.transfer(limit(plain, expected),
+                                IoThrottle.shared().writes(at(out, start)));
+                        if (copied != expected) {
+                            throw new IOException("Volume " + index + " is truncated");
+                        }
+                        // The last section must end the stream; the others must end with their volume
+                        boolean ended = last ? plain.read(ByteBuffer.allocate(1)) == -1 : in.position() == in.size();
+                        if (!ended) {
+                            throw new IOException("Volume " + index + " has unexpected data at its end");
+                        }
+                        plain.close();
+                    }
+                });
+            }
+            CryptoHelper.replace(temp, output);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes the volumes and then the manifest.
+     */
+    public void delete() throws IOException {
+        for (Path volume : volumes) {
+            Files.deleteIfExists(volume);
+        }
+        Files.deleteIfExists(manifest);
+    }
+
+    public Path getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return The complete header, as at the start of volume 0
+     */
+    public byte[] getHeader() {
+        return header.clone();
+    }
+
+    /**
+     * @return Plaintext length of the whole file
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public long getVolumeSize() {
+        return volumeSize;
+    }
+
+    public List<Path> getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * @return The directory of each volume, in volume order
+     */
+    public List<Path> getDirectories() {
+        List<Path> dirs = new ArrayList<>(volumes.size());
+        for (Path volume : volumes) {
+            dirs.add(volume.getParent());
+        }
+        return dirs;
+    }
+
+    /**
+     * One section's work, run on a section thread.
+     */
+    private interface Section {
+
+        void run(int index) throws Exception;
+    }
+
+    /**
+     * Runs every section on up to the given number of threads, in order of
+     * their index, so consecutive volumes (which sit on different targets)
+     * are worked on at the same time. After the first failure, no further
+     * section is started.
+     */
+    private static void runSections(int count, int threads, String name, Section section) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        Exception[] failure = new Exception[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < Math.max(1, Math.min(threads, count)); t++) {
+            Thread worker = new Thread(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < count) {
+                    synchronized (failure) {
+                        if (failure[0] != null) {
+                            return;
+                        }
+                    }
+                    try {
+                        section.run(index);
+                    } catch (Exception e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                }
+            }, name + "-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the volumes", e);
+            }
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Reads a range of a file with positional reads, so that several
+     * threads can share the channel.
+     */
+    private static ReadableByteChannel range(FileChannel channel, long start, long end) {
+        return new ReadableByteChannel() {
+            private long position = start;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                ByteBuffer slice = dst.duplicate();
+                slice.limit(slice.position() + (int) Math.min(dst.remaining(), end - position));
+                int n = channel.read(slice, position);
+                if (n == -1) {
+                    throw new IOException("File became shorter while it was being encrypted");
+                }
+                dst.position(slice.position());
+                position += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                // The channel is shared by all sections
+            }
+        };
+    }
+
+    /**
+     * Writes to a file from an offset with positional writes, so that
+     * several threads can share the channel.
+     */
+    private static WritableByteChannel at(FileChannel channel, long start) {
+        return new WritableByteChannel() {
+            private long position = start;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int n = channel.write(src, position);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                // The channel is shared by all sections
+            }
+        };
+    }
+
+    /**
+     * Ends a channel after the given number of bytes.
+     */
+    private static ReadableByteChannel limit(ReadableByteChannel channel, long bytes) {
+        return new ReadableByteChannel() {
+            private long left = bytes;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (left == 0) {
+                    return -1;
+                }
+                ByteBuffer slice = dst.duplicate();
+                slice.limit(slice.position() + (int) Math.min(dst.remaining(), left));
+                int n = channel.read(slice);
+                if (n > 0) {
+                    dst.position(slice.position());
+                    left -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                // The caller still checks how the channel ends
+            }
+        };
+    }
+
+    /**
+     * Writes everything but the mac line.
+     */
+    private String manifestText(List<Path> stored) {
+        StringBuilder text = new StringBuilder();
+        text.append(MAGIC).append('\n');
+        text.append("header ").append(hex(header)).append('\n');
+        text.append("length ").append(length).append('\n');
+        text.append("volume-size ").append(volumeSize).append('\n');
+        text.append("volumes ").append(volumes.size()).append('\n');
+        for (int i = 0; i < stored.size(); i++) {
+            text.append("volume ").append(volumeLengths[i]).append(' ').append(stored.get(i)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Finds a volume: where the manifest says, or else next to the manifest.
+     */
+    private static Path locate(Path manifest, String stored) {
+        Path volume = manifest.getParent().resolve(stored).normalize();
+        if (!Files.exists(volume)) {
+            Path beside = manifest.getParent().resolve(volume.getFileName());
+            if (Files.exists(beside)) {
+                return beside;
+            }
+        }
+        return volume;
+    }
+
+    private static String value(String line, String name) {
+        if (!line.startsWith(name + " ")) {
+            throw new IllegalArgumentException("Expected " + name);
+        }
+        return line.substring(name.length() + 1);
+    }
+
+    private static byte[] macOf(SecretKey key, byte[] text, byte[] header) {
+        try {
+            Mac derive = Mac.getInstance("HmacSHA256");
+            derive.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(derive.doFinal(KEY_LABEL), "HmacSHA256"));
+            mac.update(header);
+            return mac.doFinal(text);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = new byte[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            text.append(String.format("%02x", b));
+        }
+        return text.toString();
+    }
+
+    private static byte[] unhex(String text) {
+        if (text.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd hex length");
+        }
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,51 @@
+package cryptify.core;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+
+/**
+ * XOR cipher implementation using byte-wise XOR operation.
+ * 
+ * OOP Principles Demonstrated:
+ * - Inheritance: Extends LengthPreservingCipher (and so Cipher)
+ * - Encapsulation: XOR logic hidden in transform()
+ * - Symmetry: Same operation for encrypt/decrypt
+ */
+public class XORCipher extends LengthPreservingCipher {
+
+    private static final byte CIPHER_TYPE = 2;
+    private final byte[] keyBytes;
+
+    public XORCipher(SecretKey key) {
+        super(key);
+        this.keyBytes = key.getEncoded();
+    }
+
+    @Override
+    public byte getCipherType() {
+        return CIPHER_TYPE;
+    }
+
+    @Override
+    public String getCipherName() {
+        return "XOR Cipher";
+    }
+
+    /**
+     * Performs XOR operation on data with key bytes.
+     * XOR is symmetric - same operation for both directions.
+     * The key offset follows the stream position so chunks can be
+     * processed independently.
+     */
+    @Override
+    protected void transform(ByteBuffer buffer, long position, boolean encrypting) {
+        int keyIndex = (int) (position % keyBytes.length);
+
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ keyBytes[keyIndex]));
+            if (++keyIndex == keyBytes.length) {
+                keyIndex = 0;
+            }
+        }
+    }
+}